@@ -0,0 +1,44 @@
+package com.javaguy.backend.config;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManagerFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Moves KES amounts written before they were held as cents into the amount_kes_cents column. ddl-auto adds
+ * that column empty and leaves the old floating point amountkes column in place, so rows created before
+ * the change would otherwise load without an amount. Runs once the schema is updated and before any
+ * scheduler starts; rows already migrated are skipped, so it is a no-op from the second start on, and
+ * databases created after the change have no old column at all.
+ */
+@Component
+@Slf4j
+public class AmountCentsBackfill {
+
+    private static final String BACKFILL = "UPDATE crypto_transaction " +
+            "SET amount_kes_cents = CAST(ROUND(amountkes * 100) AS BIGINT) " +
+            "WHERE amount_kes_cents IS NULL AND amountkes IS NOT NULL";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    // The EntityManagerFactory is only taken so that Hibernate has updated the schema first
+    public AmountCentsBackfill(JdbcTemplate jdbcTemplate, EntityManagerFactory entityManagerFactory) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @PostConstruct
+    public void backfill() {
+        try {
+            int migrated = jdbcTemplate.update(BACKFILL);
+            if (migrated > 0) {
+                log.info("Copied the KES amount of {} transactions into amount_kes_cents", migrated);
+            }
+        } catch (DataAccessException e) {
+            // No amountkes column: the database was created after amounts moved to cents
+            log.debug("No KES amounts to backfill: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.javaguy.backend.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each phase of an outbound HTTP call took, as the http.client.phase timer tagged with
+ * the client profile, host, endpoint and phase:
+ * acquire (call start to a usable connection, so it includes dns/connect/tls on a new connection),
+ * dns, connect, tls, ttfb (call start to the first response header) and total.
+ * The endpoint is the String tag set on the request, or the URL path when there is none.
+ * One listener is created per call; it only keeps a few timestamps.
+ */
+public class HttpMetricsEventListener extends EventListener {
+
+    private final Timers timers;
+    private final String host;
+    private final String endpoint;
+
+    private long callStart;
+    private long dnsStart;
+    private long connectStart;
+    private long secureConnectStart;
+
+    private HttpMetricsEventListener(Timers timers, Request request) {
+        this.timers = timers;
+        this.host = request.url().host();
+        String tag = request.tag(String.class);
+        this.endpoint = tag != null ? tag : request.url().encodedPath();
+    }
+
+    public static EventListener.Factory factory(String client, MeterRegistry meterRegistry) {
+        Timers timers = new Timers(client, meterRegistry);
+        return call -> new HttpMetricsEventListener(timers, call.request());
+    }
+
+    @Override
+    public void callStart(@NotNull Call call) {
+        callStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsStart(@NotNull Call call, @NotNull String domainName) {
+        dnsStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsEnd(@NotNull Call call, @NotNull String domainName, @NotNull List<InetAddress> inetAddressList) {
+        record("dns", dnsStart, "success");
+    }
+
+    @Override
+    public void connectStart(@NotNull Call call, @NotNull InetSocketAddress inetSocketAddress, @NotNull Proxy proxy) {
+        connectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectStart(@NotNull Call call) {
+        secureConnectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectEnd(@NotNull Call call, @Nullable Handshake handshake) {
+        record("tls", secureConnectStart, "success");
+    }
+
+    @Override
+    public void connectEnd(@NotNull Call call, @NotNull InetSocketAddress inetSocketAddress, @NotNull Proxy proxy,
+                           @Nullable Protocol protocol) {
+        record("connect", connectStart, "success");
+    }
+
+    @Override
+    public void connectFailed(@NotNull Call call, @NotNull InetSocketAddress inetSocketAddress, @NotNull Proxy proxy,
+                              @Nullable Protocol protocol, @NotNull IOException ioe) {
+        record("connect", connectStart, "failure");
+    }
+
+    @Override
+    public void connectionAcquired(@NotNull Call call, @NotNull Connection connection) {
+        record("acquire", callStart, "success");
+    }
+
+    @Override
+    public void responseHeadersStart(@NotNull Call call) {
+        record("ttfb", callStart, "success");
+    }
+
+    @Override
+    public void callEnd(@NotNull Call call) {
+        record("total", callStart, "success");
+    }
+
+    @Override
+    public void callFailed(@NotNull Call call, @NotNull IOException ioe) {
+        record("total", callStart, "failure");
+    }
+
+    private void record(String phase, long started, String outcome) {
+        if (started != 0) {
+            timers.get(host, endpoint, phase, outcome).record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Looks timers up once per tag combination instead of registering one on every event
+     */
+    private static final class Timers {
+
+        private final String client;
+        private final MeterRegistry meterRegistry;
+        private final Map<List<String>, Timer> timers = new ConcurrentHashMap<>();
+
+        private Timers(String client, MeterRegistry meterRegistry) {
+            this.client = client;
+            this.meterRegistry = meterRegistry;
+        }
+
+        Timer get(String host, String endpoint, String phase, String outcome) {
+            return timers.computeIfAbsent(List.of(host, endpoint, phase, outcome), key -> Timer.builder("http.client.phase")
+                    .tags("client", client, "host", host, "endpoint", endpoint, "phase", phase, "outcome", outcome)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+        }
+    }
+}
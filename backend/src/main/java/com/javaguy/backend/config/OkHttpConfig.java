@@ -3,23 +3,36 @@ package com.javaguy.backend.config;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.MeterRegistry;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 
 import java.util.concurrent.TimeUnit;
 
+/**
+ * One OkHttp client per remote system, each with its own connection pool, dispatcher limits and timeouts
+ * from http.clients.&lt;profile&gt;, and phase timings recorded by the HttpMetricsEventListener
+ */
 @Configuration
 public class OkHttpConfig {
 
     @Bean
-    public OkHttpClient okHttpClient() {
-        return new OkHttpClient.Builder()
-                .connectTimeout(30, TimeUnit.SECONDS)
-                .readTimeout(30, TimeUnit.SECONDS)
-                .writeTimeout(30, TimeUnit.SECONDS)
-                .build();
+    public OkHttpClient darajaHttpClient(Environment environment, MeterRegistry meterRegistry) {
+        return buildClient("daraja", environment, meterRegistry);
+    }
 
+    @Bean
+    public OkHttpClient rpcHttpClient(Environment environment, MeterRegistry meterRegistry) {
+        return buildClient("rpc", environment, meterRegistry);
+    }
+
+    @Bean
+    public OkHttpClient quoteHttpClient(Environment environment, MeterRegistry meterRegistry) {
+        return buildClient("quotes", environment, meterRegistry);
     }
 
     @Bean
@@ -28,4 +41,28 @@ public class OkHttpConfig {
                 .registerModule(new JavaTimeModule())
                 .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     }
+
+    private OkHttpClient buildClient(String profile, Environment environment, MeterRegistry meterRegistry) {
+        String prefix = "http.clients." + profile + ".";
+
+        // Only limits calls made with enqueue(); blocking calls are capped by their callers (see DarajaClient)
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(environment.getProperty(prefix + "max-requests", Integer.class, 64));
+        dispatcher.setMaxRequestsPerHost(environment.getProperty(prefix + "max-requests-per-host", Integer.class, 5));
+
+        ConnectionPool connectionPool = new ConnectionPool(
+                environment.getProperty(prefix + "max-idle-connections", Integer.class, 5),
+                environment.getProperty(prefix + "keep-alive-seconds", Long.class, 300L),
+                TimeUnit.SECONDS);
+
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(connectionPool)
+                .connectTimeout(environment.getProperty(prefix + "connect-timeout-ms", Long.class, 30000L), TimeUnit.MILLISECONDS)
+                .readTimeout(environment.getProperty(prefix + "read-timeout-ms", Long.class, 30000L), TimeUnit.MILLISECONDS)
+                .writeTimeout(environment.getProperty(prefix + "write-timeout-ms", Long.class, 30000L), TimeUnit.MILLISECONDS)
+                .callTimeout(environment.getProperty(prefix + "call-timeout-ms", Long.class, 0L), TimeUnit.MILLISECONDS)
+                .eventListenerFactory(HttpMetricsEventListener.factory(profile, meterRegistry))
+                .build();
+    }
 }
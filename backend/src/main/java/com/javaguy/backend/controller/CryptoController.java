@@ -1,15 +1,40 @@
 package com.javaguy.backend.controller;
 
+import com.javaguy.backend.dto.BalanceRequest;
 import com.javaguy.backend.dto.OnRampRequest;
+import com.javaguy.backend.dto.OnRampStatusResponse;
+import com.javaguy.backend.model.KesAmount;
+import com.javaguy.backend.service.BalanceService;
+import com.javaguy.backend.service.BlockchainService;
+import com.javaguy.backend.service.DarajaThrottledException;
+import com.javaguy.backend.service.ExchangeRateUnavailableException;
+import com.javaguy.backend.service.IdempotencyKeyReusedException;
+import com.javaguy.backend.service.OnRampDispatcher;
+import com.javaguy.backend.service.OnRampMetrics;
+import com.javaguy.backend.service.OnRampRejectedException;
 import com.javaguy.backend.service.TransactionService;
+import com.javaguy.backend.service.TransactionStatusHub;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.math.BigDecimal;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 @RestController
 @RequestMapping("/api/crypto")
@@ -18,17 +43,212 @@ import org.springframework.web.bind.annotation.RestController;
 public class CryptoController {
 
     private final TransactionService transactionService;
+    private final BalanceService balanceService;
+    private final BlockchainService blockchainService;
+    private final OnRampMetrics metrics;
+    private final OnRampDispatcher onRampDispatcher;
+    private final TransactionStatusHub statusHub;
+
+    // Matches the idempotency_key column
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 128;
+    // M-Pesa's limit for a single payment
+    private static final BigDecimal MAX_AMOUNT_KES = BigDecimal.valueOf(250_000);
+
+    @Value("${crypto.balances.max-wallets:500}")
+    private int maxBalanceWallets;
 
     @PostMapping("/on-ramp")
-    public ResponseEntity<String> initiateOnRamp(@RequestBody OnRampRequest request) {
+    public ResponseEntity<String> initiateOnRamp(@RequestBody OnRampRequest request,
+                                                 @RequestHeader(value = "Idempotency-Key", required = false)
+                                                 String idempotencyKey) {
+        if (idempotencyKey != null && (idempotencyKey.isBlank() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH)) {
+            metrics.recordOnRampRequest("invalid");
+            return ResponseEntity.badRequest()
+                    .body("Idempotency-Key must be between 1 and " + MAX_IDEMPOTENCY_KEY_LENGTH + " characters");
+        }
+        String invalidAmount = validateAmount(request.getAmountKES());
+        if (invalidAmount != null) {
+            metrics.recordOnRampRequest("invalid");
+            return ResponseEntity.badRequest().body(invalidAmount);
+        }
+
         try {
-            String checkoutRequestId = transactionService.initiateOnRamp(
-                    request.getPhoneNumber(), request.getAmountKES(), request.getWalletAddress());
+            String checkoutRequestId = transactionService.initiateOnRamp(request.getPhoneNumber(),
+                    KesAmount.of(request.getAmountKES()), request.getWalletAddress(), idempotencyKey);
 
+            metrics.recordOnRampRequest("accepted");
             return ResponseEntity.ok(checkoutRequestId);
+        } catch (IdempotencyKeyReusedException e) {
+            metrics.recordOnRampRequest("invalid");
+            return ResponseEntity.unprocessableEntity().body(e.getMessage());
+        } catch (ExchangeRateUnavailableException e) {
+            return rateUnavailable(e);
         } catch (Exception e) {
+            if (e.getCause() instanceof DarajaThrottledException throttled) {
+                metrics.recordOnRampRequest("throttled");
+                log.warn("On-ramp rejected, Daraja is throttling: {}", throttled.getMessage());
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(throttled.getRetryAfter().toSeconds(), 1)))
+                        .body("M-Pesa is busy, please try again shortly");
+            }
+            metrics.recordOnRampRequest("error");
             log.error("Error initiating on-ramp: {}", e.getMessage());
             return new ResponseEntity<>(e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Accepts an on-ramp without waiting for the STK push: the transaction is saved as INITIATING and
+     * 202 is returned with its id straight away. Progress is reported by GET /on-ramp/{transactionId}.
+     */
+    @PostMapping("/on-ramp/async")
+    public ResponseEntity<?> initiateOnRampAsync(@RequestBody OnRampRequest request,
+                                                 @RequestHeader(value = "Idempotency-Key", required = false)
+                                                 String idempotencyKey) {
+        String invalid = validate(request, idempotencyKey);
+        if (invalid != null) {
+            metrics.recordOnRampRequest("invalid");
+            return ResponseEntity.badRequest().body(invalid);
+        }
+
+        try {
+            Long transactionId = onRampDispatcher.submit(request.getPhoneNumber(), KesAmount.of(request.getAmountKES()),
+                    request.getWalletAddress(), idempotencyKey);
+
+            metrics.recordOnRampRequest("accepted");
+            return ResponseEntity.accepted()
+                    .location(URI.create("/api/crypto/on-ramp/" + transactionId))
+                    .body(Map.of("transactionId", transactionId));
+        } catch (OnRampRejectedException e) {
+            metrics.recordOnRampRequest("rejected");
+            log.warn("Async on-ramp rejected: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "1")
+                    .body("Too many on-ramps in progress, please try again shortly");
+        } catch (IdempotencyKeyReusedException e) {
+            metrics.recordOnRampRequest("invalid");
+            return ResponseEntity.unprocessableEntity().body(e.getMessage());
+        } catch (ExchangeRateUnavailableException e) {
+            return rateUnavailable(e);
+        } catch (Exception e) {
+            metrics.recordOnRampRequest("error");
+            log.error("Error accepting on-ramp: {}", e.getMessage());
+            return new ResponseEntity<>(e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    @GetMapping("/on-ramp/{transactionId}")
+    public ResponseEntity<OnRampStatusResponse> getOnRampStatus(@PathVariable Long transactionId) {
+        return transactionService.findTransaction(transactionId)
+                .map(transaction -> ResponseEntity.ok(OnRampStatusResponse.builder()
+                        .transactionId(transaction.getId())
+                        .status(transaction.getTransactionStatus())
+                        .checkoutRequestId(transaction.getCheckoutRequestId())
+                        .resultDesc(transaction.getResultDesc())
+                        .txHash(transaction.getTxHash())
+                        .createdAt(transaction.getCreatedAt())
+                        .processedAt(transaction.getProcessedAt())
+                        .build()))
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Streams the status of one on-ramp as Server-Sent Events, starting with its current status and
+     * ending once it reaches a terminal one
+     */
+    @GetMapping(value = "/on-ramp/{transactionId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamOnRampStatus(@PathVariable Long transactionId) {
+        if (transactionService.findTransaction(transactionId).isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        return stream(statusHub.subscribeToTransaction(transactionId));
+    }
+
+    /**
+     * Streams status changes of every on-ramp credited to the wallet as Server-Sent Events
+     */
+    @GetMapping(value = "/wallets/{walletAddress}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamWalletStatus(@PathVariable String walletAddress) {
+        if (!blockchainService.isValidAddress(walletAddress)) {
+            return ResponseEntity.badRequest().build();
+        }
+        return stream(statusHub.subscribeToWallet(walletAddress));
+    }
+
+    @PostMapping("/balances")
+    public ResponseEntity<?> getBalances(@RequestBody BalanceRequest request) {
+        List<String> walletAddresses = request.getWalletAddresses();
+        if (walletAddresses == null || walletAddresses.isEmpty() || walletAddresses.size() > maxBalanceWallets) {
+            return ResponseEntity.badRequest()
+                    .body("Provide between 1 and " + maxBalanceWallets + " wallet addresses");
+        }
+
+        List<String> invalid = walletAddresses.stream()
+                .filter(walletAddress -> !blockchainService.isValidAddress(walletAddress))
+                .toList();
+        if (!invalid.isEmpty()) {
+            return ResponseEntity.badRequest().body("Invalid wallet addresses: " + invalid);
+        }
+
+        try {
+            return ResponseEntity.ok(balanceService.getBalances(walletAddresses));
+        } catch (Exception e) {
+            log.error("Error fetching balances: {}", e.getMessage());
+            return new ResponseEntity<>(e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    private ResponseEntity<String> rateUnavailable(ExchangeRateUnavailableException e) {
+        metrics.recordOnRampRequest("rejected");
+        log.warn("On-ramp rejected, no usable exchange rate: {}", e.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "30")
+                .body("Exchange rates are unavailable, please try again shortly");
+    }
+
+    static ResponseEntity<SseEmitter> stream(Optional<SseEmitter> emitter) {
+        return emitter
+                // Stops nginx and similar proxies from holding events back in their buffers
+                .map(subscription -> ResponseEntity.ok()
+                        .header(HttpHeaders.CACHE_CONTROL, "no-cache")
+                        .header("X-Accel-Buffering", "no")
+                        .body(subscription))
+                .orElseGet(() -> ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, "5")
+                        .build());
+    }
+
+    /**
+     * Everything the async path can check before accepting, since its errors only show up later otherwise
+     * @return why the request is invalid, or null if it is valid
+     */
+    private String validate(OnRampRequest request, String idempotencyKey) {
+        if (idempotencyKey != null && (idempotencyKey.isBlank() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH)) {
+            return "Idempotency-Key must be between 1 and " + MAX_IDEMPOTENCY_KEY_LENGTH + " characters";
+        }
+        if (request.getPhoneNumber() == null || request.getPhoneNumber().isBlank()) {
+            return "phoneNumber is required";
+        }
+        String invalidAmount = validateAmount(request.getAmountKES());
+        if (invalidAmount != null) {
+            return invalidAmount;
+        }
+        if (!blockchainService.isValidAddress(request.getWalletAddress())) {
+            return "Invalid wallet address: " + request.getWalletAddress();
+        }
+        return null;
+    }
+
+    /**
+     * M-Pesa only charges whole shillings, so anything else would be credited for more than was paid
+     */
+    private static String validateAmount(BigDecimal amountKES) {
+        if (amountKES == null || amountKES.compareTo(BigDecimal.ONE) < 0) {
+            return "amountKES must be at least 1";
+        }
+        if (amountKES.stripTrailingZeros().scale() > 0 || amountKES.compareTo(MAX_AMOUNT_KES) > 0) {
+            return "amountKES must be a whole number of shillings, at most " + MAX_AMOUNT_KES;
+        }
+        return null;
+    }
+}
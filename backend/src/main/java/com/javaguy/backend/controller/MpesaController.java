@@ -1,13 +1,22 @@
 package com.javaguy.backend.controller;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.javaguy.backend.dto.AccessTokenResponse;
+import com.javaguy.backend.dto.CallBackRequest;
 import com.javaguy.backend.dto.STKPushQueryResponse;
 import com.javaguy.backend.dto.STKPushResponse;
+import com.javaguy.backend.service.DarajaThrottledException;
 import com.javaguy.backend.service.MpesaService;
+import com.javaguy.backend.service.TransactionService;
+import com.javaguy.backend.service.TransactionStatusHub;
+import com.javaguy.backend.service.TransactionStatusResolver;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.util.Map;
 
@@ -17,9 +26,16 @@ import java.util.Map;
 public class MpesaController {
 
     private final MpesaService mpesaService;
+    private final TransactionService transactionService;
+    private final TransactionStatusHub statusHub;
+    private final TransactionStatusResolver statusResolver;
 
-    public MpesaController(MpesaService mpesaService) {
+    public MpesaController(MpesaService mpesaService, TransactionService transactionService,
+                           TransactionStatusHub statusHub, TransactionStatusResolver statusResolver) {
         this.mpesaService = mpesaService;
+        this.transactionService = transactionService;
+        this.statusHub = statusHub;
+        this.statusResolver = statusResolver;
     }
 
     //generate access token endpoint
@@ -40,18 +56,44 @@ public class MpesaController {
             String amount = payload.get("amount");
 
             return ResponseEntity.ok(mpesaService.initiateSTKPush(phoneNumber, amount));
+        } catch (DarajaThrottledException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(e.getRetryAfter().toSeconds(), 1)))
+                    .build();
         } catch (Exception e) {
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
         }
     }
 
+    //  answered from the recorded result when M-Pesa has already reported one, Daraja is only asked about pending payments
     @GetMapping("/transaction-status/{checkoutRequestId}")
     public ResponseEntity<STKPushQueryResponse> queryTransactionStatus(@PathVariable String checkoutRequestId) {
         try {
-            return ResponseEntity.ok(mpesaService.queryTransactionStatus(checkoutRequestId));
+            return ResponseEntity.ok(statusResolver.resolve(checkoutRequestId));
         } catch (Exception e) {
             log.error("Error querying transaction status: {}", e.getMessage());
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
         }
     }
+
+    //  pushes status changes instead of having clients poll transaction-status, which queries Daraja every time
+    @GetMapping(value = "/transaction-status/{checkoutRequestId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamTransactionStatus(@PathVariable String checkoutRequestId) {
+        return transactionService.findTransactionByCheckoutRequestId(checkoutRequestId)
+                .map(transaction -> CryptoController.stream(statusHub.subscribeToTransaction(transaction.getId())))
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    //  stk push callback endpoint, configured as mpesa.daraja.stk-push-callback-url
+    @PostMapping("/stk-callback")
+    public ResponseEntity<Map<String, Object>> stkCallback(@RequestBody JsonNode payload) {
+        try {
+            CallBackRequest callBack = mpesaService.parseCallback(payload);
+            transactionService.handleCallback(callBack);
+        } catch (Exception e) {
+            // Daraja does not act on our response, the polling sweep picks up anything missed here
+            log.error("Error handling STK push callback: {}", e.getMessage(), e);
+        }
+        return ResponseEntity.ok(Map.of("ResultCode", 0, "ResultDesc", "Accepted"));
+    }
 }
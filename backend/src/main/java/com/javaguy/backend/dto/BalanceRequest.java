@@ -0,0 +1,10 @@
+package com.javaguy.backend.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class BalanceRequest {
+    private List<String> walletAddresses;
+}
@@ -2,9 +2,11 @@ package com.javaguy.backend.dto;
 
 import lombok.Data;
 
+import java.math.BigDecimal;
+
 @Data
 public class OnRampRequest {
     private String phoneNumber;
-    private Double amountKES;
+    private BigDecimal amountKES; // parsed exactly, never through a double
     private String walletAddress;
 }
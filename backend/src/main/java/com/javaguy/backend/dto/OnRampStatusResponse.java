@@ -0,0 +1,19 @@
+package com.javaguy.backend.dto;
+
+import com.javaguy.backend.model.TransactionStatus;
+import lombok.Builder;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Data
+@Builder
+public class OnRampStatusResponse {
+    private Long transactionId;
+    private TransactionStatus status;
+    private String checkoutRequestId; // set once the STK push was accepted
+    private String resultDesc;
+    private String txHash; // set once the credit was sent on-chain
+    private LocalDateTime createdAt;
+    private LocalDateTime processedAt;
+}
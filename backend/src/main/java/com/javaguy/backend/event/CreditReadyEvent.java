@@ -0,0 +1,8 @@
+package com.javaguy.backend.event;
+
+/**
+ * Published when a paid transaction's credit has been written to the outbox
+ * @param outboxEventId The outbox row carrying the credit
+ */
+public record CreditReadyEvent(long outboxEventId) {
+}
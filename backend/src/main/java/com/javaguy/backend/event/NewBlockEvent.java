@@ -0,0 +1,8 @@
+package com.javaguy.backend.event;
+
+/**
+ * Published by the BlockHeadTracker whenever the chain head moves
+ * @param blockNumber The new head block number
+ */
+public record NewBlockEvent(long blockNumber) {
+}
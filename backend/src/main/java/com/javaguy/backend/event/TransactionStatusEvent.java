@@ -0,0 +1,36 @@
+package com.javaguy.backend.event;
+
+import com.javaguy.backend.model.CryptoTransaction;
+import com.javaguy.backend.model.TransactionStatus;
+
+/**
+ * Published whenever a transaction moves to a new status, and sent as-is to its SSE subscribers
+ * @param walletAddress The credited wallet, always set so wallet subscribers can be found without a lookup
+ * @param checkoutRequestId Set once the STK push was accepted
+ * @param txHash Set once the credit was sent on-chain
+ */
+public record TransactionStatusEvent(Long transactionId, String walletAddress, TransactionStatus status,
+                                     String checkoutRequestId, String txHash, String resultDesc) {
+
+    /**
+     * The transaction as it is now
+     */
+    public static TransactionStatusEvent of(CryptoTransaction transaction) {
+        return new TransactionStatusEvent(transaction.getId(), transaction.getWalletAddress(),
+                transaction.getTransactionStatus(), transaction.getCheckoutRequestId(), transaction.getTxHash(),
+                transaction.getResultDesc());
+    }
+
+    /**
+     * The transaction after moving to the given status
+     */
+    public static TransactionStatusEvent of(CryptoTransaction transaction, TransactionStatus status, String resultDesc) {
+        return new TransactionStatusEvent(transaction.getId(), transaction.getWalletAddress(), status,
+                transaction.getCheckoutRequestId(), transaction.getTxHash(), resultDesc);
+    }
+
+    public boolean isTerminal() {
+        return status == TransactionStatus.COMPLETED || status == TransactionStatus.FAILED
+                || status == TransactionStatus.TIMED_OUT || status == TransactionStatus.BLOCKCHAIN_ERROR;
+    }
+}
@@ -7,19 +7,50 @@ import lombok.NoArgsConstructor;
 import java.time.LocalDateTime;
 
 @Entity
+@Table(indexes = {
+        @Index(name = "ux_crypto_transaction_checkout_request_id", columnList = "checkout_request_id", unique = true),
+        @Index(name = "ux_crypto_transaction_idempotency_key", columnList = "idempotency_key", unique = true),
+        @Index(name = "ix_crypto_transaction_pending", columnList = "processed, transaction_status, id"),
+        @Index(name = "ix_crypto_transaction_due", columnList = "processed, transaction_status, next_check_at"),
+        @Index(name = "ix_crypto_transaction_tx_hash", columnList = "tx_hash")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class CryptoTransaction {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    // Ids come from the sequence 50 at a time, so an insert needs no round trip for its id and can be batched
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "crypto_transaction_seq")
+    @SequenceGenerator(name = "crypto_transaction_seq", sequenceName = "crypto_transaction_seq", allocationSize = 50)
     private Long id;
 
     private String phoneNumber;
-    private Double amountKES;
+    @Convert(converter = KesAmountConverter.class)
+    @Column(name = "amount_kes_cents")
+    private KesAmount amountKES;
+    private Long exchangeRateMicros; // KES per USDC in millionths, locked in when the on-ramp was initiated
+    private LocalDateTime exchangeRateQuotedAt;
     private String walletAddress;
     private String checkoutRequestId;
-    private String transactionStatus; // PENDING, COMPLETED, FAILED
+    @Column(length = 128)
+    private String idempotencyKey; // the client's Idempotency-Key, so a retried on-ramp is not sent twice
+    @Enumerated(EnumType.STRING)
+    @Column(length = 32)
+    private TransactionStatus transactionStatus;
+    private String resultCode;
+    private String resultDesc;
+    private String mpesaReceiptNumber;
+    private String txHash; // shared by every transaction credited in the same batch
+    @Column(length = 1024)
+    private String replacedTxHashes; // earlier hashes of txHash, replaced with higher fees; any of them may be mined
+    @Column(length = 1024)
+    private String cancelTxHashes; // 0-value self-transfers at txHash's nonce, sent when it was not being mined
+    private Long submittedBlock;
+    private LocalDateTime submittedAt;
+    private String leaseOwner; // instance currently checking this transaction
+    private LocalDateTime leaseExpiresAt;
+    private LocalDateTime nextCheckAt; // when the status sweep should next query Daraja
+    private Integer statusCheckAttempts = 0;
     private LocalDateTime createdAt;
     private LocalDateTime processedAt;
     private Boolean processed = false;
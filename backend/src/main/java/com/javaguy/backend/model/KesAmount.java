@@ -0,0 +1,97 @@
+package com.javaguy.backend.model;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * An amount of Kenyan shillings, held exactly as a whole number of cents. Amounts are parsed once where
+ * they enter the system; from there on they are plain longs, stored in an integer column, and converted
+ * into token units with integer arithmetic.
+ * @param cents The amount in cents, never negative
+ */
+public record KesAmount(long cents) {
+
+    public static final int SCALE = 2;
+
+    /**
+     * Exchange rates are fixed-point too: KES per token, in millionths
+     */
+    public static final int RATE_SCALE = 6;
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L,
+            10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L, 10_000_000_000_000L, 100_000_000_000_000L,
+            1_000_000_000_000_000L, 10_000_000_000_000_000L, 100_000_000_000_000_000L, 1_000_000_000_000_000_000L
+    };
+
+    public KesAmount {
+        if (cents < 0) {
+            throw new IllegalArgumentException("Amount cannot be negative: " + cents);
+        }
+    }
+
+    public static KesAmount ofShillings(long shillings) {
+        return new KesAmount(Math.multiplyExact(shillings, 100L));
+    }
+
+    /**
+     * @throws ArithmeticException if the amount has fractions of a cent, or is too large
+     */
+    public static KesAmount of(BigDecimal shillings) {
+        return new KesAmount(shillings.movePointRight(SCALE).longValueExact());
+    }
+
+    public boolean isWholeShillings() {
+        return cents % 100 == 0;
+    }
+
+    /**
+     * The amount in whole shillings, which is all M-Pesa charges in
+     * @throws ArithmeticException if the amount has cents
+     */
+    public long shillings() {
+        if (!isWholeShillings()) {
+            throw new ArithmeticException(this + " KES is not a whole number of shillings");
+        }
+        return cents / 100;
+    }
+
+    /**
+     * Converts the amount into the smallest units of a token, rounding down so a wallet is never credited
+     * more than was paid for. No objects are created unless the intermediate product overflows a long.
+     * @param kesPerTokenMicros How many KES one token costs, in millionths
+     * @param tokenDecimals The token's decimals, 6 for USDC
+     * @throws ArithmeticException if the result does not fit in a long
+     */
+    public long toTokenUnits(long kesPerTokenMicros, int tokenDecimals) {
+        if (kesPerTokenMicros <= 0) {
+            throw new IllegalArgumentException("Exchange rate must be positive: " + kesPerTokenMicros);
+        }
+        if (tokenDecimals < 0) {
+            throw new IllegalArgumentException("Token decimals cannot be negative: " + tokenDecimals);
+        }
+
+        // units = cents / 10^SCALE / (micros / 10^RATE_SCALE) * 10^decimals
+        int exponent = RATE_SCALE - SCALE + tokenDecimals;
+        if (exponent < POWERS_OF_TEN.length) {
+            long factor = POWERS_OF_TEN[exponent];
+            long product = cents * factor;
+            if (Math.multiplyHigh(cents, factor) == 0 && product >= 0) {
+                return product / kesPerTokenMicros;
+            }
+        }
+        return BigInteger.valueOf(cents)
+                .multiply(BigInteger.TEN.pow(exponent))
+                .divide(BigInteger.valueOf(kesPerTokenMicros))
+                .longValueExact();
+    }
+
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(cents, SCALE);
+    }
+
+    @Override
+    public String toString() {
+        return toBigDecimal().toPlainString();
+    }
+}
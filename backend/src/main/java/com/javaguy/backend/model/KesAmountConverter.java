@@ -0,0 +1,21 @@
+package com.javaguy.backend.model;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+/**
+ * Stores a KesAmount as its cents
+ */
+@Converter
+public class KesAmountConverter implements AttributeConverter<KesAmount, Long> {
+
+    @Override
+    public Long convertToDatabaseColumn(KesAmount amount) {
+        return amount == null ? null : amount.cents();
+    }
+
+    @Override
+    public KesAmount convertToEntityAttribute(Long cents) {
+        return cents == null ? null : new KesAmount(cents);
+    }
+}
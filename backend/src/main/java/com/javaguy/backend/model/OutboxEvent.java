@@ -0,0 +1,43 @@
+package com.javaguy.backend.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Work for the next stage of an on-ramp transaction, written in the same database transaction as the
+ * state change that produced it. The OutboxRelay picks it up after commit, so a crash between the two
+ * stages never loses the hand-off.
+ */
+@Entity
+@Table(indexes = {
+        @Index(name = "ix_outbox_event_ready", columnList = "dispatched_at, id")
+})
+@Data
+@NoArgsConstructor
+public class OutboxEvent {
+    @Id
+    // Ids come from the sequence 50 at a time, so an insert needs no round trip for its id and can be batched
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "outbox_event_seq")
+    @SequenceGenerator(name = "outbox_event_seq", sequenceName = "outbox_event_seq", allocationSize = 50)
+    private Long id;
+
+    private Long transactionId;
+    @Enumerated(EnumType.STRING)
+    @Column(length = 32)
+    private OutboxEventType type;
+    private LocalDateTime createdAt;
+    private LocalDateTime dispatchedAt; // set once a relay has taken the event
+
+    public OutboxEvent(Long transactionId, OutboxEventType type) {
+        this.transactionId = transactionId;
+        this.type = type;
+    }
+
+    @PrePersist
+    public void prePersist() {
+        this.createdAt = LocalDateTime.now();
+    }
+}
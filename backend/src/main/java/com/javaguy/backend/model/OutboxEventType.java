@@ -0,0 +1,5 @@
+package com.javaguy.backend.model;
+
+public enum OutboxEventType {
+    CREDIT_WALLET       // payment is PAID, the wallet credit still has to be sent
+}
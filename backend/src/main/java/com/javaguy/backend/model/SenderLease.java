@@ -0,0 +1,23 @@
+package com.javaguy.backend.model;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * A role that only one backend instance may hold at a time, such as signing credits with the wallet key.
+ * Held and renewed with the same conditional-update leases as pending transactions.
+ */
+@Entity
+@Data
+@NoArgsConstructor
+public class SenderLease {
+    @Id
+    private String name;
+
+    private String leaseOwner;
+    private LocalDateTime leaseExpiresAt;
+}
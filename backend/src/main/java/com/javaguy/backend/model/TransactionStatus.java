@@ -0,0 +1,12 @@
+package com.javaguy.backend.model;
+
+public enum TransactionStatus {
+    INITIATING,         // accepted by the async on-ramp, STK push not sent yet
+    PENDING,            // STK push sent, waiting for the user to pay
+    PAID,               // payment confirmed, wallet credit queued in the outbox
+    SUBMITTED,          // credit sent on-chain, waiting for confirmations
+    COMPLETED,
+    FAILED,             // STK push or M-Pesa payment failed, or was cancelled
+    TIMED_OUT,          // no payment result before the status checks gave up
+    BLOCKCHAIN_ERROR    // credit could not be sent, reverted or was dropped
+}
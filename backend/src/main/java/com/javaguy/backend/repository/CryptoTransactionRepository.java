@@ -1,15 +1,310 @@
 package com.javaguy.backend.repository;
 
 import com.javaguy.backend.model.CryptoTransaction;
+import com.javaguy.backend.model.TransactionStatus;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Optional;
 
 public interface CryptoTransactionRepository extends JpaRepository<CryptoTransaction, Long> {
-    List<CryptoTransaction> findByProcessedFalseAndTransactionStatus(String status);
+    List<CryptoTransaction> findByProcessedFalseAndTransactionStatus(TransactionStatus status);
 
-    @Query("SELECT c FROM CryptoTransaction c WHERE c.processed = false AND c.checkoutRequestId IS NOT NULL")
-    List<CryptoTransaction> findPendingTransactions();
+    Optional<CryptoTransaction> findByCheckoutRequestId(String checkoutRequestId);
 
+    Optional<CryptoTransaction> findByIdempotencyKey(String idempotencyKey);
+
+    /**
+     * One keyset page of pending transactions due for a status check before the given time and not leased
+     * by any live instance. Pass the last id of the previous page (0 for the first) so a refill never holds
+     * more than one page in memory. Rows without a next check time predate scheduling and are due now.
+     */
+    @Query("SELECT c.id AS id, c.nextCheckAt AS nextCheckAt FROM CryptoTransaction c WHERE c.processed = false " +
+            "AND c.transactionStatus = com.javaguy.backend.model.TransactionStatus.PENDING " +
+            "AND c.id > :afterId AND c.checkoutRequestId IS NOT NULL " +
+            "AND (c.nextCheckAt IS NULL OR c.nextCheckAt < :dueBefore) " +
+            "AND (c.leaseExpiresAt IS NULL OR c.leaseExpiresAt < :now) " +
+            "ORDER BY c.id")
+    List<DueCheck> findDuePage(@Param("afterId") long afterId,
+                               @Param("dueBefore") LocalDateTime dueBefore,
+                               @Param("now") LocalDateTime now,
+                               Pageable page);
+
+    /**
+     * Leases the given pending transactions that are due for a check to one instance. The lease condition is re-checked by the
+     * update itself, so when several instances race for the same rows each row goes to exactly one of them.
+     * Expired leases (an instance died mid-processing) can be claimed again.
+     * @return the number of transactions claimed
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE CryptoTransaction c SET c.leaseOwner = :owner, c.leaseExpiresAt = :expiresAt " +
+            "WHERE c.id IN :ids AND c.processed = false " +
+            "AND c.transactionStatus = com.javaguy.backend.model.TransactionStatus.PENDING " +
+            "AND (c.nextCheckAt IS NULL OR c.nextCheckAt <= :now) " +
+            "AND (c.leaseExpiresAt IS NULL OR c.leaseExpiresAt < :now)")
+    int claim(@Param("ids") List<Long> ids, @Param("owner") String owner,
+              @Param("expiresAt") LocalDateTime expiresAt, @Param("now") LocalDateTime now);
+
+    @Query("SELECT c FROM CryptoTransaction c WHERE c.id IN :ids AND c.leaseOwner = :owner ORDER BY c.id")
+    List<CryptoTransaction> findLeased(@Param("ids") List<Long> ids, @Param("owner") String owner);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE CryptoTransaction c SET c.leaseOwner = null, c.leaseExpiresAt = null " +
+            "WHERE c.id = :id AND c.leaseOwner = :owner")
+    int releaseLease(@Param("id") Long id, @Param("owner") String owner);
+
+    /**
+     * Moves an async on-ramp from INITIATING to PENDING once its STK push was accepted
+     * @return 1 if the transaction was still initiating, 0 otherwise
+     */
+    @Modifying
+    @Query("UPDATE CryptoTransaction c SET c.transactionStatus = com.javaguy.backend.model.TransactionStatus.PENDING, " +
+            "c.checkoutRequestId = :checkoutRequestId, c.nextCheckAt = :nextCheckAt " +
+            "WHERE c.id = :id AND c.transactionStatus = com.javaguy.backend.model.TransactionStatus.INITIATING")
+    int markStkPushSent(@Param("id") Long id, @Param("checkoutRequestId") String checkoutRequestId,
+                        @Param("nextCheckAt") LocalDateTime nextCheckAt);
+
+    /**
+     * Moves an async on-ramp from INITIATING to FAILED when its STK push could not be sent
+     * @return 1 if the transaction was still initiating, 0 otherwise
+     */
+    @Modifying
+    @Query("UPDATE CryptoTransaction c SET c.transactionStatus = com.javaguy.backend.model.TransactionStatus.FAILED, " +
+            "c.resultDesc = :resultDesc, c.processed = true, c.processedAt = :processedAt " +
+            "WHERE c.id = :id AND c.transactionStatus = com.javaguy.backend.model.TransactionStatus.INITIATING")
+    int markInitiationFailed(@Param("id") Long id, @Param("resultDesc") String resultDesc,
+                             @Param("processedAt") LocalDateTime processedAt);
+
+    /**
+     * Async on-ramps still initiating that were created before the given time
+     */
+    @Query("SELECT c.id AS id, c.walletAddress AS walletAddress, c.createdAt AS createdAt FROM CryptoTransaction c " +
+            "WHERE c.transactionStatus = com.javaguy.backend.model.TransactionStatus.INITIATING " +
+            "AND c.createdAt < :before ORDER BY c.id")
+    List<StaleInitiation> findStaleInitiations(@Param("before") LocalDateTime before);
+
+    /**
+     * Records status checks that came back without a result, for a group of transactions with the same
+     * attempt count and so the same next check time, and gives up this instance's lease on them
+     * @return the number of transactions rescheduled
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE CryptoTransaction c SET c.statusCheckAttempts = :attempts, c.nextCheckAt = :nextCheckAt, " +
+            "c.leaseOwner = null, c.leaseExpiresAt = null " +
+            "WHERE c.id IN :ids AND c.leaseOwner = :owner " +
+            "AND c.transactionStatus = com.javaguy.backend.model.TransactionStatus.PENDING")
+    int rescheduleChecks(@Param("ids") List<Long> ids, @Param("attempts") int attempts,
+                         @Param("nextCheckAt") LocalDateTime nextCheckAt, @Param("owner") String owner);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE CryptoTransaction c SET c.leaseOwner = null, c.leaseExpiresAt = null " +
+            "WHERE c.id IN :ids AND c.leaseOwner = :owner")
+    int releaseLeases(@Param("ids") List<Long> ids, @Param("owner") String owner);
+
+    /**
+     * Gives up on a pending transaction that never got a payment result
+     * @return 1 if the transaction was still pending, 0 otherwise
+     */
+    @Modifying
+    @Query("UPDATE CryptoTransaction c SET c.transactionStatus = com.javaguy.backend.model.TransactionStatus.TIMED_OUT, " +
+            "c.statusCheckAttempts = :attempts, c.processed = true, c.processedAt = :processedAt " +
+            "WHERE c.id = :id AND c.processed = false " +
+            "AND c.transactionStatus = com.javaguy.backend.model.TransactionStatus.PENDING")
+    int markTimedOut(@Param("id") Long id, @Param("attempts") int attempts,
+                     @Param("processedAt") LocalDateTime processedAt);
+
+    /**
+     * Moves a pending transaction to PAID and records the M-Pesa result. Only one caller (callback or
+     * polling sweep) can win this, so a wallet is never credited twice for the same payment.
+     * @return 1 if this caller claimed the transaction, 0 if it was already handled
+     */
+    @Modifying
+    @Query("UPDATE CryptoTransaction c SET c.transactionStatus = com.javaguy.backend.model.TransactionStatus.PAID, " +
+            "c.resultCode = :resultCode, c.resultDesc = :resultDesc, " +
+            "c.mpesaReceiptNumber = COALESCE(:mpesaReceiptNumber, c.mpesaReceiptNumber) " +
+            "WHERE c.id = :id AND c.processed = false " +
+            "AND c.transactionStatus = com.javaguy.backend.model.TransactionStatus.PENDING")
+    int markPaid(@Param("id") Long id, @Param("resultCode") String resultCode,
+                 @Param("resultDesc") String resultDesc, @Param("mpesaReceiptNumber") String mpesaReceiptNumber);
+
+    /**
+     * Moves a pending transaction to FAILED after M-Pesa reported the payment did not go through
+     * @return 1 if the transaction was still pending, 0 otherwise
+     */
+    @Modifying
+    @Query("UPDATE CryptoTransaction c SET c.transactionStatus = com.javaguy.backend.model.TransactionStatus.FAILED, " +
+            "c.resultCode = :resultCode, c.resultDesc = :resultDesc, " +
+            "c.mpesaReceiptNumber = COALESCE(:mpesaReceiptNumber, c.mpesaReceiptNumber), " +
+            "c.processed = true, c.processedAt = :processedAt " +
+            "WHERE c.id = :id AND c.processed = false " +
+            "AND c.transactionStatus = com.javaguy.backend.model.TransactionStatus.PENDING")
+    int markPaymentFailed(@Param("id") Long id, @Param("resultCode") String resultCode,
+                          @Param("resultDesc") String resultDesc, @Param("mpesaReceiptNumber") String mpesaReceiptNumber,
+                          @Param("processedAt") LocalDateTime processedAt);
+
+    /**
+     * Moves a paid transaction to SUBMITTED once its credit is on-chain
+     * @return 1 if the transaction was still paid, 0 otherwise
+     */
+    @Modifying
+    @Query("UPDATE CryptoTransaction c SET c.transactionStatus = com.javaguy.backend.model.TransactionStatus.SUBMITTED, " +
+            "c.txHash = :txHash, c.submittedBlock = :submittedBlock, c.submittedAt = :submittedAt " +
+            "WHERE c.id = :id AND c.transactionStatus = com.javaguy.backend.model.TransactionStatus.PAID")
+    int markSubmitted(@Param("id") Long id, @Param("txHash") String txHash,
+                      @Param("submittedBlock") Long submittedBlock, @Param("submittedAt") LocalDateTime submittedAt);
+
+    /**
+     * Moves a paid transaction to BLOCKCHAIN_ERROR when its credit could not be sent
+     * @return 1 if the transaction was still paid, 0 otherwise
+     */
+    @Modifying
+    @Query("UPDATE CryptoTransaction c SET c.transactionStatus = com.javaguy.backend.model.TransactionStatus.BLOCKCHAIN_ERROR, " +
+            "c.processed = true, c.processedAt = :processedAt " +
+            "WHERE c.id = :id AND c.transactionStatus = com.javaguy.backend.model.TransactionStatus.PAID")
+    int markCreditFailed(@Param("id") Long id, @Param("processedAt") LocalDateTime processedAt);
+
+    /**
+     * Credit transactions sent on-chain but not yet confirmed, one row per hash
+     */
+    @Query("SELECT c.txHash AS txHash, MIN(c.submittedBlock) AS submittedBlock, MIN(c.submittedAt) AS submittedAt, " +
+            "MAX(c.replacedTxHashes) AS replacedTxHashes, MAX(c.cancelTxHashes) AS cancelTxHashes FROM CryptoTransaction c " +
+            "WHERE c.transactionStatus = com.javaguy.backend.model.TransactionStatus.SUBMITTED GROUP BY c.txHash")
+    List<OutstandingSubmission> findOutstandingSubmissions();
+
+    /**
+     * Sets the submitted block of credits sent before the chain head was known, so their bump and drop
+     * timeouts can start
+     * @return the number of transactions updated
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE CryptoTransaction c SET c.submittedBlock = :submittedBlock " +
+            "WHERE c.txHash = :txHash AND c.transactionStatus = com.javaguy.backend.model.TransactionStatus.SUBMITTED " +
+            "AND (c.submittedBlock IS NULL OR c.submittedBlock < 0)")
+    int recordSubmittedBlock(@Param("txHash") String txHash, @Param("submittedBlock") Long submittedBlock);
+
+    /**
+     * Points the credits carried by an on-chain transaction at another transaction with the same nonce:
+     * a replacement sent with higher fees, or an earlier version that was mined instead
+     * @param replacedTxHashes Every earlier hash, comma separated
+     * @param submittedBlock The head block when the transaction now carrying them was sent
+     * @return the number of transactions updated
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE CryptoTransaction c SET c.txHash = :newTxHash, c.replacedTxHashes = :replacedTxHashes, " +
+            "c.submittedBlock = :submittedBlock " +
+            "WHERE c.txHash = :txHash AND c.transactionStatus = com.javaguy.backend.model.TransactionStatus.SUBMITTED")
+    int replaceSubmission(@Param("txHash") String txHash, @Param("newTxHash") String newTxHash,
+                          @Param("replacedTxHashes") String replacedTxHashes, @Param("submittedBlock") Long submittedBlock);
+
+    /**
+     * Records a cancellation sent at the nonce of an on-chain transaction that is not being mined. The credits
+     * stay submitted until a receipt shows whether the transaction or its cancellation used the nonce.
+     * @param cancelTxHashes Every cancellation sent so far, comma separated
+     * @param submittedBlock The head block when it was sent, from which the next attempt is timed
+     * @return the number of transactions updated
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE CryptoTransaction c SET c.cancelTxHashes = :cancelTxHashes, c.submittedBlock = :submittedBlock " +
+            "WHERE c.txHash = :txHash AND c.transactionStatus = com.javaguy.backend.model.TransactionStatus.SUBMITTED")
+    int cancelSubmission(@Param("txHash") String txHash, @Param("cancelTxHashes") String cancelTxHashes,
+                         @Param("submittedBlock") Long submittedBlock);
+
+    /**
+     * Moves every submitted transaction carried by the given on-chain transaction to its final status
+     * @return the number of transactions updated
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE CryptoTransaction c SET c.transactionStatus = :status, c.processed = true, c.processedAt = :processedAt " +
+            "WHERE c.txHash = :txHash AND c.transactionStatus = com.javaguy.backend.model.TransactionStatus.SUBMITTED")
+    int concludeSubmission(@Param("txHash") String txHash, @Param("status") TransactionStatus status,
+                           @Param("processedAt") LocalDateTime processedAt);
+
+    /**
+     * The credits carried by an on-chain transaction that is still waiting for confirmations
+     */
+    @Query("SELECT c.id AS id, c.walletAddress AS walletAddress, c.checkoutRequestId AS checkoutRequestId, " +
+            "c.resultDesc AS resultDesc, c.createdAt AS createdAt FROM CryptoTransaction c " +
+            "WHERE c.txHash = :txHash AND c.transactionStatus = com.javaguy.backend.model.TransactionStatus.SUBMITTED")
+    List<SubmittedCredit> findSubmittedCredits(@Param("txHash") String txHash);
+
+    /**
+     * The M-Pesa result of a transaction, if Daraja has reported one. A recorded result is final: it stays
+     * the same however the credit goes afterwards.
+     */
+    @Query("SELECT c.resultCode AS resultCode, c.resultDesc AS resultDesc FROM CryptoTransaction c " +
+            "WHERE c.checkoutRequestId = :checkoutRequestId AND c.resultCode IS NOT NULL")
+    Optional<PaymentResult> findPaymentResult(@Param("checkoutRequestId") String checkoutRequestId);
+
+    /**
+     * Number of open transactions and the creation time of the oldest one, per status
+     */
+    @Query("SELECT c.transactionStatus AS status, COUNT(c) AS count, MIN(c.createdAt) AS oldestCreatedAt " +
+            "FROM CryptoTransaction c WHERE c.processed = false GROUP BY c.transactionStatus")
+    List<OpenSummary> summarizeOpen();
+
+    interface DueCheck {
+        Long getId();
+
+        LocalDateTime getNextCheckAt();
+    }
+
+    interface StaleInitiation {
+        Long getId();
+
+        String getWalletAddress();
+
+        LocalDateTime getCreatedAt();
+    }
+
+    interface OutstandingSubmission {
+        String getTxHash();
+
+        Long getSubmittedBlock();
+
+        LocalDateTime getSubmittedAt();
+
+        String getReplacedTxHashes();
+
+        String getCancelTxHashes();
+    }
+
+    interface SubmittedCredit {
+        Long getId();
+
+        String getWalletAddress();
+
+        String getCheckoutRequestId();
+
+        String getResultDesc();
+
+        LocalDateTime getCreatedAt();
+    }
+
+    interface PaymentResult {
+        String getResultCode();
+
+        String getResultDesc();
+    }
+
+    interface OpenSummary {
+        TransactionStatus getStatus();
+
+        Long getCount();
+
+        LocalDateTime getOldestCreatedAt();
+    }
 }
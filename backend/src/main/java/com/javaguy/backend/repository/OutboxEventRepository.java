@@ -0,0 +1,53 @@
+package com.javaguy.backend.repository;
+
+import com.javaguy.backend.model.OutboxEvent;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+public interface OutboxEventRepository extends JpaRepository<OutboxEvent, Long> {
+
+    /**
+     * Events no relay has taken yet, oldest first
+     */
+    @Query("SELECT e.id FROM OutboxEvent e WHERE e.dispatchedAt IS NULL ORDER BY e.id")
+    List<Long> findReady(Pageable page);
+
+    /**
+     * Takes an event for dispatch. Only one relay, on any instance, can win this.
+     * @return 1 if this caller took the event, 0 if another relay already did
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE OutboxEvent e SET e.dispatchedAt = :now WHERE e.id = :id AND e.dispatchedAt IS NULL")
+    int markDispatched(@Param("id") Long id, @Param("now") LocalDateTime now);
+
+    /**
+     * Events taken by a relay that never reported back, typically because its instance died mid-send
+     */
+    @Query("SELECT e FROM OutboxEvent e WHERE e.dispatchedAt < :before ORDER BY e.id")
+    List<OutboxEvent> findStaleDispatches(@Param("before") LocalDateTime before);
+
+    /**
+     * Keeps events whose credits are still being sent from looking stale
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE OutboxEvent e SET e.dispatchedAt = :now WHERE e.id IN :ids AND e.dispatchedAt IS NOT NULL")
+    int renewDispatches(@Param("ids") Collection<Long> ids, @Param("now") LocalDateTime now);
+
+    /**
+     * Hands an event back for another dispatch, for a credit that was taken but never sent
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE OutboxEvent e SET e.dispatchedAt = NULL WHERE e.id = :id")
+    int releaseDispatch(@Param("id") Long id);
+}
@@ -0,0 +1,40 @@
+package com.javaguy.backend.repository;
+
+import com.javaguy.backend.model.SenderLease;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+
+public interface SenderLeaseRepository extends JpaRepository<SenderLease, String> {
+
+    /**
+     * Takes the lease if it is free or expired, or extends it if the owner already holds it. The condition
+     * is re-checked by the update itself, so when several instances race only one of them gets the lease.
+     * @return 1 if the owner now holds the lease, 0 if another live instance does or the row does not exist yet
+     */
+    @Transactional
+    @Modifying
+    @Query("UPDATE SenderLease s SET s.leaseOwner = :owner, s.leaseExpiresAt = :expiresAt " +
+            "WHERE s.name = :name AND (s.leaseOwner = :owner OR s.leaseExpiresAt IS NULL OR s.leaseExpiresAt < :now)")
+    int claim(@Param("name") String name, @Param("owner") String owner,
+              @Param("expiresAt") LocalDateTime expiresAt, @Param("now") LocalDateTime now);
+
+    /**
+     * Creates the lease row already held by the owner. Fails with a DataIntegrityViolationException if
+     * another instance created it first.
+     */
+    @Transactional
+    @Modifying
+    @Query("INSERT INTO SenderLease (name, leaseOwner, leaseExpiresAt) VALUES (:name, :owner, :expiresAt)")
+    int create(@Param("name") String name, @Param("owner") String owner, @Param("expiresAt") LocalDateTime expiresAt);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE SenderLease s SET s.leaseOwner = null, s.leaseExpiresAt = null " +
+            "WHERE s.name = :name AND s.leaseOwner = :owner")
+    int release(@Param("name") String name, @Param("owner") String owner);
+}
@@ -0,0 +1,46 @@
+package com.javaguy.backend.scheduler;
+
+import com.javaguy.backend.event.NewBlockEvent;
+import com.javaguy.backend.service.BlockchainService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class BlockHeadTracker {
+
+    private final BlockchainService blockchainService;
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final AtomicLong latestBlock = new AtomicLong(-1L);
+
+    /**
+     * Polls the chain head and publishes a NewBlockEvent each time it moves
+     */
+    @Scheduled(fixedDelayString = "${crypto.confirmation.poll-interval-ms:2000}")
+    public void poll() {
+        try {
+            long head = blockchainService.getBlockNumber();
+            long previous = latestBlock.getAndSet(head);
+            if (head != previous) {
+                log.debug("New block {}", head);
+                eventPublisher.publishEvent(new NewBlockEvent(head));
+            }
+        } catch (Exception e) {
+            log.warn("Failed to fetch block number: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * The last head block seen, or -1 before the first successful poll
+     */
+    public long latestBlock() {
+        return latestBlock.get();
+    }
+}
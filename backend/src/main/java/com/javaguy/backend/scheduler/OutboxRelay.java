@@ -0,0 +1,275 @@
+package com.javaguy.backend.scheduler;
+
+import com.javaguy.backend.event.CreditReadyEvent;
+import com.javaguy.backend.model.CryptoTransaction;
+import com.javaguy.backend.model.OutboxEvent;
+import com.javaguy.backend.model.TransactionStatus;
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import com.javaguy.backend.repository.OutboxEventRepository;
+import com.javaguy.backend.service.CreditBatcher;
+import com.javaguy.backend.service.CreditSenderLease;
+import com.javaguy.backend.service.ExchangeRateProvider;
+import com.javaguy.backend.service.TransactionStateMachine;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Drives paid transactions to the chain. Each CREDIT_WALLET outbox event is taken by exactly one relay,
+ * credited through the CreditBatcher with no database connection held, and consumed in the same short
+ * transaction that moves the transaction on to SUBMITTED or BLOCKCHAIN_ERROR. Only the instance holding the
+ * CreditSenderLease dispatches; on the others events wait for the holder's next poll.
+ */
+@Component
+@Slf4j
+public class OutboxRelay {
+
+    private static final long SHUTDOWN_GRACE_SECONDS = 5;
+
+    private final OutboxEventRepository outboxEventRepository;
+    private final CryptoTransactionRepository transactionRepository;
+    private final TransactionStateMachine stateMachine;
+    private final CreditBatcher creditBatcher;
+    private final BlockHeadTracker blockHeadTracker;
+    private final ExchangeRateProvider exchangeRateProvider;
+    private final CreditSenderLease creditSenderLease;
+
+    @Value("${transactions.outbox.page-size:200}")
+    private int pageSize;
+    @Value("${transactions.outbox.stale-after-seconds:600}")
+    private long staleAfterSeconds;
+    @Value("${transactions.outbox.credit-timeout-ms:60000}")
+    private long creditTimeoutMs;
+
+    // Every dispatch blocks until its batch is sent, so each gets its own virtual thread
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    // Events this instance has taken and not yet consumed, kept fresh so no relay mistakes them for stale
+    private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+    // Credits whose dispatch is still waiting for the batcher, by outbox event
+    private final Map<Long, CompletableFuture<String>> waiting = new ConcurrentHashMap<>();
+
+    public OutboxRelay(OutboxEventRepository outboxEventRepository,
+                       CryptoTransactionRepository transactionRepository,
+                       TransactionStateMachine stateMachine,
+                       CreditBatcher creditBatcher,
+                       BlockHeadTracker blockHeadTracker,
+                       ExchangeRateProvider exchangeRateProvider,
+                       CreditSenderLease creditSenderLease) {
+        this.outboxEventRepository = outboxEventRepository;
+        this.transactionRepository = transactionRepository;
+        this.stateMachine = stateMachine;
+        this.creditBatcher = creditBatcher;
+        this.blockHeadTracker = blockHeadTracker;
+        this.exchangeRateProvider = exchangeRateProvider;
+        this.creditSenderLease = creditSenderLease;
+    }
+
+    /**
+     * Dispatches a credit as soon as the transaction that queued it commits
+     */
+    @TransactionalEventListener
+    public void onCreditReady(CreditReadyEvent event) {
+        if (creditSenderLease.isHeld()) {
+            executor.execute(() -> dispatch(event.outboxEventId()));
+        }
+    }
+
+    /**
+     * Picks up events whose immediate dispatch never happened, for example because the instance
+     * restarted right after the commit, or because they were written by another instance that is gone
+     */
+    @Scheduled(fixedDelayString = "${transactions.outbox.poll-interval-ms:5000}")
+    public void poll() {
+        try {
+            if (creditSenderLease.isHeld()) {
+                List<Long> ready = outboxEventRepository.findReady(PageRequest.of(0, pageSize));
+                ready.forEach(id -> executor.execute(() -> dispatch(id)));
+            }
+            renewInFlight();
+            failStaleDispatches();
+        } catch (Exception e) {
+            log.warn("Failed to poll the outbox: {}", e.getMessage());
+        }
+    }
+
+    private void dispatch(Long outboxEventId) {
+        boolean taken = false;
+        boolean handedOver = false;
+        try {
+            // The lease may have been lost since the dispatch was queued
+            if (!creditSenderLease.isHeld()
+                    || outboxEventRepository.markDispatched(outboxEventId, LocalDateTime.now()) == 0) {
+                return;
+            }
+            taken = true;
+            inFlight.add(outboxEventId);
+
+            Optional<OutboxEvent> event = outboxEventRepository.findById(outboxEventId);
+            if (event.isEmpty()) {
+                inFlight.remove(outboxEventId);
+                return;
+            }
+            Long transactionId = event.get().getTransactionId();
+            Optional<CryptoTransaction> transaction = transactionRepository.findById(transactionId);
+            if (transaction.isEmpty() || transaction.get().getTransactionStatus() != TransactionStatus.PAID) {
+                log.warn("Transaction {} is not awaiting a credit, dropping outbox event {}", transactionId, outboxEventId);
+                outboxEventRepository.deleteById(outboxEventId);
+                inFlight.remove(outboxEventId);
+                return;
+            }
+
+            log.info("Transaction successful, crediting wallet");
+
+            // Converted at the rate locked in at initiation; older rows predate locking and take today's
+            long exchangeRateMicros = transaction.get().getExchangeRateMicros() != null
+                    ? transaction.get().getExchangeRateMicros()
+                    : exchangeRateProvider.current().kesPerUsdcMicros();
+
+            // Hand the credit to the batcher, which sends it with other ready credits
+            CompletableFuture<String> credit = creditBatcher.creditWallet(
+                    transaction.get().getWalletAddress(), transaction.get().getAmountKES(), exchangeRateMicros);
+            handedOver = true;
+
+            String txHash;
+            waiting.put(outboxEventId, credit);
+            try {
+                txHash = credit.get(creditTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                awaitLateCredit(transaction.get(), outboxEventId, credit);
+                return;
+            } catch (CancellationException e) {
+                // The credit never left the batcher, so it is safe to send on the next start
+                log.warn("Credit for transaction {} was not sent before shutdown, releasing outbox event {}",
+                        transactionId, outboxEventId);
+                outboxEventRepository.releaseDispatch(outboxEventId);
+                inFlight.remove(outboxEventId);
+                return;
+            } finally {
+                waiting.remove(outboxEventId);
+            }
+            recordCredit(transaction.get(), outboxEventId, txHash);
+        } catch (Exception e) {
+            log.error("Error dispatching outbox event {}: {}", outboxEventId, e.getMessage(), e);
+            if (taken && !handedOver) {
+                // The credit certainly never went out, so let the next poll try again rather than fail it as stale
+                releaseQuietly(outboxEventId);
+            }
+            inFlight.remove(outboxEventId);
+        }
+    }
+
+    private void releaseQuietly(Long outboxEventId) {
+        try {
+            outboxEventRepository.releaseDispatch(outboxEventId);
+        } catch (Exception e) {
+            log.error("Failed to release outbox event {}: {}", outboxEventId, e.getMessage());
+        }
+    }
+
+    /**
+     * A credit that outlived the timeout is never reported as failed, since it may still go out. If it has
+     * not left the batcher's queue it is withdrawn and the event handed back for another dispatch; otherwise
+     * its send is under way and the result is recorded whenever the send finishes. Either way the
+     * transaction stays PAID meanwhile.
+     */
+    private void awaitLateCredit(CryptoTransaction transaction, Long outboxEventId, CompletableFuture<String> credit) {
+        if (creditBatcher.withdraw(credit)) {
+            log.warn("Credit for transaction {} was not sent within {} ms, releasing outbox event {} for another dispatch",
+                    transaction.getId(), creditTimeoutMs, outboxEventId);
+            outboxEventRepository.releaseDispatch(outboxEventId);
+            inFlight.remove(outboxEventId);
+            return;
+        }
+
+        log.warn("Credit for transaction {} is still being sent after {} ms, recording it once the send finishes",
+                transaction.getId(), creditTimeoutMs);
+        credit.whenCompleteAsync((txHash, error) -> {
+            try {
+                if (isNotSent(error)) {
+                    outboxEventRepository.releaseDispatch(outboxEventId);
+                    inFlight.remove(outboxEventId);
+                    return;
+                }
+                recordCredit(transaction, outboxEventId, error == null ? txHash : null);
+            } catch (Exception e) {
+                inFlight.remove(outboxEventId);
+                log.error("Error recording late credit for outbox event {}: {}", outboxEventId, e.getMessage(), e);
+            }
+        }, executor);
+    }
+
+    // A credit cancelled by the batcher or the relay was never sent
+    private static boolean isNotSent(Throwable error) {
+        return error instanceof CancellationException || error != null && error.getCause() instanceof CancellationException;
+    }
+
+    private void recordCredit(CryptoTransaction transaction, Long outboxEventId, String txHash) {
+        if (txHash != null) {
+            // Completed by the ConfirmationTracker once the transaction has enough confirmations
+            stateMachine.recordSubmission(transaction, outboxEventId, txHash, blockHeadTracker.latestBlock());
+        } else {
+            stateMachine.recordCreditFailure(transaction, outboxEventId);
+            log.error("Failed to credit wallet for transaction: {}. Please check blockchain service logs.",
+                    transaction.getCheckoutRequestId());
+        }
+        inFlight.remove(outboxEventId);
+    }
+
+    private void renewInFlight() {
+        if (!inFlight.isEmpty()) {
+            outboxEventRepository.renewDispatches(List.copyOf(inFlight), LocalDateTime.now());
+        }
+    }
+
+    /**
+     * An event taken long ago but never consumed belongs to a relay that died between taking it and
+     * recording the result; live relays keep theirs fresh. Its credit may or may not have gone out, so
+     * rather than risk paying twice the transaction is marked BLOCKCHAIN_ERROR for manual reconciliation.
+     */
+    private void failStaleDispatches() {
+        List<OutboxEvent> stale = outboxEventRepository.findStaleDispatches(
+                LocalDateTime.now().minusSeconds(staleAfterSeconds));
+        for (OutboxEvent event : stale) {
+            log.error("Outbox event {} for transaction {} was dispatched at {} and never completed, " +
+                    "marking it BLOCKCHAIN_ERROR", event.getId(), event.getTransactionId(), event.getDispatchedAt());
+            Optional<CryptoTransaction> transaction = transactionRepository.findById(event.getTransactionId());
+            if (transaction.isPresent()) {
+                stateMachine.recordCreditFailure(transaction.get(), event.getId());
+            } else {
+                outboxEventRepository.deleteById(event.getId());
+            }
+        }
+    }
+
+    /**
+     * Takes back every credit still queued in the batcher, whose dispatches then hand their events back for
+     * the next start, and gives them a moment to do so while the repositories are still open
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        waiting.forEach((outboxEventId, credit) -> {
+            if (creditBatcher.withdraw(credit)) {
+                credit.completeExceptionally(new CancellationException("Relay stopped before the credit was sent"));
+            }
+        });
+        executor.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS);
+    }
+}
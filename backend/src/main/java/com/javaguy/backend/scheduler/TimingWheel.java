@@ -0,0 +1,88 @@
+package com.javaguy.backend.scheduler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A hashed timing wheel. Items are hashed into slots by the tick they fall due on, so advancing the
+ * wheel only looks at the slots for the ticks that passed instead of at every scheduled item.
+ * Items more than one revolution away share a slot with nearer ones and are skipped until their turn.
+ * An item never comes out before it is due, and at most one tick after.
+ * Thread safe; every method locks the wheel, and none of them does more than touch a few slots.
+ */
+public class TimingWheel<T> {
+
+    private final long tickMillis;
+    private final List<List<Entry<T>>> slots;
+    private final long startMillis;
+    private long currentTick;
+    private int size;
+
+    public TimingWheel(int slotCount, long tickMillis, long startMillis) {
+        if (slotCount <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("slotCount and tickMillis must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.startMillis = startMillis;
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Schedules an item. Anything already due comes out on the next advance.
+     * @param dueAtMillis When the item falls due, in epoch milliseconds
+     */
+    public synchronized void schedule(T item, long dueAtMillis) {
+        // Rounded up: an item due part way through a tick waits for the tick to end, not just to start
+        long tick = Math.max(Math.ceilDiv(dueAtMillis - startMillis, tickMillis), currentTick + 1);
+        slots.get(slotOf(tick)).add(new Entry<>(item, tick));
+        size++;
+    }
+
+    /**
+     * Moves the wheel up to the given time
+     * @param nowMillis The current time, in epoch milliseconds
+     * @return every item that fell due since the last advance
+     */
+    public synchronized List<T> advance(long nowMillis) {
+        long targetTick = tickOf(nowMillis);
+        if (targetTick <= currentTick) {
+            return List.of();
+        }
+
+        List<T> due = new ArrayList<>();
+        // After a long pause one pass over the whole wheel is enough
+        long steps = Math.min(targetTick - currentTick, slots.size());
+        for (long step = 1; step <= steps; step++) {
+            Iterator<Entry<T>> entries = slots.get(slotOf(currentTick + step)).iterator();
+            while (entries.hasNext()) {
+                Entry<T> entry = entries.next();
+                if (entry.tick() <= targetTick) {
+                    due.add(entry.item());
+                    entries.remove();
+                }
+            }
+        }
+        currentTick = targetTick;
+        size -= due.size();
+        return due;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private long tickOf(long millis) {
+        return Math.floorDiv(millis - startMillis, tickMillis);
+    }
+
+    private int slotOf(long tick) {
+        return (int) Math.floorMod(tick, (long) slots.size());
+    }
+
+    private record Entry<T>(T item, long tick) {
+    }
+}
@@ -1,44 +1,189 @@
 package com.javaguy.backend.scheduler;
 
 import com.javaguy.backend.model.CryptoTransaction;
-import com.javaguy.backend.repository.CryptoTransactionRepository;
+import com.javaguy.backend.repository.CryptoTransactionRepository.DueCheck;
+import com.javaguy.backend.service.StatusCheckWriter;
+import com.javaguy.backend.service.TransactionClaimer;
+import com.javaguy.backend.service.TransactionClaimer.DuePage;
 import com.javaguy.backend.service.TransactionService;
-import lombok.RequiredArgsConstructor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Component
 @EnableScheduling
 @Slf4j
-@RequiredArgsConstructor
 public class TransactionStatusChecker {
 
-    private final CryptoTransactionRepository transactionRepository;
+    private final TransactionClaimer transactionClaimer;
     private final TransactionService transactionService;
+    private final StatusCheckWriter statusCheckWriter;
+
+    @Value("${transactions.status-check.page-size:200}")
+    private int pageSize;
+    @Value("${transactions.status-check.refill-interval-ms:5000}")
+    private long refillIntervalMs;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore permits;
+    // Due checks for the near future; rows further out stay in the database until a later refill
+    private final TimingWheel<Long> wheel;
+    private final Set<Long> scheduled = ConcurrentHashMap.newKeySet();
+    // Transactions queued for or being checked right now
+    private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final Timer refillTimer;
+    private final Counter checksStarted;
+    private final Timer checkLag;
+
+    public TransactionStatusChecker(TransactionClaimer transactionClaimer,
+                                    TransactionService transactionService,
+                                    StatusCheckWriter statusCheckWriter,
+                                    MeterRegistry meterRegistry,
+                                    @Value("${transactions.status-check.max-concurrency:8}") int maxConcurrency,
+                                    @Value("${transactions.status-check.wheel-slots:512}") int wheelSlots,
+                                    @Value("${transactions.status-check.tick-ms:1000}") long tickMs) {
+        this.transactionClaimer = transactionClaimer;
+        this.transactionService = transactionService;
+        this.statusCheckWriter = statusCheckWriter;
+        this.permits = new Semaphore(maxConcurrency);
+        this.wheel = new TimingWheel<>(wheelSlots, tickMs, System.currentTimeMillis());
+        this.refillTimer = meterRegistry.timer("transactions.sweep.duration");
+        this.checksStarted = meterRegistry.counter("transactions.status-check.started");
+        // How late checks start compared to their scheduled time
+        this.checkLag = meterRegistry.timer("transactions.status-check.lag");
+        meterRegistry.gauge("transactions.sweep.queue.depth", queueDepth);
+        meterRegistry.gauge("transactions.sweep.in.flight", inFlight, Set::size);
+        meterRegistry.gauge("transactions.status-check.scheduled", scheduled, Set::size);
+    }
 
     /**
-     * Scheduled task to check pending transactions
-     * Runs every 5 seconds
+     * Fallback for transactions whose STK push callback never arrived. Loads the pending rows falling due
+     * within the next two refill intervals into the timing wheel; each row's next check time comes from its
+     * own backoff schedule, so fresh payments are checked soon and old ones rarely. Rows already in the wheel
+     * or being checked are skipped.
      */
-    @Scheduled(fixedRate = 5000L)
-    public void checkPendingTransactions() {
-        log.info("Checking pending transactions");
+    @Scheduled(fixedDelayString = "${transactions.status-check.refill-interval-ms:5000}")
+    public void refill() {
+        long started = System.nanoTime();
+        try {
+            LocalDateTime dueBefore = LocalDateTime.now().plus(Duration.ofMillis(2 * refillIntervalMs));
+            long afterId = 0L;
+            int added = 0;
+            boolean hasMore = true;
+
+            // Walk the due set one keyset page at a time so memory stays bounded at any table size
+            while (hasMore) {
+                DuePage page = transactionClaimer.findDue(afterId, dueBefore, pageSize);
+                afterId = page.lastId();
+                hasMore = page.hasMore();
+
+                for (DueCheck check : page.checks()) {
+                    if (inFlight.contains(check.getId()) || !scheduled.add(check.getId())) {
+                        continue;
+                    }
+                    wheel.schedule(check.getId(), toEpochMillis(check.getNextCheckAt()));
+                    added++;
+                }
+            }
 
-        List<CryptoTransaction> pendingTransactions = transactionRepository.findPendingTransactions();
+            if (added > 0) {
+                log.debug("Scheduled {} status checks ({} in the wheel)", added, wheel.size());
+            }
+        } catch (Exception e) {
+            log.error("Failed to load due status checks: {}", e.getMessage(), e);
+        } finally {
+            refillTimer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
 
-        log.info("Found {} pending transactions", pendingTransactions.size());
+    /**
+     * Advances the wheel and checks whatever fell due. Only the due rows are claimed and touched;
+     * every replica runs this, and the lease makes sure each row is checked by a single instance.
+     */
+    @Scheduled(fixedRateString = "${transactions.status-check.tick-ms:1000}")
+    public void tick() {
+        List<Long> due = wheel.advance(System.currentTimeMillis());
+        if (due.isEmpty()) {
+            return;
+        }
+        due.forEach(scheduled::remove);
 
-        for (CryptoTransaction transaction : pendingTransactions) {
-            try {
-                transactionService.processTransaction(transaction);
-            } catch (Exception e) {
-                log.error("Error processing transaction {}: {}",
-                        transaction.getCheckoutRequestId(), e.getMessage(), e);
+        try {
+            for (int from = 0; from < due.size(); from += pageSize) {
+                List<Long> ids = due.subList(from, Math.min(from + pageSize, due.size()));
+                for (CryptoTransaction transaction : transactionClaimer.claim(ids)) {
+                    if (!inFlight.add(transaction.getId())) {
+                        continue;
+                    }
+                    queueDepth.incrementAndGet();
+                    checksStarted.increment();
+                    if (transaction.getNextCheckAt() != null) {
+                        checkLag.record(Duration.between(transaction.getNextCheckAt(), LocalDateTime.now()));
+                    }
+                    executor.execute(() -> process(transaction));
+                }
             }
+        } catch (Exception e) {
+            log.error("Failed to claim {} due transactions: {}", due.size(), e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Processes one transaction once a concurrency permit is free. No separate timeout is needed: the
+     * Daraja query is bounded by the stk-query call-timeout-ms, and the permit is held until the check
+     * has finished, so a slow check never lets more than max-concurrency run at once.
+     */
+    private void process(CryptoTransaction transaction) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queueDepth.decrementAndGet();
+            inFlight.remove(transaction.getId());
+            return;
         }
+        queueDepth.decrementAndGet();
+
+        try {
+            transactionService.processTransaction(transaction);
+        } catch (Exception e) {
+            log.error("Error processing transaction {}: {}",
+                    transaction.getCheckoutRequestId(), e.getMessage(), e);
+        } finally {
+            // Written with the other checks' outcomes, after any reschedule this check queued
+            statusCheckWriter.release(transaction.getId());
+            permits.release();
+            inFlight.remove(transaction.getId());
+        }
+    }
+
+    private static long toEpochMillis(LocalDateTime time) {
+        return time == null
+                ? System.currentTimeMillis()
+                : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
     }
-}
\ No newline at end of file
+}
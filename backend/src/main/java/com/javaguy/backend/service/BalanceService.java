@@ -0,0 +1,112 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.event.NewBlockEvent;
+import com.javaguy.backend.scheduler.BlockHeadTracker;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves USDC balances from a cache keyed by wallet and block number. Balances only change between
+ * blocks, so repeated reads within a block are free; entries for older blocks are dropped as soon as
+ * the head moves, and a wallet is evicted early when one of our credits to it is mined.
+ */
+@Service
+@Slf4j
+public class BalanceService {
+
+    private final BlockchainService blockchainService;
+    private final BlockHeadTracker blockHeadTracker;
+
+    private final Map<String, CachedBalance> cache = new ConcurrentHashMap<>();
+
+    private final Counter cacheHits;
+    private final Counter cacheMisses;
+
+    public BalanceService(BlockchainService blockchainService, BlockHeadTracker blockHeadTracker,
+                          MeterRegistry meterRegistry) {
+        this.blockchainService = blockchainService;
+        this.blockHeadTracker = blockHeadTracker;
+        this.cacheHits = meterRegistry.counter("blockchain.balance.cache", "result", "hit");
+        this.cacheMisses = meterRegistry.counter("blockchain.balance.cache", "result", "miss");
+        meterRegistry.gauge("blockchain.balance.cache.size", cache, Map::size);
+    }
+
+    /**
+     * Gets USDC balances for the given wallets at the current head block.
+     * Wallets not cached for that block are fetched together in one batched call.
+     * @param walletAddresses The wallets to read, already validated
+     * @return the head block number and the balance of each wallet
+     */
+    public Balances getBalances(Collection<String> walletAddresses) throws IOException {
+        long block = blockHeadTracker.latestBlock();
+        if (block < 0) {
+            block = blockchainService.getBlockNumber();
+        }
+
+        Map<String, BigDecimal> balances = new LinkedHashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+
+        for (String walletAddress : walletAddresses) {
+            String key = normalize(walletAddress);
+            CachedBalance cached = cache.get(key);
+            if (cached != null && cached.blockNumber() == block) {
+                balances.put(key, cached.balance());
+            } else {
+                missing.add(key);
+            }
+        }
+
+        cacheHits.increment(balances.size());
+        cacheMisses.increment(missing.size());
+
+        if (!missing.isEmpty()) {
+            Map<String, BigDecimal> fetched = blockchainService.getUSDCBalances(new ArrayList<>(missing), block);
+            for (Map.Entry<String, BigDecimal> entry : fetched.entrySet()) {
+                cache.put(entry.getKey(), new CachedBalance(block, entry.getValue()));
+                balances.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return new Balances(block, balances);
+    }
+
+    /**
+     * Drops cached balances for wallets that just received a credit
+     */
+    public void invalidate(Collection<String> walletAddresses) {
+        walletAddresses.forEach(walletAddress -> cache.remove(normalize(walletAddress)));
+    }
+
+    /**
+     * Balances read at an older block are stale once the head moves
+     */
+    @EventListener
+    public void onNewBlock(NewBlockEvent event) {
+        cache.values().removeIf(cached -> cached.blockNumber() < event.blockNumber());
+    }
+
+    private String normalize(String walletAddress) {
+        String address = walletAddress.toLowerCase(Locale.ROOT);
+        return address.startsWith("0x") ? address : "0x" + address;
+    }
+
+    public record Balances(long blockNumber, Map<String, BigDecimal> balances) {
+    }
+
+    private record CachedBalance(long blockNumber, BigDecimal balance) {
+    }
+}
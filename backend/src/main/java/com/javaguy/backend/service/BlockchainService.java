@@ -1,26 +1,43 @@
 package com.javaguy.backend.service;
 
+import com.javaguy.backend.event.NewBlockEvent;
+import com.javaguy.backend.model.KesAmount;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.OkHttpClient;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 import org.web3j.abi.FunctionEncoder;
 import org.web3j.abi.FunctionReturnDecoder;
 import org.web3j.abi.TypeReference;
 import org.web3j.abi.datatypes.Address;
 import org.web3j.abi.datatypes.Bool;
+import org.web3j.abi.datatypes.DynamicArray;
 import org.web3j.abi.datatypes.Function;
 import org.web3j.abi.datatypes.Type;
 import org.web3j.abi.datatypes.generated.Uint256;
+import org.web3j.abi.datatypes.generated.Uint8;
 import org.web3j.crypto.Credentials;
+import org.web3j.crypto.Hash;
 import org.web3j.crypto.RawTransaction;
 import org.web3j.crypto.TransactionEncoder;
 import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.DefaultBlockParameter;
 import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
 import org.web3j.protocol.core.methods.request.Transaction;
+import org.web3j.protocol.core.methods.response.EthBlockNumber;
 import org.web3j.protocol.core.methods.response.EthCall;
 import org.web3j.protocol.core.methods.response.EthGetBalance;
-import org.web3j.protocol.core.methods.response.EthGetTransactionCount;
+import org.web3j.protocol.core.methods.response.EthGetTransactionReceipt;
 import org.web3j.protocol.core.methods.response.EthSendTransaction;
+import org.web3j.protocol.core.methods.response.EthTransaction;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
 import org.web3j.protocol.http.HttpService;
 import org.web3j.utils.Convert;
 import org.web3j.utils.Numeric;
@@ -29,9 +46,13 @@ import jakarta.annotation.PostConstruct;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 @Service
@@ -44,32 +65,95 @@ public class BlockchainService {
     private final String usdcTokenAddress = "0xB97EF9Ef8734C71904D8002F8b6Bc66Dd9c48a6E";
     private final long chainId = 43113;
 
-    @Value("${crypto.exchange-rate}")
-    private Double exchangeRate;
+    @Value("${crypto.rpc-url:https://api.avax-test.network/ext/bc/C/rpc}")
+    private String rpcUrl;
+    @Value("${crypto.private-key:xxxxxx}")
+    private String privateKey;
+    @Value("${crypto.batch.gas-per-credit:80000}")
+    private long batchGasPerCredit;
+    @Value("${crypto.confirmation.rpc-batch-size:200}")
+    private int rpcBatchSize;
+    @Value("${crypto.token.decimals:6}")
+    private int tokenDecimals;
+    @Value("${crypto.gas.fee-history-blocks:20}")
+    private int feeHistoryBlocks;
+    @Value("${crypto.gas.reward-percentile:50}")
+    private double rewardPercentile;
+    @Value("${crypto.gas.min-priority-fee-gwei:1}")
+    private long minPriorityFeeGwei;
+    @Value("${crypto.gas.max-fee-cap-gwei:200}")
+    private long maxFeeCapGwei;
+    @Value("${crypto.gas.fallback-max-fee-gwei:30}")
+    private long fallbackMaxFeeGwei;
+    @Value("${crypto.gas.estimate-margin-percent:25}")
+    private int estimateMarginPercent;
+    @Value("${crypto.gas.estimate-max-age-seconds:600}")
+    private long estimateMaxAgeSeconds;
+    @Value("${crypto.gas.bump-percent:15}")
+    private int bumpPercent;
+
+    // Enough to replace any credit still waiting to be mined
+    private static final int MAX_REMEMBERED_SENDS = 1024;
+    // A plain transfer with no data always costs exactly this
+    private static final BigInteger TRANSFER_GAS_LIMIT = BigInteger.valueOf(21_000);
+
+    /**
+     * What a sent transaction needs to be sent again with higher fees
+     */
+    private record Sent(BigInteger nonce, String to, BigInteger gasLimit, String data, FeeOracle.Fees fees) {
+    }
+
+    private final OkHttpClient rpcHttpClient;
+    private final OnRampMetrics metrics;
+    private final MeterRegistry meterRegistry;
 
     private Web3j web3j;
     private Credentials credentials;
-    private BigInteger gasPrice;
+    private NonceManager nonceManager;
+    private FeeOracle feeOracle;
+    private GasEstimator gasEstimator;
+    private Counter replacements;
+    private Counter cancellations;
     private BigInteger gasLimit;
 
+    private final Map<String, Sent> sent = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Sent> eldest) {
+            return size() > MAX_REMEMBERED_SENDS;
+        }
+    };
+
+    public BlockchainService(@Qualifier("rpcHttpClient") OkHttpClient rpcHttpClient, OnRampMetrics metrics,
+                             MeterRegistry meterRegistry) {
+        this.rpcHttpClient = rpcHttpClient;
+        this.metrics = metrics;
+        this.meterRegistry = meterRegistry;
+    }
+
     @PostConstruct
     public void init() {
         try {
-            // Connect to Avalanche Fuji testnet
-            String rpcUrl = "https://api.avax-test.network/ext/bc/C/rpc";
-            web3j = Web3j.build(new HttpService(rpcUrl));
+            // Connect to Avalanche Fuji testnet, or the node set in crypto.rpc-url
+            web3j = Web3j.build(new HttpService(rpcUrl, rpcHttpClient));
 
             // Load credentials from private key
-            String privateKey = "xxxxxx";
             credentials = Credentials.create(privateKey);
 
             // Log wallet address for funding and verification
             String walletAddress = credentials.getAddress();
             log.info("Blockchain service initialized with wallet: {}", walletAddress);
-
-            // Set gas parameters - reduced for testnet
-            gasPrice = BigInteger.valueOf(30_000_000_000L); // 30 Gwei
+            nonceManager = new NonceManager(web3j, walletAddress);
+
+            // Fees follow the chain's fee history and gas limits come from estimates; the
+            // fixed limit is only used when the node cannot estimate a call
+            feeOracle = new FeeOracle(web3j, meterRegistry, feeHistoryBlocks, rewardPercentile,
+                    minPriorityFeeGwei, maxFeeCapGwei, fallbackMaxFeeGwei);
+            gasEstimator = new GasEstimator(web3j, meterRegistry, estimateMarginPercent,
+                    Duration.ofSeconds(estimateMaxAgeSeconds));
+            replacements = meterRegistry.counter("crypto.gas.replacements");
+            cancellations = meterRegistry.counter("crypto.gas.cancellations");
             gasLimit = BigInteger.valueOf(500_000L); // 500,000 gas units
+            refreshFees();
 
             // Check AVAX balance
             EthGetBalance ethGetBalance = web3j.ethGetBalance(walletAddress,
@@ -84,6 +168,9 @@ public class BlockchainService {
                // log.warn("Get test AVAX from: https://faucet.avax.network/");
             }
 
+            // Credits are converted with the token's own decimals, not an assumed scale
+            tokenDecimals = readTokenDecimals();
+
             // Check if we can connect to the contract
             boolean contractAccessible = checkContractAccessible();
             if (contractAccessible) {
@@ -101,79 +188,302 @@ public class BlockchainService {
      * Calls the smart contract to credit the user's wallet with USDC tokens
      * @param walletAddress The user's wallet address
      * @param amountKES The amount in KES to convert to USDC
+     * @param kesPerUsdcMicros The rate locked in when the on-ramp was initiated, in millionths
      * @return true if successful, false otherwise
      */
-    public boolean creditWallet(String walletAddress, Double amountKES) {
-        try {
-            // Validate inputs
-            if (!isValidAddress(walletAddress)) {
-                log.error("Invalid wallet address format: {}", walletAddress);
-                return false;
-            }
-
-            if (amountKES <= 0) {
-                log.error("Amount must be positive: {}", amountKES);
-                return false;
-            }
+    public boolean creditWallet(String walletAddress, KesAmount amountKES, long kesPerUsdcMicros) {
+        BigInteger tokenAmount = toTokenAmount(walletAddress, amountKES, kesPerUsdcMicros);
+        return tokenAmount != null
+                && sendCredits(List.of(walletAddress), List.of(tokenAmount)) != null;
+    }
 
-            // Convert KES to USDC (assuming 1:1 with USD and using the exchange rate)
-            double amountUSDC = amountKES / exchangeRate;
-            log.info("Converting {} KES to {} USDC (rate: {})",
-                    amountKES, amountUSDC, exchangeRate);
+    /**
+     * Validates a credit and converts the KES amount into token units, rounding down
+     * @param walletAddress The user's wallet address
+     * @param amountKES The amount in KES to convert to USDC
+     * @param kesPerUsdcMicros The rate locked in when the on-ramp was initiated, in millionths
+     * @return the token amount, or null if the credit is invalid
+     */
+    public BigInteger toTokenAmount(String walletAddress, KesAmount amountKES, long kesPerUsdcMicros) {
+        // Validate inputs
+        if (!isValidAddress(walletAddress)) {
+            log.error("Invalid wallet address format: {}", walletAddress);
+            return null;
+        }
 
-            // USDC uses 6 decimal places
-            BigInteger tokenAmount = BigDecimal.valueOf(amountUSDC)
-                    .multiply(BigDecimal.valueOf(1_000_000_000_000_000_000L))
-                    .toBigInteger();
+        if (amountKES == null || amountKES.cents() == 0) {
+            log.error("Amount must be positive: {}", amountKES);
+            return null;
+        }
 
-            // Get the current nonce for our wallet
-            EthGetTransactionCount ethGetTransactionCount = web3j
-                    .ethGetTransactionCount(credentials.getAddress(), DefaultBlockParameterName.LATEST)
-                    .send();
-            BigInteger nonce = ethGetTransactionCount.getTransactionCount();
+        if (kesPerUsdcMicros <= 0) {
+            log.error("Exchange rate must be positive: {}", kesPerUsdcMicros);
+            return null;
+        }
 
-            // Create the function call to credit wallet
-            Function function = createCreditUserWalletFunction(walletAddress, tokenAmount);
-            String encodedFunction = FunctionEncoder.encode(function);
+        long tokenUnits;
+        try {
+            tokenUnits = amountKES.toTokenUnits(kesPerUsdcMicros, tokenDecimals);
+        } catch (ArithmeticException e) {
+            log.error("{} KES does not fit in token units at {} micro-KES per USDC", amountKES, kesPerUsdcMicros);
+            return null;
+        }
+        log.info("Converting {} KES to {} USDC units (rate: {} micro-KES, {} decimals)",
+                amountKES, tokenUnits, kesPerUsdcMicros, tokenDecimals);
 
-            // Create and sign the raw transaction with the chain ID
-            RawTransaction rawTransaction = RawTransaction.createTransaction(
-                    nonce,
-                    gasPrice,
-                    gasLimit,
-                    contractAddress,
-                    BigInteger.ZERO,
-                    encodedFunction
-            );
+        return BigInteger.valueOf(tokenUnits);
+    }
 
-            byte[] signedMessage = TransactionEncoder.signMessage(rawTransaction, chainId, credentials);
-            String hexValue = Numeric.toHexString(signedMessage);
+    /**
+     * Sends a single transaction crediting every recipient. More than one recipient goes through
+     * the contract's batchConcludeOnRampTransfer entry point.
+     * @param walletAddresses The recipients, already validated
+     * @param tokenAmounts The token amount for each recipient
+     * @return the transaction hash, or null if the transaction was not accepted
+     */
+    public String sendCredits(List<String> walletAddresses, List<BigInteger> tokenAmounts) {
+        long started = System.nanoTime();
+        String transactionHash = send(walletAddresses, tokenAmounts);
+        metrics.recordStage(OnRampMetrics.Stage.CREDIT_SEND, started, transactionHash != null);
+        return transactionHash;
+    }
 
-            // Send the transaction
-            EthSendTransaction ethSendTransaction = web3j.ethSendRawTransaction(hexValue).send();
+    private String send(List<String> walletAddresses, List<BigInteger> tokenAmounts) {
+        try {
+            // Create the function call to credit the wallets
+            String encodedFunction = FunctionEncoder.encode(
+                    createCreditFunction(walletAddresses, tokenAmounts));
+            int recipients = walletAddresses.size();
+            BigInteger txGasLimit = gasEstimator.gasLimit(credentials.getAddress(), contractAddress, encodedFunction,
+                    recipients, () -> gasLimitFor(recipients));
+            FeeOracle.Fees fees = feeOracle.current();
+
+            // Take the next nonce locally instead of asking the node on every send
+            BigInteger nonce = nonceManager.next();
+            EthSendTransaction ethSendTransaction = sendWithNonce(nonce, contractAddress, txGasLimit, encodedFunction, fees);
+
+            if (ethSendTransaction.hasError() && NonceManager.isNonceError(ethSendTransaction.getError().getMessage())) {
+                log.warn("Nonce {} rejected ({}), resynchronising and retrying once",
+                        nonce, ethSendTransaction.getError().getMessage());
+                nonceManager.resync(nonce);
+                nonce = nonceManager.next();
+                ethSendTransaction = sendWithNonce(nonce, contractAddress, txGasLimit, encodedFunction, fees);
+            }
 
             if (ethSendTransaction.hasError()) {
                 String errorMessage = ethSendTransaction.getError().getMessage();
                 log.error("Transaction error: {}", errorMessage);
+                nonceManager.release(nonce);
 
                 if (errorMessage.contains("insufficient funds")) {
                     log.error("⚠️ WALLET NEEDS FUNDING! Please send AVAX to: {}", credentials.getAddress());
                 }
 
-                return false;
+                return null;
             }
+            nonceManager.sent(nonce);
 
             String transactionHash = ethSendTransaction.getTransactionHash();
-            log.info("✅ Transaction sent successfully! Hash: {}", transactionHash);
+            remember(transactionHash, new Sent(nonce, contractAddress, txGasLimit, encodedFunction, fees));
+            log.info("✅ Transaction crediting {} wallet(s) sent successfully! Hash: {}",
+                    walletAddresses.size(), transactionHash);
             log.info("View on explorer: https://testnet.snowtrace.io/tx/{}", transactionHash);
 
+            return transactionHash;
+        } catch (Exception e) {
+            log.error("Failed to credit wallets: {}", e.getMessage(), e);
+            return null;
+        }
+    }
+
+    // The send may or may not have reached the node if it fails part way, so the nonce is left to the node's view
+    private EthSendTransaction sendWithNonce(BigInteger nonce, String to, BigInteger txGasLimit, String encodedFunction,
+                                             FeeOracle.Fees fees) throws IOException {
+        try {
+            return signAndSend(nonce, to, txGasLimit, encodedFunction, fees);
+        } catch (IOException | RuntimeException e) {
+            nonceManager.resync(nonce);
+            throw e;
+        }
+    }
+
+    /**
+     * Dry-runs the credit call with eth_call so a batch that would revert is never sent
+     * @return true if the call would succeed
+     */
+    public boolean simulateCredits(List<String> walletAddresses, List<BigInteger> tokenAmounts) {
+        try {
+            EthCall ethCall = web3j.ethCall(
+                    Transaction.createEthCallTransaction(
+                            credentials.getAddress(),
+                            contractAddress,
+                            FunctionEncoder.encode(createCreditFunction(walletAddresses, tokenAmounts))
+                    ),
+                    DefaultBlockParameterName.PENDING
+            ).send();
+
+            if (ethCall.hasError() || ethCall.isReverted()) {
+                log.warn("Credit of {} wallet(s) would revert: {}", walletAddresses.size(),
+                        ethCall.hasError() ? ethCall.getError().getMessage() : ethCall.getRevertReason());
+                return false;
+            }
             return true;
         } catch (Exception e) {
-            log.error("Failed to credit wallet: {}", e.getMessage(), e);
+            log.warn("Credit simulation failed: {}", e.getMessage());
             return false;
         }
     }
 
+    /**
+     * Reloads the nonce from the node before the next send, after another instance may have been sending
+     */
+    public void resyncNonce() {
+        nonceManager.reseed();
+    }
+
+    /**
+     * Sends a transaction that has not been mined again with the same nonce and higher fees, so it replaces
+     * the original in the mempool. The transaction is taken from memory, or from the node after a restart.
+     * @return the hash of the replacement, or null if the transaction could not or need not be replaced
+     */
+    public String replace(String txHash) {
+        return resend(txHash, false);
+    }
+
+    /**
+     * Sends a 0-value transfer to the signer itself with the same nonce as a transaction that is not being
+     * mined, and higher fees. Whichever of the two is mined uses up the nonce, so later transactions are no
+     * longer held back by it; only the receipt tells which one it was.
+     * @param txHash The stuck transaction, or an earlier cancellation of it
+     * @return the hash of the cancellation, or null if it could not be sent
+     */
+    public String cancel(String txHash) {
+        return resend(txHash, true);
+    }
+
+    private String resend(String txHash, boolean cancel) {
+        String action = cancel ? "cancel" : "replace";
+        try {
+            Sent original = remembered(txHash);
+            if (original == null) {
+                original = fetchPending(txHash);
+            }
+            if (original == null) {
+                log.warn("Cannot {} {}: it is unknown to this instance and to the node, or already mined", action, txHash);
+                return null;
+            }
+
+            FeeOracle.Fees fees = feeOracle.bump(original.fees(), bumpPercent);
+            if (fees == null) {
+                log.warn("Cannot {} {}: its fees are already at the {} gwei cap", action, txHash, maxFeeCapGwei);
+                return null;
+            }
+
+            Sent resent = cancel
+                    ? new Sent(original.nonce(), credentials.getAddress(), TRANSFER_GAS_LIMIT, "0x", fees)
+                    : new Sent(original.nonce(), original.to(), original.gasLimit(), original.data(), fees);
+            EthSendTransaction response = signAndSend(resent.nonce(), resent.to(), resent.gasLimit(), resent.data(), fees);
+            if (response.hasError()) {
+                // Nonce too low means the original, or an earlier replacement, has been mined in the meantime
+                log.warn("Attempt to {} {} rejected: {}", action, txHash, response.getError().getMessage());
+                return null;
+            }
+
+            String resentHash = response.getTransactionHash();
+            remember(resentHash, resent);
+            (cancel ? cancellations : replacements).increment();
+            log.info("{} stuck transaction {} with {} (nonce {}, max fee {} -> {} wei)",
+                    cancel ? "Cancelling" : "Replaced", txHash, resentHash,
+                    original.nonce(), original.fees().maxFeePerGas(), fees.maxFeePerGas());
+            return resentHash;
+        } catch (Exception e) {
+            log.error("Failed to {} transaction {}: {}", action, txHash, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Keeps the fee estimate in step with the chain
+     */
+    @EventListener
+    public void onNewBlock(NewBlockEvent event) {
+        refreshFees();
+    }
+
+    private void refreshFees() {
+        if (feeOracle == null) {
+            return;
+        }
+        try {
+            feeOracle.refresh();
+        } catch (Exception e) {
+            log.warn("Failed to refresh fees, keeping the last ones: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * The transaction as the node has it, if it is still waiting to be mined
+     */
+    private Sent fetchPending(String txHash) throws IOException {
+        EthTransaction response = web3j.ethGetTransactionByHash(txHash).send();
+        if (response.hasError() || response.getTransaction().isEmpty()) {
+            return null;
+        }
+        org.web3j.protocol.core.methods.response.Transaction transaction = response.getTransaction().get();
+        if (transaction.getBlockNumberRaw() != null) {
+            return null;
+        }
+        // A legacy transaction offered its gas price as both fees
+        BigInteger maxFee = transaction.getMaxFeePerGas() != null ? transaction.getMaxFeePerGas() : transaction.getGasPrice();
+        BigInteger tip = transaction.getMaxPriorityFeePerGas() != null ? transaction.getMaxPriorityFeePerGas() : maxFee;
+        return new Sent(transaction.getNonce(), transaction.getTo(), transaction.getGas(), transaction.getInput(),
+                new FeeOracle.Fees(maxFee, tip));
+    }
+
+    private void remember(String txHash, Sent transaction) {
+        synchronized (sent) {
+            sent.put(txHash, transaction);
+        }
+    }
+
+    private Sent remembered(String txHash) {
+        synchronized (sent) {
+            return sent.get(txHash);
+        }
+    }
+
+    /**
+     * Signs the call as an EIP-1559 transaction for this chain and sends it
+     */
+    private EthSendTransaction signAndSend(BigInteger nonce, String to, BigInteger txGasLimit, String encodedFunction,
+                                           FeeOracle.Fees fees) throws IOException {
+        RawTransaction rawTransaction = RawTransaction.createTransaction(
+                chainId,
+                nonce,
+                txGasLimit,
+                to,
+                BigInteger.ZERO,
+                encodedFunction,
+                fees.maxPriorityFeePerGas(),
+                fees.maxFeePerGas()
+        );
+
+        // The chain ID is part of the typed transaction, so it is signed without EIP-155
+        byte[] signedMessage = TransactionEncoder.signMessage(rawTransaction, credentials);
+        String hexValue = Numeric.toHexString(signedMessage);
+
+        EthSendTransaction response = web3j.ethSendRawTransaction(hexValue).send();
+        if (response.hasError() && NonceManager.isAlreadyKnown(response.getError().getMessage())) {
+            // An earlier attempt of this exact transaction reached the node, so it is already sent under this hash
+            String transactionHash = Hash.sha3(hexValue);
+            log.info("Node already has transaction {}, treating the send as accepted", transactionHash);
+            EthSendTransaction accepted = new EthSendTransaction();
+            accepted.setResult(transactionHash);
+            return accepted;
+        }
+        return response;
+    }
+
     /**
      * Creates the function call for crediting a user wallet
      */
@@ -188,6 +498,33 @@ public class BlockchainService {
         );
     }
 
+    /**
+     * Creates the function call for crediting several wallets in one transaction
+     */
+    private Function createBatchCreditFunction(List<String> walletAddresses, List<BigInteger> amounts) {
+        return new Function(
+                "batchConcludeOnRampTransfer",
+                Arrays.asList(
+                        new DynamicArray<>(Address.class, walletAddresses.stream().map(Address::new).toList()),
+                        new DynamicArray<>(Uint256.class, amounts.stream().map(Uint256::new).toList())
+                ),
+                Collections.emptyList()
+        );
+    }
+
+    private Function createCreditFunction(List<String> walletAddresses, List<BigInteger> amounts) {
+        return walletAddresses.size() == 1
+                ? createCreditUserWalletFunction(walletAddresses.get(0), amounts.get(0))
+                : createBatchCreditFunction(walletAddresses, amounts);
+    }
+
+    /**
+     * Single credits keep the configured limit, each extra recipient in a batch adds its own share
+     */
+    private BigInteger gasLimitFor(int recipients) {
+        return gasLimit.add(BigInteger.valueOf(batchGasPerCredit).multiply(BigInteger.valueOf(recipients - 1L)));
+    }
+
     /**
      * Checks if the contract is accessible and has the expected function
      */
@@ -218,44 +555,181 @@ public class BlockchainService {
         }
     }
 
+    /**
+     * Reads decimals() from the USDC contract, keeping crypto.token.decimals if the call fails
+     */
+    private int readTokenDecimals() {
+        try {
+            Function function = new Function(
+                    "decimals",
+                    Collections.emptyList(),
+                    Collections.singletonList(new TypeReference<Uint8>() {})
+            );
+            EthCall ethCall = web3j.ethCall(
+                    Transaction.createEthCallTransaction(
+                            credentials.getAddress(),
+                            usdcTokenAddress,
+                            FunctionEncoder.encode(function)
+                    ),
+                    DefaultBlockParameterName.LATEST
+            ).send();
+
+            List<Type> decode = ethCall.hasError()
+                    ? List.of()
+                    : FunctionReturnDecoder.decode(ethCall.getValue(), function.getOutputParameters());
+            if (decode.isEmpty()) {
+                log.warn("Could not read the token's decimals, using {}", tokenDecimals);
+                return tokenDecimals;
+            }
+
+            int decimals = ((BigInteger) decode.get(0).getValue()).intValueExact();
+            if (decimals != tokenDecimals) {
+                log.warn("Token has {} decimals, not the configured {}; using {}", decimals, tokenDecimals, decimals);
+            }
+            return decimals;
+        } catch (Exception e) {
+            log.warn("Could not read the token's decimals, using {}: {}", tokenDecimals, e.getMessage());
+            return tokenDecimals;
+        }
+    }
+
     /**
      * Gets the balance of USDC for the given wallet address
      */
     public BigDecimal getUSDCBalance(String walletAddress) throws IOException, ExecutionException, InterruptedException {
         // Create function to call balanceOf on USDC token contract
-        Function function = new Function(
+        Function function = createBalanceOfFunction(walletAddress);
+
+        EthCall ethCall = web3j.ethCall(
+                createBalanceOfCall(function),
+                DefaultBlockParameterName.LATEST
+        ).send();
+
+        return decodeBalance(ethCall, function);
+    }
+
+    /**
+     * Gets USDC balances for many wallets at one block, using JSON-RPC batch requests
+     * so the whole set costs one HTTP call per rpc-batch-size wallets
+     * @param walletAddresses The wallets to read, already validated
+     * @param blockNumber The block to read the balances at
+     * @return balances by wallet address; wallets whose call failed are left out
+     */
+    public Map<String, BigDecimal> getUSDCBalances(List<String> walletAddresses, long blockNumber) throws IOException {
+        Map<String, BigDecimal> balances = new HashMap<>();
+        DefaultBlockParameter block = DefaultBlockParameter.valueOf(BigInteger.valueOf(blockNumber));
+
+        for (int from = 0; from < walletAddresses.size(); from += rpcBatchSize) {
+            List<String> chunk = walletAddresses.subList(from, Math.min(from + rpcBatchSize, walletAddresses.size()));
+
+            // Nodes may answer a batch in any order, so responses are matched to wallets by request id
+            BatchRequest batch = web3j.newBatch();
+            Map<Long, String> walletsById = new HashMap<>();
+            for (String walletAddress : chunk) {
+                Request<?, EthCall> request =
+                        web3j.ethCall(createBalanceOfCall(createBalanceOfFunction(walletAddress)), block);
+                walletsById.put(request.getId(), walletAddress);
+                batch.add(request);
+            }
+
+            for (Response<?> response : batch.send().getResponses()) {
+                String walletAddress = walletsById.get(response.getId());
+                if (walletAddress == null) {
+                    log.warn("Ignoring balance response with unknown id {}", response.getId());
+                    continue;
+                }
+                EthCall ethCall = (EthCall) response;
+                if (ethCall.hasError()) {
+                    log.warn("Failed to read balance of {}: {}", walletAddress, ethCall.getError().getMessage());
+                    continue;
+                }
+                balances.put(walletAddress, decodeBalance(ethCall, createBalanceOfFunction(walletAddress)));
+            }
+        }
+        return balances;
+    }
+
+    private Function createBalanceOfFunction(String walletAddress) {
+        return new Function(
                 "balanceOf",
                 Collections.singletonList(new Address(walletAddress)),
                 Collections.singletonList(new TypeReference<Uint256>() {})
         );
+    }
 
-        String encodedFunction = FunctionEncoder.encode(function);
-
-        EthCall ethCall = web3j.ethCall(
-                Transaction.createEthCallTransaction(
-                        credentials.getAddress(),
-                        usdcTokenAddress,
-                        encodedFunction
-                ),
-                DefaultBlockParameterName.LATEST
-        ).send();
+    private Transaction createBalanceOfCall(Function function) {
+        return Transaction.createEthCallTransaction(
+                credentials.getAddress(),
+                usdcTokenAddress,
+                FunctionEncoder.encode(function)
+        );
+    }
 
+    private BigDecimal decodeBalance(EthCall ethCall, Function function) {
         List<Type> decode = FunctionReturnDecoder.decode(ethCall.getValue(), function.getOutputParameters());
 
         if (decode.isEmpty()) {
             return BigDecimal.ZERO;
         }
 
-        BigInteger balanceInWei = (BigInteger) decode.get(0).getValue();
+        BigInteger balanceInUnits = (BigInteger) decode.get(0).getValue();
+
+        // Exact: the units are the unscaled value at the token's decimals
+        return new BigDecimal(balanceInUnits, tokenDecimals);
+    }
 
-        // USDC has 6 decimal places
-        return new BigDecimal(balanceInWei).divide(BigDecimal.valueOf(1_000_000));
+    /**
+     * Gets the current head block number
+     */
+    public long getBlockNumber() throws IOException {
+        EthBlockNumber blockNumber = web3j.ethBlockNumber().send();
+        if (blockNumber.hasError()) {
+            throw new IOException("Failed to fetch block number: " + blockNumber.getError().getMessage());
+        }
+        return blockNumber.getBlockNumber().longValueExact();
+    }
+
+    /**
+     * Fetches receipts for the given transaction hashes using JSON-RPC batch requests,
+     * so any number of hashes costs one HTTP call per rpc-batch-size hashes
+     * @return receipts by transaction hash; hashes that are not mined yet are left out
+     */
+    public Map<String, TransactionReceipt> getTransactionReceipts(List<String> transactionHashes) throws IOException {
+        Map<String, TransactionReceipt> receipts = new HashMap<>();
+
+        for (int from = 0; from < transactionHashes.size(); from += rpcBatchSize) {
+            List<String> chunk = transactionHashes.subList(from, Math.min(from + rpcBatchSize, transactionHashes.size()));
+
+            // Nodes may answer a batch in any order, so responses are matched to hashes by request id
+            BatchRequest batch = web3j.newBatch();
+            Map<Long, String> hashesById = new HashMap<>();
+            for (String hash : chunk) {
+                Request<?, EthGetTransactionReceipt> request = web3j.ethGetTransactionReceipt(hash);
+                hashesById.put(request.getId(), hash);
+                batch.add(request);
+            }
+
+            for (Response<?> batchResponse : batch.send().getResponses()) {
+                String hash = hashesById.get(batchResponse.getId());
+                if (hash == null) {
+                    log.warn("Ignoring receipt response with unknown id {}", batchResponse.getId());
+                    continue;
+                }
+                EthGetTransactionReceipt response = (EthGetTransactionReceipt) batchResponse;
+                if (response.hasError()) {
+                    log.warn("Failed to fetch receipt for {}: {}", hash, response.getError().getMessage());
+                    continue;
+                }
+                response.getTransactionReceipt().ifPresent(receipt -> receipts.put(hash, receipt));
+            }
+        }
+        return receipts;
     }
 
     /**
      * Validates an Ethereum address format
      */
-    private boolean isValidAddress(String address) {
+    public boolean isValidAddress(String address) {
         if (address == null || address.isEmpty()) {
             return false;
         }
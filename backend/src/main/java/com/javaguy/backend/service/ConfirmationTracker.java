@@ -0,0 +1,233 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.event.NewBlockEvent;
+import com.javaguy.backend.event.TransactionStatusEvent;
+import com.javaguy.backend.model.TransactionStatus;
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import com.javaguy.backend.repository.CryptoTransactionRepository.OutstandingSubmission;
+import com.javaguy.backend.repository.CryptoTransactionRepository.SubmittedCredit;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Moves submitted credits to COMPLETED once their on-chain transaction has enough confirmations.
+ * Receipts for all outstanding hashes are fetched with one batched JSON-RPC round per new block.
+ * A transaction still not mined after crypto.gas.bump-after-blocks is replaced with higher fees; since
+ * the one it replaced can still be mined first, receipts are fetched for the earlier hashes too.
+ * One still not mined after crypto.confirmation.drop-after-blocks is cancelled with a 0-value transfer at its
+ * nonce, and its credits stay submitted until a receipt shows whether the credit or the cancellation was mined.
+ * Every instance tracks confirmations, but only the one holding the CreditSenderLease replaces or cancels.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class ConfirmationTracker {
+
+    private final BlockchainService blockchainService;
+    private final CryptoTransactionRepository transactionRepository;
+    private final BalanceService balanceService;
+    private final OnRampMetrics metrics;
+    private final ApplicationEventPublisher eventPublisher;
+    private final CreditSenderLease creditSenderLease;
+
+    @Value("${crypto.confirmation.required-confirmations:2}")
+    private long requiredConfirmations;
+    @Value("${crypto.confirmation.drop-after-blocks:450}")
+    private long dropAfterBlocks;
+    @Value("${crypto.gas.bump-after-blocks:15}")
+    private long bumpAfterBlocks;
+    @Value("${crypto.gas.max-replacements:5}")
+    private int maxReplacements;
+
+    /**
+     * Checks every outstanding credit transaction against the new head block.
+     * Each status change commits on its own, so no connection is held during the RPC call.
+     */
+    @EventListener
+    public void onNewBlock(NewBlockEvent event) {
+        List<OutstandingSubmission> outstanding = transactionRepository.findOutstandingSubmissions();
+        if (outstanding.isEmpty()) {
+            return;
+        }
+
+        Map<String, TransactionReceipt> receipts;
+        try {
+            List<String> hashes = new ArrayList<>();
+            for (OutstandingSubmission submission : outstanding) {
+                hashes.add(submission.getTxHash());
+                hashes.addAll(replacedHashes(submission));
+                hashes.addAll(cancelHashes(submission));
+            }
+            receipts = blockchainService.getTransactionReceipts(hashes);
+        } catch (Exception e) {
+            log.warn("Failed to fetch receipts for {} transactions: {}", outstanding.size(), e.getMessage());
+            return;
+        }
+
+        long head = event.blockNumber();
+        LocalDateTime now = LocalDateTime.now();
+
+        for (OutstandingSubmission submission : outstanding) {
+            String txHash = submission.getTxHash();
+            TransactionReceipt receipt = receipts.get(txHash);
+
+            if (receipt == null) {
+                // The version it replaced may have made it into a block first
+                for (String replaced : replacedHashes(submission)) {
+                    if (receipts.containsKey(replaced)) {
+                        transactionRepository.replaceSubmission(txHash, replaced, submission.getReplacedTxHashes(),
+                                submission.getSubmittedBlock());
+                        log.info("Transaction {} was mined instead of its replacement {}", replaced, txHash);
+                        txHash = replaced;
+                        receipt = receipts.get(replaced);
+                        break;
+                    }
+                }
+            }
+
+            if (receipt == null) {
+                TransactionReceipt cancelReceipt = cancelHashes(submission).stream()
+                        .map(receipts::get).filter(Objects::nonNull).findFirst().orElse(null);
+                if (cancelReceipt != null) {
+                    // The cancellation used the nonce, so the credit can no longer be mined
+                    if (confirmations(cancelReceipt, head) >= requiredConfirmations) {
+                        int updated = conclude(txHash, transactionRepository.findSubmittedCredits(txHash),
+                                TransactionStatus.BLOCKCHAIN_ERROR, now);
+                        log.error("Transaction {} was cancelled by {}, marked {} credits as BLOCKCHAIN_ERROR",
+                                txHash, cancelReceipt.getTransactionHash(), updated);
+                    }
+                    continue;
+                }
+
+                Long submittedBlock = submission.getSubmittedBlock();
+                if (submittedBlock == null || submittedBlock < 0) {
+                    // Sent before the head was first read, so the bump and drop timeouts start from this block
+                    transactionRepository.recordSubmittedBlock(txHash, head);
+                    continue;
+                }
+                if (!creditSenderLease.isHeld()) {
+                    continue;
+                }
+                if (head - submittedBlock > dropAfterBlocks) {
+                    cancel(submission, txHash, head);
+                } else if (head - submittedBlock >= bumpAfterBlocks
+                        && cancelHashes(submission).isEmpty() && replacedHashes(submission).size() < maxReplacements) {
+                    replace(submission, head);
+                }
+                continue;
+            }
+
+            // The credited balances changed in the receipt's block
+            List<SubmittedCredit> credits = transactionRepository.findSubmittedCredits(txHash);
+            balanceService.invalidate(credits.stream().map(SubmittedCredit::getWalletAddress).toList());
+
+            if (!receipt.isStatusOK()) {
+                // A reverted batch credited nobody, so every transaction it carried fails
+                int updated = conclude(txHash, credits, TransactionStatus.BLOCKCHAIN_ERROR, now);
+                log.error("Transaction {} reverted, marked {} credits as BLOCKCHAIN_ERROR", txHash, updated);
+                continue;
+            }
+
+            long confirmations = confirmations(receipt, head);
+            if (confirmations >= requiredConfirmations) {
+                int updated = conclude(txHash, credits, TransactionStatus.COMPLETED, now);
+                if (updated > 0 && submission.getSubmittedAt() != null) {
+                    metrics.recordStage(OnRampMetrics.Stage.CONFIRMATION, Duration.between(submission.getSubmittedAt(), now));
+                }
+                log.info("Transaction {} confirmed ({} confirmations), completed {} credits",
+                        txHash, confirmations, updated);
+            }
+        }
+    }
+
+    /**
+     * Sends the transaction again with higher fees and moves its credits to the replacement. The drop
+     * timeout starts again from the replacement.
+     */
+    private void replace(OutstandingSubmission submission, long head) {
+        String txHash = submission.getTxHash();
+        String replacementHash = blockchainService.replace(txHash);
+        if (replacementHash == null) {
+            return;
+        }
+
+        String replacedTxHashes = submission.getReplacedTxHashes() == null
+                ? txHash : submission.getReplacedTxHashes() + "," + txHash;
+        transactionRepository.replaceSubmission(txHash, replacementHash, replacedTxHashes, head);
+        for (SubmittedCredit credit : transactionRepository.findSubmittedCredits(replacementHash)) {
+            eventPublisher.publishEvent(new TransactionStatusEvent(credit.getId(), credit.getWalletAddress(),
+                    TransactionStatus.SUBMITTED, credit.getCheckoutRequestId(), replacementHash, credit.getResultDesc()));
+        }
+    }
+
+    /**
+     * Cancels a transaction that has not been mined for crypto.confirmation.drop-after-blocks, since its
+     * nonce holds back every later credit. Marking its credits failed here could be wrong, as it can still
+     * be mined; instead a cancellation takes the nonce if it is mined first, and another one is sent with
+     * higher fees if it is not mined either.
+     */
+    private void cancel(OutstandingSubmission submission, String txHash, long head) {
+        List<String> cancelHashes = cancelHashes(submission);
+        String cancelHash = cancelHashes.size() < maxReplacements
+                ? blockchainService.cancel(cancelHashes.isEmpty() ? txHash : cancelHashes.get(cancelHashes.size() - 1))
+                : null;
+
+        String cancelTxHashes = submission.getCancelTxHashes();
+        if (cancelHash != null) {
+            cancelTxHashes = cancelTxHashes == null ? cancelHash : cancelTxHashes + "," + cancelHash;
+        }
+        // Either way the next attempt waits another drop-after-blocks
+        transactionRepository.cancelSubmission(txHash, cancelTxHashes, head);
+        if (cancelHash != null) {
+            log.warn("Transaction {} not mined after {} blocks, sent cancellation {}; its credits stay submitted " +
+                    "until one of them is mined", txHash, dropAfterBlocks, cancelHash);
+        } else {
+            log.error("Transaction {} not mined after {} blocks and could not be cancelled, still tracking it",
+                    txHash, dropAfterBlocks);
+        }
+    }
+
+    private static long confirmations(TransactionReceipt receipt, long head) {
+        return head - receipt.getBlockNumber().longValueExact() + 1;
+    }
+
+    private static List<String> replacedHashes(OutstandingSubmission submission) {
+        return split(submission.getReplacedTxHashes());
+    }
+
+    private static List<String> cancelHashes(OutstandingSubmission submission) {
+        return split(submission.getCancelTxHashes());
+    }
+
+    private static List<String> split(String hashes) {
+        return hashes == null || hashes.isEmpty() ? List.of() : List.of(hashes.split(","));
+    }
+
+    /**
+     * Moves every credit carried by the hash to its final status, records how long each one took and
+     * tells its subscribers
+     */
+    private int conclude(String txHash, List<SubmittedCredit> credits, TransactionStatus status, LocalDateTime now) {
+        int updated = transactionRepository.concludeSubmission(txHash, status, now);
+        if (updated > 0) {
+            for (SubmittedCredit credit : credits) {
+                metrics.recordTerminal(status, credit.getCreatedAt(), now);
+                eventPublisher.publishEvent(new TransactionStatusEvent(credit.getId(), credit.getWalletAddress(),
+                        status, credit.getCheckoutRequestId(), txHash, credit.getResultDesc()));
+            }
+        }
+        return updated;
+    }
+}
@@ -0,0 +1,149 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.model.KesAmount;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects wallet credits that are ready to go on-chain and sends them together as one
+ * batchConcludeOnRampTransfer transaction. A batch is flushed when it reaches max-size or when the
+ * window since its first credit runs out, whichever comes first.
+ */
+@Service
+@Slf4j
+public class CreditBatcher {
+
+    private final BlockchainService blockchainService;
+
+    @Value("${crypto.batch.window-ms:500}")
+    private long windowMs;
+    @Value("${crypto.batch.max-size:25}")
+    private int maxSize;
+
+    private final BlockingQueue<PendingCredit> queue = new LinkedBlockingQueue<>();
+    // Sends run on their own threads so the next batch can be collected meanwhile
+    private final ExecutorService sendExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private Thread collector;
+
+    public CreditBatcher(BlockchainService blockchainService) {
+        this.blockchainService = blockchainService;
+    }
+
+    @PostConstruct
+    public void start() {
+        collector = Thread.ofPlatform().daemon().name("credit-batcher").start(this::collect);
+    }
+
+    /**
+     * Queues a credit for the next batch
+     * @param walletAddress The user's wallet address
+     * @param amountKES The amount in KES to convert to USDC
+     * @param kesPerUsdcMicros The rate locked in when the on-ramp was initiated, in millionths
+     * @return completes once the batch has been sent, with the hash of the transaction carrying this credit,
+     * or null if it was not accepted. Completes with a CancellationException if the batcher stops before the
+     * credit is sent, so it can be dispatched again.
+     */
+    public CompletableFuture<String> creditWallet(String walletAddress, KesAmount amountKES, long kesPerUsdcMicros) {
+        BigInteger tokenAmount = blockchainService.toTokenAmount(walletAddress, amountKES, kesPerUsdcMicros);
+        if (tokenAmount == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        PendingCredit credit = new PendingCredit(walletAddress, tokenAmount, new CompletableFuture<>());
+        queue.add(credit);
+        return credit.result();
+    }
+
+    /**
+     * Takes back a credit that is still waiting for its batch
+     * @return true if it was withdrawn and will never be sent, false if it is already part of a send
+     */
+    public boolean withdraw(CompletableFuture<String> result) {
+        return queue.removeIf(credit -> credit.result() == result);
+    }
+
+    private void collect() {
+        while (!Thread.currentThread().isInterrupted()) {
+            List<PendingCredit> batch = new ArrayList<>(maxSize);
+            try {
+                batch.add(queue.take());
+
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs);
+                while (batch.size() < maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingCredit next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                sendExecutor.execute(() -> send(batch));
+            } catch (InterruptedException | RejectedExecutionException e) {
+                Thread.currentThread().interrupt();
+                batch.forEach(CreditBatcher::notSent);
+            }
+        }
+    }
+
+    /**
+     * Sends the batch. If the batch would revert as a whole (for example one bad recipient), each credit
+     * is sent on its own instead so the rest are not held back.
+     */
+    private void send(List<PendingCredit> batch) {
+        try {
+            List<String> walletAddresses = batch.stream().map(PendingCredit::walletAddress).toList();
+            List<BigInteger> tokenAmounts = batch.stream().map(PendingCredit::tokenAmount).toList();
+
+            if (batch.size() > 1 && !blockchainService.simulateCredits(walletAddresses, tokenAmounts)) {
+                log.warn("Batch of {} credits would revert, sending them individually", batch.size());
+                for (PendingCredit credit : batch) {
+                    credit.result().complete(blockchainService.sendCredits(
+                            List.of(credit.walletAddress()), List.of(credit.tokenAmount())));
+                }
+                return;
+            }
+
+            log.info("Sending batch of {} credits", batch.size());
+            String transactionHash = blockchainService.sendCredits(walletAddresses, tokenAmounts);
+            batch.forEach(credit -> credit.result().complete(transactionHash));
+        } catch (Exception e) {
+            log.error("Failed to send batch of {} credits: {}", batch.size(), e.getMessage(), e);
+            batch.forEach(credit -> credit.result().complete(null));
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        collector.interrupt();
+        sendExecutor.shutdown();
+        // Anything still queued never went out
+        PendingCredit credit;
+        while ((credit = queue.poll()) != null) {
+            notSent(credit);
+        }
+    }
+
+    // Null is kept for sends that were attempted; a credit that never left the batcher is cancelled instead
+    private static void notSent(PendingCredit credit) {
+        credit.result().completeExceptionally(new CancellationException("Credit batcher stopped before the credit was sent"));
+    }
+
+    private record PendingCredit(String walletAddress, BigInteger tokenAmount, CompletableFuture<String> result) {
+    }
+}
@@ -0,0 +1,113 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.repository.SenderLeaseRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+/**
+ * Makes signing with the wallet key a single-owner role. Nonces are counted in memory by the NonceManager,
+ * so two instances sending at once would hand out the same nonces; only the instance holding this lease
+ * sends credits, replacements and cancellations, the others leave that work to it.
+ * <p>
+ * The lease lives in the database like the transaction leases and is renewed every
+ * crypto.sender.renew-interval-ms. The holder stops sending once half the lease has passed without a
+ * renewal, which leaves the other half for clock skew and a send already under way. An instance taking the
+ * lease over reloads its nonce from the node, since the previous holder may have sent since.
+ */
+@Service
+@Slf4j
+public class CreditSenderLease {
+
+    static final String NAME = "credit-sender";
+
+    private final SenderLeaseRepository leaseRepository;
+    private final String owner;
+    private final Duration leaseDuration;
+    private final Runnable onAcquired;
+
+    // When this instance must stop sending, null while another instance holds the lease
+    private volatile LocalDateTime heldUntil;
+
+    @Autowired
+    public CreditSenderLease(SenderLeaseRepository leaseRepository,
+                             BlockchainService blockchainService,
+                             @Value("${transactions.lease.owner}") String owner,
+                             @Value("${crypto.sender.lease-duration-seconds:60}") long leaseDurationSeconds) {
+        this(leaseRepository, owner, Duration.ofSeconds(leaseDurationSeconds), blockchainService::resyncNonce);
+    }
+
+    public CreditSenderLease(SenderLeaseRepository leaseRepository, String owner, Duration leaseDuration,
+                             Runnable onAcquired) {
+        this.leaseRepository = leaseRepository;
+        this.owner = owner;
+        this.leaseDuration = leaseDuration;
+        this.onAcquired = onAcquired;
+    }
+
+    /**
+     * Takes the lease if no live instance holds it, or extends it if this instance does
+     */
+    @Scheduled(fixedDelayString = "${crypto.sender.renew-interval-ms:10000}")
+    public void renew() {
+        LocalDateTime now = LocalDateTime.now();
+        boolean held;
+        try {
+            held = claim(now);
+        } catch (Exception e) {
+            // The lease runs out on its own; until then this instance keeps sending
+            log.warn("Failed to renew the credit sender lease: {}", e.getMessage());
+            return;
+        }
+
+        if (held && heldUntil == null) {
+            log.info("{} is now the credit sender", owner);
+            onAcquired.run();
+        } else if (!held && heldUntil != null) {
+            log.warn("{} lost the credit sender lease to another instance", owner);
+        }
+        heldUntil = held ? now.plus(leaseDuration.dividedBy(2)) : null;
+    }
+
+    /**
+     * Whether this instance may sign and send transactions now
+     */
+    public boolean isHeld() {
+        LocalDateTime until = heldUntil;
+        return until != null && LocalDateTime.now().isBefore(until);
+    }
+
+    /**
+     * Gives up the lease on shutdown so another instance takes over at its next renewal
+     */
+    @PreDestroy
+    public void release() {
+        if (heldUntil != null) {
+            heldUntil = null;
+            leaseRepository.release(NAME, owner);
+        }
+    }
+
+    private boolean claim(LocalDateTime now) {
+        LocalDateTime expiresAt = now.plus(leaseDuration);
+        if (leaseRepository.claim(NAME, owner, expiresAt, now) > 0) {
+            return true;
+        }
+        if (leaseRepository.existsById(NAME)) {
+            return false;
+        }
+        try {
+            return leaseRepository.create(NAME, owner, expiresAt) > 0;
+        } catch (DataIntegrityViolationException e) {
+            // Another instance created the lease first and holds it
+            return false;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.javaguy.backend.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends every outbound Daraja request. Each endpoint has its own token bucket, so we stay under
+ * Daraja's rate limits, and its own bulkhead capping concurrent calls, so background status queries
+ * can never use up the capacity that checkouts need. A 429 pauses the endpoint for the Retry-After
+ * Daraja asked for; the call is retried once if that wait fits its budget, otherwise it fails with a
+ * DarajaThrottledException instead of a generic IOException.
+ */
+@Service
+@Slf4j
+public class DarajaClient {
+
+    private static final Duration DEFAULT_RETRY_AFTER = Duration.ofSeconds(1);
+
+    private final Map<DarajaEndpoint, Limit> limits = new EnumMap<>(DarajaEndpoint.class);
+
+    public DarajaClient(@Qualifier("darajaHttpClient") OkHttpClient okHttpClient, Environment environment,
+                        MeterRegistry meterRegistry) {
+        for (DarajaEndpoint endpoint : DarajaEndpoint.values()) {
+            String prefix = "mpesa.daraja.limits." + endpoint.key() + ".";
+            double ratePerSecond = environment.getRequiredProperty(prefix + "rate-per-second", Double.class);
+            int burst = environment.getRequiredProperty(prefix + "burst", Integer.class);
+            int maxConcurrent = environment.getRequiredProperty(prefix + "max-concurrent", Integer.class);
+            long maxWaitMs = environment.getRequiredProperty(prefix + "max-wait-ms", Long.class);
+            long callTimeoutMs = environment.getRequiredProperty(prefix + "call-timeout-ms", Long.class);
+
+            // Shares the connection pool and dispatcher, only the timeout differs
+            OkHttpClient client = okHttpClient.newBuilder()
+                    .callTimeout(callTimeoutMs, TimeUnit.MILLISECONDS)
+                    .build();
+
+            Limit limit = new Limit(client, new TokenBucket(ratePerSecond, burst), new Semaphore(maxConcurrent),
+                    Duration.ofMillis(maxWaitMs),
+                    meterRegistry.timer("daraja.limiter.wait", "endpoint", endpoint.key()),
+                    meterRegistry.counter("daraja.limiter.rejected", "endpoint", endpoint.key(), "reason", "bulkhead"),
+                    meterRegistry.counter("daraja.limiter.rejected", "endpoint", endpoint.key(), "reason", "rate"),
+                    meterRegistry.counter("daraja.limiter.throttled", "endpoint", endpoint.key()));
+            limits.put(endpoint, limit);
+
+            meterRegistry.gauge("daraja.limiter.tokens", Tags.of("endpoint", endpoint.key()),
+                    limit.bucket(), TokenBucket::available);
+            meterRegistry.gauge("daraja.bulkhead.in.use", Tags.of("endpoint", endpoint.key()),
+                    limit.bulkhead(), bulkhead -> maxConcurrent - bulkhead.availablePermits());
+        }
+    }
+
+    /**
+     * Executes the request once the endpoint's bulkhead and rate limit allow it
+     * @param endpoint The Daraja API being called
+     * @param request The request, ready to send
+     * @return the response, which the caller must close; never a 429
+     * @throws DarajaThrottledException if the call could not be made within the endpoint's wait budget
+     */
+    public Response execute(DarajaEndpoint endpoint, Request request) throws IOException {
+        Limit limit = limits.get(endpoint);
+        // Names the endpoint in the HTTP phase metrics
+        Request tagged = request.newBuilder().tag(String.class, endpoint.key()).build();
+        long started = System.nanoTime();
+
+        try {
+            if (!limit.bulkhead().tryAcquire(limit.maxWait().toNanos(), TimeUnit.NANOSECONDS)) {
+                limit.bulkheadRejections().increment();
+                throw new DarajaThrottledException(endpoint, DEFAULT_RETRY_AFTER,
+                        "Too many concurrent Daraja " + endpoint.key() + " calls");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a Daraja " + endpoint.key() + " slot", e);
+        }
+
+        try {
+            for (int attempt = 0; ; attempt++) {
+                Duration remaining = limit.maxWait().minusNanos(System.nanoTime() - started);
+                if (!acquireToken(limit, remaining)) {
+                    limit.rateRejections().increment();
+                    throw new DarajaThrottledException(endpoint, DEFAULT_RETRY_AFTER,
+                            "Daraja " + endpoint.key() + " rate limit reached");
+                }
+                limit.waitTimer().record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+
+                Response response = limit.client().newCall(tagged).execute();
+                if (response.code() != 429) {
+                    return response;
+                }
+
+                Duration retryAfter = parseRetryAfter(response.header("Retry-After"));
+                response.close();
+                limit.throttled().increment();
+                limit.bucket().pauseFor(retryAfter);
+                log.warn("Daraja throttled {} call, pausing it for {} ms", endpoint.key(), retryAfter.toMillis());
+
+                remaining = limit.maxWait().minusNanos(System.nanoTime() - started);
+                if (attempt > 0 || retryAfter.compareTo(remaining) > 0) {
+                    throw new DarajaThrottledException(endpoint, retryAfter,
+                            "Daraja throttled " + endpoint.key() + " call");
+                }
+            }
+        } finally {
+            limit.bulkhead().release();
+        }
+    }
+
+    private boolean acquireToken(Limit limit, Duration maxWait) throws IOException {
+        try {
+            return !maxWait.isNegative() && limit.bucket().acquire(maxWait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the Daraja rate limit", e);
+        }
+    }
+
+    /**
+     * Retry-After is either a number of seconds or an HTTP date
+     */
+    static Duration parseRetryAfter(String header) {
+        if (header == null || header.isBlank()) {
+            return DEFAULT_RETRY_AFTER;
+        }
+        try {
+            return Duration.ofSeconds(Math.max(Long.parseLong(header.trim()), 0));
+        } catch (NumberFormatException e) {
+            try {
+                Duration until = Duration.between(ZonedDateTime.now(),
+                        ZonedDateTime.parse(header.trim(), DateTimeFormatter.RFC_1123_DATE_TIME));
+                return until.isNegative() ? Duration.ZERO : until;
+            } catch (DateTimeParseException ignored) {
+                return DEFAULT_RETRY_AFTER;
+            }
+        }
+    }
+
+    private record Limit(OkHttpClient client, TokenBucket bucket, Semaphore bulkhead, Duration maxWait, Timer waitTimer,
+                         Counter bulkheadRejections, Counter rateRejections, Counter throttled) {
+    }
+}
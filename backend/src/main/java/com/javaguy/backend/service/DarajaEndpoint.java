@@ -0,0 +1,21 @@
+package com.javaguy.backend.service;
+
+/**
+ * The Daraja APIs we call, each with its own rate limit, bulkhead and call timeout.
+ * The limits themselves are configured under mpesa.daraja.limits.&lt;key&gt;, and nowhere else.
+ */
+public enum DarajaEndpoint {
+    OAUTH("oauth"),
+    STK_PUSH("stk-push"),       // user-facing checkouts
+    STK_QUERY("stk-query");     // background status checks
+
+    private final String key;
+
+    DarajaEndpoint(String key) {
+        this.key = key;
+    }
+
+    public String key() {
+        return key;
+    }
+}
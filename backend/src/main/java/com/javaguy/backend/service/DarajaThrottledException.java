@@ -0,0 +1,31 @@
+package com.javaguy.backend.service;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Thrown when a Daraja call is not made because our own limiter is saturated, or when Daraja answered
+ * 429 and the wait it asked for is longer than the caller is willing to block
+ */
+public class DarajaThrottledException extends IOException {
+
+    private final DarajaEndpoint endpoint;
+    private final Duration retryAfter;
+
+    public DarajaThrottledException(DarajaEndpoint endpoint, Duration retryAfter, String message) {
+        super(message);
+        this.endpoint = endpoint;
+        this.retryAfter = retryAfter;
+    }
+
+    public DarajaEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * How long to wait before calling the endpoint again
+     */
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,186 @@
+package com.javaguy.backend.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.javaguy.backend.dto.AccessTokenResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Credentials;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Caches the Daraja OAuth token until shortly before it expires.
+ * Concurrent refreshes are collapsed into a single in-flight call, and a token that is
+ * close to expiry is refreshed in the background while callers keep using the cached one.
+ */
+@Service
+@Slf4j
+public class DarajaTokenManager {
+
+    private static final long DEFAULT_EXPIRES_IN_SECONDS = 3599L;
+
+    @Value("${mpesa.daraja.consumer-key}")
+    private String consumerKey;
+    @Value("${mpesa.daraja.consumer-secret}")
+    private String consumerSecret;
+    @Value("${mpesa.daraja.oauth-url}")
+    private String oauthUrl;
+    @Value("${mpesa.daraja.token.refresh-ahead-seconds:120}")
+    private long refreshAheadSeconds;
+    @Value("${mpesa.daraja.token.expiry-skew-seconds:10}")
+    private long expirySkewSeconds;
+
+    private final DarajaClient darajaClient;
+    private final ObjectMapper objectMapper;
+
+    private final AtomicReference<CachedToken> cachedToken = new AtomicReference<>();
+    private final AtomicReference<CompletableFuture<CachedToken>> inFlightRefresh = new AtomicReference<>();
+
+    private final Counter cacheHits;
+    private final Counter cacheMisses;
+    private final Timer refreshTimer;
+
+    public DarajaTokenManager(DarajaClient darajaClient, ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.darajaClient = darajaClient;
+        this.objectMapper = objectMapper;
+        this.cacheHits = meterRegistry.counter("daraja.token.cache", "result", "hit");
+        this.cacheMisses = meterRegistry.counter("daraja.token.cache", "result", "miss");
+        this.refreshTimer = meterRegistry.timer("daraja.token.refresh");
+    }
+
+    /**
+     * Returns a valid access token, fetching a new one only when the cached token is missing or expired
+     * @return AccessTokenResponse
+     * @throws IOException if the token could not be fetched
+     */
+    public AccessTokenResponse getAccessToken() throws IOException {
+        CachedToken token = cachedToken.get();
+        Instant now = Instant.now();
+
+        if (token != null && now.isBefore(token.expiresAt())) {
+            cacheHits.increment();
+            if (now.isAfter(token.refreshAt())) {
+                // Still usable, refresh in the background so callers never wait on it
+                refresh();
+            }
+            return token.response();
+        }
+
+        cacheMisses.increment();
+        return await(refresh()).response();
+    }
+
+    /**
+     * Drops the cached token if it is still the one that was rejected, so the next call fetches a new one
+     * @param rejected The token that Daraja answered with 401
+     */
+    public void invalidate(AccessTokenResponse rejected) {
+        CachedToken token = cachedToken.get();
+        if (token != null && token.response() == rejected) {
+            cachedToken.compareAndSet(token, null);
+            log.info("Invalidated cached Daraja access token");
+        }
+    }
+
+    /**
+     * Starts a refresh unless one is already running, in which case the running one is returned
+     */
+    private CompletableFuture<CachedToken> refresh() {
+        while (true) {
+            CompletableFuture<CachedToken> running = inFlightRefresh.get();
+            if (running != null) {
+                return running;
+            }
+
+            CompletableFuture<CachedToken> refresh = new CompletableFuture<>();
+            if (inFlightRefresh.compareAndSet(null, refresh)) {
+                Thread.ofVirtual().name("daraja-token-refresh").start(() -> {
+                    try {
+                        CachedToken token = fetchToken();
+                        cachedToken.set(token);
+                        refresh.complete(token);
+                    } catch (Throwable e) {
+                        refresh.completeExceptionally(e);
+                    } finally {
+                        inFlightRefresh.compareAndSet(refresh, null);
+                    }
+                });
+                return refresh;
+            }
+        }
+    }
+
+    private CachedToken await(CompletableFuture<CachedToken> refresh) throws IOException {
+        try {
+            return refresh.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for access token", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Failed to generate access token", e.getCause());
+        }
+    }
+
+    /**
+     * Generates access token for the M-Pesa API calls using the consumer key and secret provided by Safaricom Daraja API portal https://developer.safaricom.co.ke/
+     */
+    private CachedToken fetchToken() throws IOException {
+        String credentials = Credentials.basic(consumerKey, consumerSecret);
+        Request request = new Request.Builder()
+                .url(oauthUrl)
+                .get()
+                .addHeader("Authorization", credentials)
+                .build();
+
+        Timer.Sample sample = Timer.start();
+        try (Response response = darajaClient.execute(DarajaEndpoint.OAUTH, request)) {
+            if (!response.isSuccessful()) {
+                String responseBody = response.body() != null ? response.body().string() : "No response body";
+                log.error("Failed to generate access token. Response: {} - {}", response.code(), responseBody);
+                throw new IOException("Failed to generate access token");
+            }
+            String responseBody = Objects.requireNonNull(response.body()).string();
+            AccessTokenResponse accessToken = objectMapper.readValue(responseBody, AccessTokenResponse.class);
+
+            Instant issuedAt = Instant.now();
+            long expiresIn = parseExpiresIn(accessToken.getExpires_in());
+            Instant expiresAt = issuedAt.plusSeconds(Math.max(expiresIn - expirySkewSeconds, 0));
+            Instant refreshAt = expiresAt.minus(Duration.ofSeconds(Math.min(refreshAheadSeconds, expiresIn / 2)));
+
+            log.debug("Fetched Daraja access token valid for {}s", expiresIn);
+            return new CachedToken(accessToken, expiresAt, refreshAt);
+        } catch (IOException e) {
+            log.error("Failed to generate access token.", e);
+            throw e;
+        } finally {
+            sample.stop(refreshTimer);
+        }
+    }
+
+    private long parseExpiresIn(String expiresIn) {
+        try {
+            return expiresIn != null ? Long.parseLong(expiresIn.trim()) : DEFAULT_EXPIRES_IN_SECONDS;
+        } catch (NumberFormatException e) {
+            log.warn("Unexpected expires_in value '{}', assuming {}s", expiresIn, DEFAULT_EXPIRES_IN_SECONDS);
+            return DEFAULT_EXPIRES_IN_SECONDS;
+        }
+    }
+
+    private record CachedToken(AccessTokenResponse response, Instant expiresAt, Instant refreshAt) {
+    }
+}
@@ -0,0 +1,29 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.model.KesAmount;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * An exchange rate as quoted by an ExchangeRateSource
+ * @param kesPerUsdc How many KES one USDC costs
+ * @param quotedAt When the source quoted it
+ * @param source Where it came from, for the logs
+ */
+public record ExchangeRate(BigDecimal kesPerUsdc, Instant quotedAt, String source) {
+
+    /**
+     * The rate in the fixed-point form stored on transactions
+     * @throws ArithmeticException if it is too large
+     */
+    public long kesPerUsdcMicros() {
+        return kesPerUsdc.setScale(KesAmount.RATE_SCALE, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+    }
+
+    public Duration age(Instant now) {
+        return Duration.between(quotedAt, now);
+    }
+}
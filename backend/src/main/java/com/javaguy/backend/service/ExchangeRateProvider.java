@@ -0,0 +1,127 @@
+package com.javaguy.backend.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The KES/USDC rate on-ramps are priced with. The latest quote is kept as an immutable snapshot and swapped
+ * atomically, so reading it never waits on the source. It is refreshed in the background every
+ * refresh-interval-ms, and a read that finds it fetched more than refresh-after-seconds ago is still served
+ * while a refresh is started (stale-while-revalidate). Once the source's quote is older than max-age-seconds
+ * the rate is no longer used and on-ramps are refused until the source answers with a newer one.
+ */
+@Service
+@Slf4j
+public class ExchangeRateProvider {
+
+    private final ExchangeRateSource source;
+    private final Duration refreshAfter;
+    private final Duration maxAge;
+
+    private final AtomicReference<ExchangeRate> snapshot = new AtomicReference<>();
+    // When the snapshot was last fetched, which can be much later than the source quoted it
+    private volatile Instant fetchedAt = Instant.EPOCH;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private final Counter refreshed;
+    private final Counter refreshFailed;
+
+    public ExchangeRateProvider(ExchangeRateSource source, MeterRegistry meterRegistry,
+                                @Value("${crypto.exchange-rate.refresh-after-seconds:60}") long refreshAfterSeconds,
+                                @Value("${crypto.exchange-rate.max-age-seconds:900}") long maxAgeSeconds) {
+        this.source = source;
+        this.refreshAfter = Duration.ofSeconds(refreshAfterSeconds);
+        this.maxAge = Duration.ofSeconds(maxAgeSeconds);
+
+        this.refreshed = meterRegistry.counter("crypto.exchange.rate.refresh", "outcome", "success");
+        this.refreshFailed = meterRegistry.counter("crypto.exchange.rate.refresh", "outcome", "failure");
+        meterRegistry.gauge("crypto.exchange.rate", Tags.empty(), snapshot,
+                current -> current.get() == null ? Double.NaN : current.get().kesPerUsdc().doubleValue());
+        meterRegistry.gauge("crypto.exchange.rate.age", Tags.empty(), snapshot,
+                current -> current.get() == null ? Double.NaN : current.get().age(Instant.now()).toSeconds());
+    }
+
+    /**
+     * Loads the first rate before the application takes requests. A failure is logged, not thrown:
+     * the scheduled refresh keeps trying, and on-ramps are refused until it succeeds.
+     */
+    @PostConstruct
+    public void load() {
+        refresh();
+    }
+
+    /**
+     * The rate to price an on-ramp with, straight from memory
+     * @throws ExchangeRateUnavailableException if no rate has been loaded, or the last one is too old
+     */
+    public ExchangeRate current() {
+        ExchangeRate rate = snapshot.get();
+        Instant now = Instant.now();
+        if (rate == null || Duration.between(fetchedAt, now).compareTo(refreshAfter) > 0) {
+            revalidate();
+        }
+        if (rate == null) {
+            throw new ExchangeRateUnavailableException("No exchange rate has been loaded yet");
+        }
+        if (rate.age(now).compareTo(maxAge) > 0) {
+            throw new ExchangeRateUnavailableException("The exchange rate from " + rate.source()
+                    + " is " + rate.age(now).toSeconds() + "s old");
+        }
+        return rate;
+    }
+
+    /**
+     * Keeps the rate fresh even while no on-ramps come in
+     */
+    @Scheduled(fixedDelayString = "${crypto.exchange-rate.refresh-interval-ms:60000}",
+            initialDelayString = "${crypto.exchange-rate.refresh-interval-ms:60000}")
+    public void scheduledRefresh() {
+        revalidate();
+    }
+
+    /**
+     * Starts a background refresh unless one is already running
+     */
+    private void revalidate() {
+        if (refreshing.compareAndSet(false, true)) {
+            Thread.ofVirtual().name("exchange-rate-refresh").start(() -> {
+                try {
+                    refresh();
+                } finally {
+                    refreshing.set(false);
+                }
+            });
+        }
+    }
+
+    private void refresh() {
+        try {
+            ExchangeRate rate = source.fetch();
+            if (rate == null || rate.kesPerUsdc() == null || rate.kesPerUsdc().compareTo(BigDecimal.ZERO) <= 0
+                    || rate.kesPerUsdcMicros() <= 0) {
+                throw new IllegalStateException("Not a usable rate: " + rate);
+            }
+            ExchangeRate previous = snapshot.getAndSet(rate);
+            fetchedAt = Instant.now();
+            refreshed.increment();
+            if (previous == null || previous.kesPerUsdc().compareTo(rate.kesPerUsdc()) != 0) {
+                log.info("Exchange rate is now {} KES per USDC (from {})", rate.kesPerUsdc(), rate.source());
+            }
+        } catch (Exception e) {
+            refreshFailed.increment();
+            log.warn("Failed to refresh the exchange rate, keeping the last one: {}", e.getMessage());
+        }
+    }
+}
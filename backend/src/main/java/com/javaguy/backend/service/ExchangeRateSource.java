@@ -0,0 +1,12 @@
+package com.javaguy.backend.service;
+
+import java.io.IOException;
+
+/**
+ * Where the ExchangeRateProvider gets its KES/USDC rate. Only the provider calls it, in the background,
+ * so an implementation may be slow or fail now and then.
+ */
+public interface ExchangeRateSource {
+
+    ExchangeRate fetch() throws IOException;
+}
@@ -0,0 +1,11 @@
+package com.javaguy.backend.service;
+
+/**
+ * Thrown when there is no exchange rate recent enough to price an on-ramp with
+ */
+public class ExchangeRateUnavailableException extends RuntimeException {
+
+    public ExchangeRateUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,145 @@
+package com.javaguy.backend.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.methods.response.EthFeeHistory;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Prices EIP-1559 transactions from the chain's recent fees instead of a fixed gas price. On every new
+ * block the last few blocks' base fees and priority fee rewards are read with eth_feeHistory; the tip is
+ * the median of the chosen reward percentile, and the fee cap leaves room for the base fee to double.
+ * Until the first refresh succeeds, or if eth_feeHistory keeps failing, the fallback fee cap is used.
+ */
+@Slf4j
+public class FeeOracle {
+
+    private static final BigInteger GWEI = BigInteger.TEN.pow(9);
+    private static final BigInteger HUNDRED = BigInteger.valueOf(100);
+
+    /**
+     * What an EIP-1559 transaction offers to pay per gas
+     */
+    public record Fees(BigInteger maxFeePerGas, BigInteger maxPriorityFeePerGas) {
+    }
+
+    private final Web3j web3j;
+    private final int blockCount;
+    private final double rewardPercentile;
+    private final BigInteger minPriorityFee;
+    private final BigInteger maxFeeCap;
+    private final Fees fallback;
+
+    private final AtomicReference<BigInteger> baseFee = new AtomicReference<>();
+    private final AtomicReference<Fees> current = new AtomicReference<>();
+
+    public FeeOracle(Web3j web3j, MeterRegistry meterRegistry, int blockCount, double rewardPercentile,
+                     long minPriorityFeeGwei, long maxFeeCapGwei, long fallbackMaxFeeGwei) {
+        this.web3j = web3j;
+        this.blockCount = blockCount;
+        this.rewardPercentile = rewardPercentile;
+        this.minPriorityFee = gwei(minPriorityFeeGwei);
+        this.maxFeeCap = gwei(maxFeeCapGwei);
+        this.fallback = new Fees(gwei(Math.min(fallbackMaxFeeGwei, maxFeeCapGwei)),
+                gwei(Math.min(minPriorityFeeGwei, fallbackMaxFeeGwei)));
+
+        meterRegistry.gauge("crypto.gas.base.fee", Tags.empty(), baseFee,
+                fee -> fee.get() == null ? Double.NaN : fee.get().doubleValue() / GWEI.doubleValue());
+        meterRegistry.gauge("crypto.gas.max.fee", Tags.empty(), this,
+                oracle -> oracle.current().maxFeePerGas().doubleValue() / GWEI.doubleValue());
+        meterRegistry.gauge("crypto.gas.priority.fee", Tags.empty(), this,
+                oracle -> oracle.current().maxPriorityFeePerGas().doubleValue() / GWEI.doubleValue());
+    }
+
+    /**
+     * The fees to offer in the next block
+     */
+    public Fees current() {
+        Fees fees = current.get();
+        return fees != null ? fees : fallback;
+    }
+
+    /**
+     * Reads the recent fee history and recomputes the fees
+     */
+    public void refresh() throws IOException {
+        EthFeeHistory response = web3j.ethFeeHistory(blockCount, DefaultBlockParameterName.LATEST,
+                List.of(rewardPercentile)).send();
+        if (response.hasError()) {
+            throw new IOException("Failed to fetch fee history: " + response.getError().getMessage());
+        }
+        EthFeeHistory.FeeHistory history = response.getFeeHistory();
+        List<BigInteger> baseFees = history.getBaseFeePerGas();
+        if (baseFees == null || baseFees.isEmpty()) {
+            throw new IOException("Fee history has no base fees");
+        }
+
+        // The last entry is the base fee of the block after the newest one, the block we are bidding for
+        BigInteger nextBaseFee = baseFees.get(baseFees.size() - 1);
+        BigInteger tip = min(medianReward(history.getReward()).max(minPriorityFee), maxFeeCap);
+        BigInteger maxFee = min(nextBaseFee.shiftLeft(1).add(tip), maxFeeCap);
+        if (maxFee.compareTo(nextBaseFee) < 0) {
+            log.warn("Base fee {} gwei is above the {} gwei cap, credits will wait until it falls",
+                    nextBaseFee.divide(GWEI), maxFeeCap.divide(GWEI));
+        }
+
+        baseFee.set(nextBaseFee);
+        current.set(new Fees(maxFee, tip));
+    }
+
+    /**
+     * The fees for a replacement of a transaction sent with the given fees. Nodes only accept a replacement
+     * that raises both fees, so each is raised by at least the given percentage, or to the current fees if
+     * they are higher.
+     * @return the raised fees, or null if the transaction is already at the fee cap, or its tip cannot be
+     * raised enough without going over its fee cap
+     */
+    public Fees bump(Fees sent, int percent) {
+        Fees now = current();
+        BigInteger factor = HUNDRED.add(BigInteger.valueOf(percent));
+        BigInteger maxFee = raise(sent.maxFeePerGas(), factor).max(now.maxFeePerGas());
+        BigInteger minTip = raise(sent.maxPriorityFeePerGas(), factor);
+        BigInteger tip = min(minTip.max(now.maxPriorityFeePerGas()), maxFee);
+        if (maxFee.compareTo(maxFeeCap) > 0 || tip.compareTo(minTip) < 0) {
+            // A replacement with a smaller raise would only be rejected as underpriced
+            return null;
+        }
+        return new Fees(maxFee, tip);
+    }
+
+    private BigInteger medianReward(List<List<BigInteger>> rewards) {
+        List<BigInteger> perBlock = new ArrayList<>();
+        if (rewards != null) {
+            rewards.stream()
+                    .filter(reward -> reward != null && !reward.isEmpty())
+                    .forEach(reward -> perBlock.add(reward.get(0)));
+        }
+        if (perBlock.isEmpty()) {
+            return minPriorityFee;
+        }
+        Collections.sort(perBlock);
+        return perBlock.get(perBlock.size() / 2);
+    }
+
+    // Rounds up, so a bump of a small fee still raises it
+    private static BigInteger raise(BigInteger fee, BigInteger factor) {
+        return fee.multiply(factor).add(HUNDRED.subtract(BigInteger.ONE)).divide(HUNDRED);
+    }
+
+    private static BigInteger min(BigInteger a, BigInteger b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    private static BigInteger gwei(long gwei) {
+        return BigInteger.valueOf(gwei).multiply(GWEI);
+    }
+}
@@ -0,0 +1,86 @@
+package com.javaguy.backend.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.methods.request.Transaction;
+import org.web3j.protocol.core.methods.response.EthEstimateGas;
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Sets gas limits from eth_estimateGas instead of a fixed reservation. The gas a credit uses depends on the
+ * function and, for batches, on the number of recipients, not on the amounts, so an estimate is kept per
+ * function selector and recipient count and reused until it expires. A safety margin covers calls that cost
+ * more than the one estimated, such as the first transfer to a wallet.
+ */
+@Slf4j
+public class GasEstimator {
+
+    private record Key(String selector, int recipients) {
+    }
+
+    private record Estimate(BigInteger gasLimit, Instant estimatedAt) {
+    }
+
+    private final Web3j web3j;
+    private final int marginPercent;
+    private final Duration maxAge;
+
+    private final Map<Key, Estimate> estimates = new ConcurrentHashMap<>();
+
+    private final Counter cached;
+    private final Counter estimated;
+    private final Counter fellBack;
+
+    public GasEstimator(Web3j web3j, MeterRegistry meterRegistry, int marginPercent, Duration maxAge) {
+        this.web3j = web3j;
+        this.marginPercent = marginPercent;
+        this.maxAge = maxAge;
+
+        this.cached = meterRegistry.counter("crypto.gas.estimates", "source", "cache");
+        this.estimated = meterRegistry.counter("crypto.gas.estimates", "source", "node");
+        this.fellBack = meterRegistry.counter("crypto.gas.estimates", "source", "fallback");
+    }
+
+    /**
+     * The gas limit for a contract call
+     * @param data The encoded call, starting with its function selector
+     * @param recipients How many wallets the call credits
+     * @param fallback The limit to use if the node cannot estimate the call
+     */
+    public BigInteger gasLimit(String from, String to, String data, int recipients, Supplier<BigInteger> fallback) {
+        Key key = new Key(data.substring(0, Math.min(data.length(), 10)), recipients);
+        Estimate estimate = estimates.get(key);
+        if (estimate != null && estimate.estimatedAt().plus(maxAge).isAfter(Instant.now())) {
+            cached.increment();
+            return estimate.gasLimit();
+        }
+
+        try {
+            EthEstimateGas response = web3j.ethEstimateGas(Transaction.createEthCallTransaction(from, to, data)).send();
+            if (response.hasError()) {
+                throw new IllegalStateException(response.getError().getMessage());
+            }
+            BigInteger gasLimit = response.getAmountUsed()
+                    .multiply(BigInteger.valueOf(100L + marginPercent))
+                    .divide(BigInteger.valueOf(100));
+            estimates.put(key, new Estimate(gasLimit, Instant.now()));
+            estimated.increment();
+            log.debug("Gas limit for {} with {} recipient(s) is now {}", key.selector(), recipients, gasLimit);
+            return gasLimit;
+        } catch (Exception e) {
+            // Not cached: the next call asks the node again
+            fellBack.increment();
+            log.warn("Failed to estimate gas for {} with {} recipient(s), using the fallback limit: {}",
+                    key.selector(), recipients, e.getMessage());
+            return fallback.get();
+        }
+    }
+}
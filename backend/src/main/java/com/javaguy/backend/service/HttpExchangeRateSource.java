@@ -0,0 +1,95 @@
+package com.javaguy.backend.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Objects;
+
+/**
+ * Reads the rate from a JSON quote API, e.g. a USD base currency endpoint with the KES rate at
+ * /rates/KES. USDC is taken to trade at one USD. The quote is dated with the source's own timestamp, so
+ * a source that keeps serving an old rate is not mistaken for a fresh one; only a response without one
+ * is dated with the time it was fetched.
+ */
+@Component
+@ConditionalOnProperty(name = "crypto.exchange-rate.source", havingValue = "http")
+public class HttpExchangeRateSource implements ExchangeRateSource {
+
+    private final OkHttpClient quoteHttpClient;
+    private final ObjectMapper objectMapper;
+    private final String url;
+    private final String jsonPointer;
+    private final String timestampPointer;
+
+    public HttpExchangeRateSource(@Qualifier("quoteHttpClient") OkHttpClient quoteHttpClient, ObjectMapper objectMapper,
+                                  @Value("${crypto.exchange-rate.http.url}") String url,
+                                  @Value("${crypto.exchange-rate.http.json-pointer:/rates/KES}") String jsonPointer,
+                                  @Value("${crypto.exchange-rate.http.timestamp-pointer:/time_last_update_unix}")
+                                  String timestampPointer) {
+        this.quoteHttpClient = quoteHttpClient;
+        this.objectMapper = objectMapper;
+        this.url = url;
+        this.jsonPointer = jsonPointer;
+        this.timestampPointer = timestampPointer;
+    }
+
+    @Override
+    public ExchangeRate fetch() throws IOException {
+        try (Response response = quoteHttpClient.newCall(new Request.Builder().url(url).get().build()).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("Quote API answered " + response.code());
+            }
+
+            JsonNode quote = objectMapper.readTree(Objects.requireNonNull(response.body()).byteStream());
+            JsonNode rate = quote.at(jsonPointer);
+            if (!rate.isNumber()) {
+                throw new IOException("Quote API response has no number at " + jsonPointer);
+            }
+            return new ExchangeRate(rate.decimalValue(), quotedAt(quote), url);
+        }
+    }
+
+    /**
+     * When the source quoted the rate: epoch seconds, or an ISO-8601 or RFC 1123 date. Never later than now,
+     * so a source clock running ahead cannot make a quote look newer than it is.
+     * @throws IOException if the timestamp is there but cannot be read
+     */
+    private Instant quotedAt(JsonNode quote) throws IOException {
+        Instant now = Instant.now();
+        JsonNode timestamp = quote.at(timestampPointer);
+        if (timestampPointer.isEmpty() || timestamp.isMissingNode() || timestamp.isNull()) {
+            return now;
+        }
+
+        String text = timestamp.asText();
+        Instant quotedAt;
+        try {
+            quotedAt = timestamp.isNumber() || text.matches("\\d+")
+                    ? Instant.ofEpochSecond(timestamp.asLong())
+                    : parseDate(text);
+        } catch (DateTimeParseException e) {
+            throw new IOException("Quote API timestamp at " + timestampPointer + " is not a date: " + text);
+        }
+        return quotedAt.isAfter(now) ? now : quotedAt;
+    }
+
+    private static Instant parseDate(String text) {
+        try {
+            return Instant.parse(text);
+        } catch (DateTimeParseException e) {
+            return ZonedDateTime.parse(text, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        }
+    }
+}
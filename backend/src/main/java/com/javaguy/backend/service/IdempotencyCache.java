@@ -0,0 +1,110 @@
+package com.javaguy.backend.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the outcome of recent on-ramp requests by Idempotency-Key. A replay within the window gets
+ * the original result without running the request again, and a duplicate that arrives while the first is
+ * still running waits for it instead of starting its own. Failures are not remembered, so a failed request
+ * can be retried with the same key. The cache is bounded and local to this instance; the unique
+ * idempotency_key column covers keys it has evicted or never saw.
+ */
+@Component
+public class IdempotencyCache {
+
+    private record Entry(String fingerprint, CompletableFuture<String> result, long expiresAtNanos) {
+    }
+
+    private final int maxEntries;
+    private final long windowNanos;
+    private final Map<String, Entry> entries;
+
+    private final Counter replays;
+    private final Counter coalesced;
+
+    public IdempotencyCache(@Value("${transactions.idempotency.max-entries:10000}") int maxEntries,
+                            @Value("${transactions.idempotency.window-minutes:1440}") long windowMinutes,
+                            MeterRegistry meterRegistry) {
+        this.maxEntries = maxEntries;
+        this.windowNanos = Duration.ofMinutes(windowMinutes).toNanos();
+        // Insertion order, so the eldest entry is the one closest to expiring
+        this.entries = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > IdempotencyCache.this.maxEntries;
+            }
+        };
+        this.replays = meterRegistry.counter("transactions.onramp.idempotent", "result", "replayed");
+        this.coalesced = meterRegistry.counter("transactions.onramp.idempotent", "result", "coalesced");
+    }
+
+    /**
+     * Runs the request unless one with the same key was run within the window, or is running now
+     * @param key The client's Idempotency-Key
+     * @param fingerprint What the request asked for; a known key with another fingerprint is rejected
+     * @param request Runs the request and returns its result
+     * @return the result of the first request made with this key
+     * @throws IdempotencyKeyReusedException if the key was used for a different request
+     */
+    public String execute(String key, String fingerprint, Supplier<String> request) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        Entry entry = new Entry(fingerprint, result, System.nanoTime() + windowNanos);
+
+        Entry existing;
+        synchronized (entries) {
+            existing = entries.get(key);
+            if (existing != null && System.nanoTime() - existing.expiresAtNanos() > 0) {
+                // Removed rather than overwritten, so the new entry goes to the back of the eviction order
+                entries.remove(key);
+                existing = null;
+            }
+            if (existing == null) {
+                entries.put(key, entry);
+            }
+        }
+
+        if (existing != null) {
+            if (!existing.fingerprint().equals(fingerprint)) {
+                throw new IdempotencyKeyReusedException(key);
+            }
+            (existing.result().isDone() ? replays : coalesced).increment();
+            return await(existing.result());
+        }
+
+        try {
+            String value = request.get();
+            result.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            synchronized (entries) {
+                entries.remove(key, entry);
+            }
+            result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the first request, failing the same way it did
+     */
+    private static String await(CompletableFuture<String> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.javaguy.backend.service;
+
+/**
+ * Thrown when an Idempotency-Key that was already used comes back with a different on-ramp request
+ */
+public class IdempotencyKeyReusedException extends RuntimeException {
+
+    public IdempotencyKeyReusedException(String idempotencyKey) {
+        super("Idempotency-Key " + idempotencyKey + " was already used for a different request");
+    }
+}
@@ -1,28 +1,25 @@
 package com.javaguy.backend.service;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.javaguy.backend.dto.*;
-import com.javaguy.backend.utils.Helper;
+import com.javaguy.backend.utils.JsonRequestBody;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.*;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.time.LocalDateTime;
 import java.util.Objects;
 
 @Service
 @Slf4j
 public class MpesaService {
 
-    @Value("${mpesa.daraja.consumer-key}")
-    private String consumerKey;
-    @Value("${mpesa.daraja.consumer-secret}")
-    private String consumerSecret;
     @Value("${mpesa.daraja.business-shortcode}")
     private String businessShortCode;
-    @Value("${mpesa.daraja.passkey}")
-    private String passkey;
     @Value("${mpesa.daraja.stk-push-url}")
     private String stkPushurl;
     @Value("${mpesa.daraja.stk-push-callback-url}")
@@ -30,44 +27,35 @@ public class MpesaService {
     @Value("${mpesa.daraja.status-query}")
     private String statusQueryUrl;
 
-    private final OkHttpClient okHttpClient;
+    private final DarajaClient darajaClient;
     private final ObjectMapper objectMapper;
+    private final DarajaTokenManager tokenManager;
+    private final OnRampMetrics metrics;
+    private final StkPassword stkPassword;
 
+    // Built once; every request body is streamed through these into the connection
+    private final ObjectWriter stkPushWriter;
+    private final ObjectWriter statusQueryWriter;
 
-    public MpesaService(OkHttpClient okHttpClient, ObjectMapper objectMapper) {
-        this.okHttpClient = okHttpClient;
+    public MpesaService(DarajaClient darajaClient, ObjectMapper objectMapper, DarajaTokenManager tokenManager,
+                        OnRampMetrics metrics, StkPassword stkPassword) {
+        this.darajaClient = darajaClient;
         this.objectMapper = objectMapper;
+        this.tokenManager = tokenManager;
+        this.metrics = metrics;
+        this.stkPassword = stkPassword;
+        this.stkPushWriter = JsonRequestBody.writerFor(objectMapper, STKPushRequest.class);
+        this.statusQueryWriter = JsonRequestBody.writerFor(objectMapper, STKPushQueryRequest.class);
     }
 
     /**
-     * Generates access token for the M-Pesa API calls using the consumer key and secret provided by Safaricom Daraja API portal https://developer.safaricom.co.ke/
+     * Returns the cached access token for the M-Pesa API calls, generating a new one through Safaricom Daraja API portal https://developer.safaricom.co.ke/ only when needed
      * @return AccessTokenResponse
      * @throws IOException
      */
 
     public AccessTokenResponse generateAccessToken() throws IOException {
-        String credentials = Credentials.basic(consumerKey, consumerSecret);
-        // Prepare the request
-        Request request = new Request.Builder()
-                .url("https://sandbox.safaricom.co.ke/oauth/v1/generate?grant_type=client_credentials")
-                .get()
-                .addHeader("Authorization", credentials)
-                .build();
-        log.debug("Request prepared: {}", request);
-        // Execute the request
-        try (Response response = okHttpClient.newCall(request).execute()) {
-            log.debug("Response received: {}", response);
-            if (!response.isSuccessful()) {
-                String responseBody = response.body() != null ? response.body().string() : "No response body";
-                log.error("Failed to generate access token. Response: {} - {}", response.code(), responseBody);
-                throw new IOException("Failed to generate access token");
-            }
-            String responseBody = Objects.requireNonNull(response.body()).string();
-            return objectMapper.readValue(responseBody, AccessTokenResponse.class);
-        } catch (IOException e) {
-            log.error("Failed to generate access token.", e);
-            throw e;
-        }
+        return tokenManager.getAccessToken();
     }
 
     /**
@@ -81,16 +69,13 @@ public class MpesaService {
     public STKPushResponse initiateSTKPush(String phoneNumber, String amount) throws IOException {
         //format the phone number
         phoneNumber = phoneNumber.startsWith("0") ? phoneNumber.replaceFirst("0", "254") : phoneNumber;
-        //generate access token
-        AccessTokenResponse accessTokenResponse = generateAccessToken();
         // Prepare the request
-        String timestamp = Helper.getTimestamp();
-        String password = Helper.toBase64(businessShortCode + passkey + timestamp);
+        StkPassword.Credentials credentials = stkPassword.current();
 
         STKPushRequest stkPushRequest = new STKPushRequest();
         stkPushRequest.setBusinessShortCode(businessShortCode);
-        stkPushRequest.setPassword(password);
-        stkPushRequest.setTimestamp(timestamp);
+        stkPushRequest.setPassword(credentials.password());
+        stkPushRequest.setTimestamp(credentials.timestamp());
         stkPushRequest.setTransactionType("CustomerPayBillOnline");
         stkPushRequest.setAmount(amount);
         stkPushRequest.setPartyA(phoneNumber);
@@ -100,17 +85,15 @@ public class MpesaService {
         stkPushRequest.setAccountReference("Test");
         stkPushRequest.setTransactionDesc("Test");
 
-        String jsonRequest = objectMapper.writeValueAsString(stkPushRequest);
-        RequestBody requestBody = RequestBody.create(jsonRequest, MediaType.parse("application/json"));
-        Request request = new Request.Builder()
+        // The body sets the Content-Type header
+        Request.Builder request = new Request.Builder()
                 .url(stkPushurl)
-                .post(requestBody)
-                .addHeader("Authorization", "Bearer " + accessTokenResponse.getAccess_token())
-                .addHeader("Content-Type", "application/json")
-                .build();
-        log.debug("Request prepared: {}", request);
+                .post(JsonRequestBody.of(stkPushWriter, stkPushRequest));
+        log.debug("STK push request prepared for {}", phoneNumber);
         // Execute the request
-        try (Response response = okHttpClient.newCall(request).execute()) {
+        long started = System.nanoTime();
+        boolean success = false;
+        try (Response response = executeAuthorized(DarajaEndpoint.STK_PUSH, request)) {
             log.debug("Response received: {}", response);
             if (!response.isSuccessful()) {
                 String responseBody = response.body() != null ? response.body().string() : "No response body";
@@ -119,10 +102,14 @@ public class MpesaService {
             }
             String responseBody = Objects.requireNonNull(response.body()).string();
             log.info("Successfully initiated STK push. Response: {}", responseBody);
-            return objectMapper.readValue(responseBody, STKPushResponse.class);
+            STKPushResponse stkPushResponse = objectMapper.readValue(responseBody, STKPushResponse.class);
+            success = true;
+            return stkPushResponse;
         } catch (IOException e) {
             log.error("Failed to initiate STK push.", e);
             throw e;
+        } finally {
+            metrics.recordStage(OnRampMetrics.Stage.STK_PUSH, started, success);
         }
     }
 
@@ -133,33 +120,25 @@ public class MpesaService {
      * @throws IOException
      */
     public STKPushQueryResponse queryTransactionStatus(String checkoutRequestId) throws IOException {
-        // Generate access token
-        AccessTokenResponse accessTokenResponse = generateAccessToken();
-
         // Prepare the request
-        String timestamp = Helper.getTimestamp();
-        String password = Helper.toBase64(businessShortCode + passkey + timestamp);
+        StkPassword.Credentials credentials = stkPassword.current();
 
         STKPushQueryRequest queryRequest = new STKPushQueryRequest();
         queryRequest.setBusinessShortCode(businessShortCode);
-        queryRequest.setPassword(password);
-        queryRequest.setTimestamp(timestamp);
+        queryRequest.setPassword(credentials.password());
+        queryRequest.setTimestamp(credentials.timestamp());
         queryRequest.setCheckoutRequestID(checkoutRequestId);
 
-        String jsonRequest = objectMapper.writeValueAsString(queryRequest);
-        RequestBody requestBody = RequestBody.create(jsonRequest, MediaType.parse("application/json"));
-
-        Request request = new Request.Builder()
+        Request.Builder request = new Request.Builder()
                 .url(statusQueryUrl)
-                .post(requestBody)
-                .addHeader("Authorization", "Bearer " + accessTokenResponse.getAccess_token())
-                .addHeader("Content-Type", "application/json")
-                .build();
+                .post(JsonRequestBody.of(statusQueryWriter, queryRequest));
 
-        log.debug("Status query request prepared: {}", request);
+        log.debug("Status query request prepared for {}", checkoutRequestId);
 
         // Execute the request
-        try (Response response = okHttpClient.newCall(request).execute()) {
+        long started = System.nanoTime();
+        boolean success = false;
+        try (Response response = executeAuthorized(DarajaEndpoint.STK_QUERY, request)) {
             log.debug("Status query response received: {}", response);
 
             if (!response.isSuccessful()) {
@@ -170,11 +149,69 @@ public class MpesaService {
 
             String responseBody = Objects.requireNonNull(response.body()).string();
             log.info("Successfully queried transaction status. Response: {}", responseBody);
-            return objectMapper.readValue(responseBody, STKPushQueryResponse.class);
+            STKPushQueryResponse queryResponse = objectMapper.readValue(responseBody, STKPushQueryResponse.class);
+            success = true;
+            return queryResponse;
         } catch (IOException e) {
             log.error("Failed to query transaction status.", e);
             throw e;
+        } finally {
+            metrics.recordStage(OnRampMetrics.Stage.STATUS_QUERY, started, success);
+        }
+    }
+
+    /**
+     * Parses the stkCallback payload that Daraja posts to the callback URL
+     * @param payload The raw callback body
+     * @return CallBackRequest
+     */
+    public CallBackRequest parseCallback(JsonNode payload) {
+        JsonNode stkCallback = payload.path("Body").path("stkCallback");
+        if (stkCallback.isMissingNode() || !stkCallback.hasNonNull("CheckoutRequestID")) {
+            throw new IllegalArgumentException("Callback payload has no stkCallback.CheckoutRequestID");
+        }
+
+        CallBackRequest.CallBackRequestBuilder callBack = CallBackRequest.builder()
+                .merchantRequestId(stkCallback.path("MerchantRequestID").asText(null))
+                .checkoutRequestId(stkCallback.path("CheckoutRequestID").asText())
+                .resultCode(stkCallback.path("ResultCode").asInt(-1))
+                .resultDesc(stkCallback.path("ResultDesc").asText(null))
+                .processedAt(LocalDateTime.now());
+
+        // CallbackMetadata is only present for successful payments
+        for (JsonNode item : stkCallback.path("CallbackMetadata").path("Item")) {
+            JsonNode value = item.path("Value");
+            switch (item.path("Name").asText()) {
+                case "Amount" -> callBack.amount(value.asText());
+                case "MpesaReceiptNumber" -> callBack.mpesaReceiptNumber(value.asText());
+                case "TransactionDate" -> callBack.transactionDate(value.asText());
+                case "PhoneNumber" -> callBack.phoneNumber(value.asText());
+                default -> {
+                }
+            }
+        }
+        return callBack.build();
+    }
+
+    /**
+     * Executes the request with the cached access token, within the endpoint's rate limit and bulkhead.
+     * A 401 invalidates the token and the request is retried once with a fresh one.
+     */
+    private Response executeAuthorized(DarajaEndpoint endpoint, Request.Builder request) throws IOException {
+        AccessTokenResponse accessToken = tokenManager.getAccessToken();
+        Response response = darajaClient.execute(endpoint, withBearer(request, accessToken));
+        if (response.code() != 401) {
+            return response;
         }
+
+        response.close();
+        log.warn("Daraja rejected the access token, refreshing and retrying once");
+        tokenManager.invalidate(accessToken);
+        return darajaClient.execute(endpoint, withBearer(request, tokenManager.getAccessToken()));
+    }
+
+    private Request withBearer(Request.Builder request, AccessTokenResponse accessToken) {
+        return request.header("Authorization", "Bearer " + accessToken.getAccess_token()).build();
     }
 
 }
@@ -0,0 +1,150 @@
+package com.javaguy.backend.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.methods.response.EthGetTransactionCount;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Hands out nonces for the signer account without an RPC round trip per transaction.
+ * The counter is seeded once from the PENDING transaction count and resynchronised from the node
+ * whenever a send reveals that the local view is wrong (nonce too low, a gap left by a failed send).
+ * <p>
+ * Every allocated nonce stays outstanding until its send either reaches the node ({@link #sent}) or fails
+ * ({@link #release}, {@link #resync}). The node's count does not include outstanding nonces, so a resync is
+ * deferred until none are left: new allocations wait for it instead of reusing a nonce already being signed.
+ * <p>
+ * The count only stays right while this is the one sender for the address: another process signing with the
+ * same key would be handed the same nonces. Across backend instances the {@link CreditSenderLease} makes
+ * sure only one of them sends at a time, and an instance taking over calls {@link #reseed}.
+ */
+@Slf4j
+public class NonceManager {
+
+    private static final long UNSEEDED = -1L;
+
+    private final Web3j web3j;
+    private final String address;
+
+    private long nextNonce = UNSEEDED;
+    private boolean resyncRequested;
+    private final Set<Long> outstanding = new HashSet<>();
+
+    public NonceManager(Web3j web3j, String address) {
+        this.web3j = web3j;
+        this.address = address;
+    }
+
+    /**
+     * Allocates the next nonce, seeding from the node on first use. If a resync is pending this waits until
+     * every outstanding send has finished, then reloads the count from the node.
+     */
+    public synchronized BigInteger next() throws IOException {
+        while (resyncRequested && !outstanding.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the nonce to resynchronise", e);
+            }
+        }
+        if (nextNonce == UNSEEDED || resyncRequested) {
+            reload();
+        }
+        long nonce = nextNonce++;
+        outstanding.add(nonce);
+        return BigInteger.valueOf(nonce);
+    }
+
+    /**
+     * Marks a nonce's transaction as accepted by the node
+     */
+    public synchronized void sent(BigInteger nonce) {
+        finish(nonce.longValueExact());
+    }
+
+    /**
+     * Returns a nonce whose transaction never reached the node. If it was the last one handed out it is
+     * simply reused; otherwise later nonces are already in use and the gap is closed by resyncing.
+     */
+    public synchronized void release(BigInteger nonce) {
+        long released = nonce.longValueExact();
+        finish(released);
+        if (!resyncRequested && released == nextNonce - 1) {
+            nextNonce = released;
+            return;
+        }
+        log.warn("Nonce {} left a gap, resynchronising with the node once outstanding sends finish", released);
+        resyncRequested = true;
+    }
+
+    /**
+     * Gives up a nonce whose fate the node decides: it was rejected as already used, or the send failed
+     * part way and may or may not have arrived. The next nonce is reloaded from the node's PENDING count
+     * once no other send is outstanding.
+     */
+    public synchronized void resync(BigInteger nonce) {
+        finish(nonce.longValueExact());
+        resyncRequested = true;
+    }
+
+    /**
+     * Reloads the next nonce from the node once no send is outstanding, for when another sender may have
+     * used nonces since this counter was seeded
+     */
+    public synchronized void reseed() {
+        if (nextNonce != UNSEEDED) {
+            resyncRequested = true;
+        }
+    }
+
+    /**
+     * Whether a send error means the nonce was already used, so the local counter is behind the node
+     */
+    public static boolean isNonceError(String errorMessage) {
+        if (errorMessage == null) {
+            return false;
+        }
+        String message = errorMessage.toLowerCase();
+        return message.contains("nonce too low")
+                || message.contains("replacement transaction underpriced");
+    }
+
+    /**
+     * Whether a send error means the node already has this exact transaction, for example because an
+     * earlier attempt timed out after reaching it. That is a successful send, not a nonce conflict.
+     */
+    public static boolean isAlreadyKnown(String errorMessage) {
+        return errorMessage != null && errorMessage.toLowerCase().contains("already known");
+    }
+
+    private void finish(long nonce) {
+        outstanding.remove(nonce);
+        if (outstanding.isEmpty()) {
+            notifyAll();
+        }
+    }
+
+    private void reload() throws IOException {
+        long pending = fetchPendingCount();
+        log.info("{} nonce for {}: {} -> {}", nextNonce == UNSEEDED ? "Seeded" : "Resynchronised",
+                address, nextNonce, pending);
+        nextNonce = pending;
+        resyncRequested = false;
+    }
+
+    private long fetchPendingCount() throws IOException {
+        EthGetTransactionCount transactionCount = web3j
+                .ethGetTransactionCount(address, DefaultBlockParameterName.PENDING)
+                .send();
+        if (transactionCount.hasError()) {
+            throw new IOException("Failed to fetch transaction count: " + transactionCount.getError().getMessage());
+        }
+        return transactionCount.getTransactionCount().longValueExact();
+    }
+}
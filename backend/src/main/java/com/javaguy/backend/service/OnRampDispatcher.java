@@ -0,0 +1,162 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.model.CryptoTransaction;
+import com.javaguy.backend.model.KesAmount;
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import com.javaguy.backend.repository.CryptoTransactionRepository.StaleInitiation;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Accepts async on-ramps: the transaction is saved as INITIATING and its STK push is sent on a virtual
+ * thread, so the request thread returns as soon as the row is committed. At most max-queued pushes are
+ * waiting or running at once (the DarajaClient decides how many actually run); beyond that new requests
+ * are rejected instead of queued without bound. Unless set, max-queued is what the STK push limits can
+ * start within their max-wait-ms, so a push that would only time out waiting for a slot is turned away
+ * with a 503 up front. With an idempotency key the INITIATING row is saved
+ * before anything is sent, so its unique column stops duplicates across instances too.
+ */
+@Service
+@Slf4j
+public class OnRampDispatcher {
+
+    private final TransactionService transactionService;
+    private final TransactionStateMachine stateMachine;
+    private final CryptoTransactionRepository transactionRepository;
+    private final IdempotencyCache idempotencyCache;
+    private final Semaphore queue;
+    private final long staleAfterSeconds;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public OnRampDispatcher(TransactionService transactionService, TransactionStateMachine stateMachine,
+                            CryptoTransactionRepository transactionRepository, IdempotencyCache idempotencyCache,
+                            MeterRegistry meterRegistry, Environment environment,
+                            @Value("${transactions.onramp.async.max-queued:0}") int configuredMaxQueued,
+                            @Value("${transactions.onramp.async.stale-after-seconds:120}") long staleAfterSeconds) {
+        int maxQueued = configuredMaxQueued > 0 ? configuredMaxQueued : stkPushCapacity(environment);
+        log.info("Queueing at most {} async STK pushes", maxQueued);
+        this.transactionService = transactionService;
+        this.stateMachine = stateMachine;
+        this.transactionRepository = transactionRepository;
+        this.idempotencyCache = idempotencyCache;
+        this.queue = new Semaphore(maxQueued);
+        this.staleAfterSeconds = staleAfterSeconds;
+
+        meterRegistry.gauge("transactions.onramp.dispatch.queued", Tags.empty(), queue,
+                permits -> maxQueued - permits.availablePermits());
+    }
+
+    /**
+     * How many STK pushes can get a slot within max-wait-ms: the ones running at once, plus those the
+     * rate limit lets start while the oldest waits
+     */
+    static int stkPushCapacity(Environment environment) {
+        String prefix = "mpesa.daraja.limits." + DarajaEndpoint.STK_PUSH.key() + ".";
+        double ratePerSecond = environment.getRequiredProperty(prefix + "rate-per-second", Double.class);
+        int maxConcurrent = environment.getRequiredProperty(prefix + "max-concurrent", Integer.class);
+        long maxWaitMs = environment.getRequiredProperty(prefix + "max-wait-ms", Long.class);
+        return (int) Math.ceil(ratePerSecond * maxWaitMs / 1000.0) + maxConcurrent;
+    }
+
+    /**
+     * Saves the on-ramp and queues its STK push
+     * @param idempotencyKey The client's Idempotency-Key, or null
+     * @return the id of the transaction, which the status resource reports on
+     * @throws OnRampRejectedException if the queue is full
+     * @throws IdempotencyKeyReusedException if the key was already used for a different request
+     */
+    public Long submit(String phoneNumber, KesAmount amountKES, String walletAddress, String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return accept(phoneNumber, amountKES, walletAddress, null);
+        }
+        // Kept apart from the blocking endpoint's entries, which hold checkout request ids
+        String fingerprint = phoneNumber + "|" + amountKES + "|" + walletAddress;
+        return Long.valueOf(idempotencyCache.execute("async:" + idempotencyKey, fingerprint,
+                () -> String.valueOf(acceptOnce(phoneNumber, amountKES, walletAddress, idempotencyKey))));
+    }
+
+    private Long acceptOnce(String phoneNumber, KesAmount amountKES, String walletAddress, String idempotencyKey) {
+        Optional<CryptoTransaction> stored =
+                transactionService.findIdempotent(idempotencyKey, phoneNumber, amountKES, walletAddress);
+        if (stored.isPresent()) {
+            return stored.get().getId();
+        }
+
+        try {
+            return accept(phoneNumber, amountKES, walletAddress, idempotencyKey);
+        } catch (DataIntegrityViolationException e) {
+            // Another instance saved the key first, and only it sends the push
+            return transactionService.findIdempotent(idempotencyKey, phoneNumber, amountKES, walletAddress)
+                    .orElseThrow(() -> e)
+                    .getId();
+        }
+    }
+
+    private Long accept(String phoneNumber, KesAmount amountKES, String walletAddress, String idempotencyKey) {
+        if (!queue.tryAcquire()) {
+            throw new OnRampRejectedException("Too many on-ramps are waiting for an STK push");
+        }
+
+        CryptoTransaction transaction;
+        try {
+            transaction = transactionService.createInitiation(phoneNumber, amountKES, walletAddress, idempotencyKey);
+        } catch (RuntimeException e) {
+            queue.release();
+            throw e;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    transactionService.sendStkPush(transaction);
+                } finally {
+                    queue.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down; the row is failed by the stale initiation check
+            queue.release();
+            throw new OnRampRejectedException("The service is shutting down");
+        }
+        return transaction.getId();
+    }
+
+    /**
+     * Fails on-ramps left INITIATING by an instance that stopped before recording their STK push.
+     * The push may or may not have gone out; a payment for it finds no pending transaction, so it
+     * cannot be credited, and the client sees the on-ramp failed.
+     */
+    @Scheduled(fixedDelayString = "${transactions.onramp.async.stale-check-interval-ms:30000}")
+    public void failStaleInitiations() {
+        try {
+            for (StaleInitiation stale : transactionRepository.findStaleInitiations(
+                    LocalDateTime.now().minusSeconds(staleAfterSeconds))) {
+                log.error("Transaction {} was still INITIATING after {}s, marking it FAILED", stale.getId(), staleAfterSeconds);
+                stateMachine.recordInitiationFailure(stale.getId(), stale.getWalletAddress(), stale.getCreatedAt(),
+                        "STK push was not confirmed, please try again");
+            }
+        } catch (Exception e) {
+            log.warn("Failed to check for stale initiations: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,149 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.model.TransactionStatus;
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import com.javaguy.backend.repository.CryptoTransactionRepository.OpenSummary;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-ramp metrics shared by the services that move a transaction along: a timer per stage
+ * (STK push, status query, credit send, confirmation), the end-to-end time from creation to the
+ * terminal status, a counter per terminal status, and the number and age of open transactions per status.
+ * The open transaction gauges are refreshed from the database on a fixed delay rather than on every scrape.
+ */
+@Component
+@Slf4j
+public class OnRampMetrics {
+
+    public enum Stage {
+        STK_PUSH,
+        STATUS_QUERY,
+        CREDIT_SEND,
+        CONFIRMATION;
+
+        String tag() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final List<TransactionStatus> OPEN_STATUSES =
+            List.of(TransactionStatus.INITIATING, TransactionStatus.PENDING, TransactionStatus.PAID, TransactionStatus.SUBMITTED);
+    private static final List<TransactionStatus> TERMINAL_STATUSES = List.of(TransactionStatus.COMPLETED,
+            TransactionStatus.FAILED, TransactionStatus.TIMED_OUT, TransactionStatus.BLOCKCHAIN_ERROR);
+
+    private final MeterRegistry meterRegistry;
+    private final CryptoTransactionRepository transactionRepository;
+
+    private final Map<Stage, Timer> stageSuccesses = new EnumMap<>(Stage.class);
+    private final Map<Stage, Timer> stageFailures = new EnumMap<>(Stage.class);
+    private final Map<TransactionStatus, Timer> endToEnd = new EnumMap<>(TransactionStatus.class);
+    private final Map<TransactionStatus, Counter> terminal = new EnumMap<>(TransactionStatus.class);
+    private final Map<TransactionStatus, AtomicLong> openCounts = new EnumMap<>(TransactionStatus.class);
+    private final Map<TransactionStatus, AtomicLong> oldestOpenAges = new EnumMap<>(TransactionStatus.class);
+
+    public OnRampMetrics(MeterRegistry meterRegistry, CryptoTransactionRepository transactionRepository) {
+        this.meterRegistry = meterRegistry;
+        this.transactionRepository = transactionRepository;
+
+        for (Stage stage : Stage.values()) {
+            stageSuccesses.put(stage, stageTimer(stage, "success"));
+            stageFailures.put(stage, stageTimer(stage, "failure"));
+        }
+        for (TransactionStatus status : TERMINAL_STATUSES) {
+            String tag = status.name();
+            endToEnd.put(status, Timer.builder("transactions.end.to.end")
+                    .tag("status", tag)
+                    .publishPercentileHistogram()
+                    .maximumExpectedValue(Duration.ofHours(3))
+                    .register(meterRegistry));
+            terminal.put(status, meterRegistry.counter("transactions.terminal", "status", tag));
+        }
+        for (TransactionStatus status : OPEN_STATUSES) {
+            Tags tags = Tags.of("status", status.name());
+            openCounts.put(status, meterRegistry.gauge("transactions.open", tags, new AtomicLong()));
+            oldestOpenAges.put(status, meterRegistry.gauge("transactions.open.oldest.age.seconds", tags, new AtomicLong()));
+        }
+    }
+
+    /**
+     * Records how long a stage took
+     * @param started The System.nanoTime() when the stage started
+     * @param success Whether the stage did what it was asked to
+     */
+    public void recordStage(Stage stage, long started, boolean success) {
+        (success ? stageSuccesses : stageFailures).get(stage).record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordStage(Stage stage, Duration duration) {
+        stageSuccesses.get(stage).record(duration);
+    }
+
+    /**
+     * Counts a transaction reaching a terminal status and, when its creation time is known, how long it took
+     */
+    public void recordTerminal(TransactionStatus status, LocalDateTime createdAt, LocalDateTime processedAt) {
+        Counter counter = terminal.get(status);
+        if (counter == null) {
+            return;
+        }
+        counter.increment();
+        if (createdAt != null && processedAt != null) {
+            endToEnd.get(status).record(Duration.between(createdAt, processedAt));
+        }
+    }
+
+    public void recordOnRampRequest(String outcome) {
+        meterRegistry.counter("transactions.onramp.requests", "outcome", outcome).increment();
+    }
+
+    /**
+     * @param source Where the result came from, callback or query
+     * @param result paid, failed or pending
+     */
+    public void recordPaymentResult(String source, String result) {
+        meterRegistry.counter("transactions.payment.results", "source", source, "result", result).increment();
+    }
+
+    @Scheduled(fixedDelayString = "${transactions.metrics.open-refresh-ms:15000}")
+    public void refreshOpenTransactions() {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            Map<TransactionStatus, OpenSummary> summaries = new EnumMap<>(TransactionStatus.class);
+            for (OpenSummary summary : transactionRepository.summarizeOpen()) {
+                summaries.put(summary.getStatus(), summary);
+            }
+
+            for (TransactionStatus status : OPEN_STATUSES) {
+                OpenSummary summary = summaries.get(status);
+                openCounts.get(status).set(summary == null ? 0 : summary.getCount());
+                oldestOpenAges.get(status).set(summary == null || summary.getOldestCreatedAt() == null
+                        ? 0
+                        : Math.max(Duration.between(summary.getOldestCreatedAt(), now).toSeconds(), 0));
+            }
+        } catch (Exception e) {
+            log.warn("Failed to refresh open transaction gauges: {}", e.getMessage());
+        }
+    }
+
+    private Timer stageTimer(Stage stage, String outcome) {
+        return Timer.builder("transactions.stage.duration")
+                .tags("stage", stage.tag(), "outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,11 @@
+package com.javaguy.backend.service;
+
+/**
+ * Thrown when the async on-ramp queue is full and a new request cannot be accepted
+ */
+public class OnRampRejectedException extends RuntimeException {
+
+    public OnRampRejectedException(String message) {
+        super(message);
+    }
+}
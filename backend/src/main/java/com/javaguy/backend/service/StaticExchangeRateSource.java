@@ -0,0 +1,27 @@
+package com.javaguy.backend.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * A fixed rate from crypto.exchange-rate.static-rate, for local runs and tests
+ */
+@Component
+@ConditionalOnProperty(name = "crypto.exchange-rate.source", havingValue = "static", matchIfMissing = true)
+public class StaticExchangeRateSource implements ExchangeRateSource {
+
+    private final BigDecimal kesPerUsdc;
+
+    public StaticExchangeRateSource(@Value("${crypto.exchange-rate.static-rate:1.0}") BigDecimal kesPerUsdc) {
+        this.kesPerUsdc = kesPerUsdc;
+    }
+
+    @Override
+    public ExchangeRate fetch() {
+        return new ExchangeRate(kesPerUsdc, Instant.now(), "static");
+    }
+}
@@ -0,0 +1,50 @@
+package com.javaguy.backend.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+/**
+ * When a pending transaction's status should next be queried. The first check waits out the callback
+ * grace period, since the callback settles most payments; after that the delay doubles with every check
+ * that comes back without a result, up to a cap, and the transaction times out once it is old enough.
+ */
+@Component
+public class StatusCheckSchedule {
+
+    private final Duration callbackGrace;
+    private final Duration initialBackoff;
+    private final Duration maxBackoff;
+    private final Duration expireAfter;
+
+    public StatusCheckSchedule(@Value("${transactions.status-check.callback-grace-seconds:60}") long callbackGraceSeconds,
+                               @Value("${transactions.status-check.backoff-initial-seconds:15}") long initialBackoffSeconds,
+                               @Value("${transactions.status-check.backoff-max-seconds:600}") long maxBackoffSeconds,
+                               @Value("${transactions.status-check.expire-after-minutes:120}") long expireAfterMinutes) {
+        this.callbackGrace = Duration.ofSeconds(callbackGraceSeconds);
+        this.initialBackoff = Duration.ofSeconds(initialBackoffSeconds);
+        this.maxBackoff = Duration.ofSeconds(maxBackoffSeconds);
+        this.expireAfter = Duration.ofMinutes(expireAfterMinutes);
+    }
+
+    public LocalDateTime firstCheckAt(LocalDateTime createdAt) {
+        return createdAt.plus(callbackGrace);
+    }
+
+    /**
+     * @param now When the last check finished
+     * @param attempts The number of checks made so far, at least 1
+     */
+    public LocalDateTime nextCheckAt(LocalDateTime now, int attempts) {
+        // Capping the shift keeps the multiplication from overflowing for very old rows
+        long multiplier = 1L << Math.min(Math.max(attempts - 1, 0), 20);
+        Duration delay = initialBackoff.multipliedBy(multiplier);
+        return now.plus(delay.compareTo(maxBackoff) > 0 ? maxBackoff : delay);
+    }
+
+    public boolean isExpired(LocalDateTime createdAt, LocalDateTime now) {
+        return createdAt != null && createdAt.plus(expireAfter).isBefore(now);
+    }
+}
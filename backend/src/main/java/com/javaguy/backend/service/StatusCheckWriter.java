@@ -0,0 +1,123 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Writes the outcome of the status checker's checks in groups, instead of a transaction or two per check.
+ * A check that came back without a result is rescheduled and its lease given up in one update, shared by
+ * every transaction with the same attempt count since they are due again at the same time; other leases
+ * are given up in a single update. Everything queued since the last flush commits together.
+ * Outcomes lost to a failed flush are not retried: the leases expire and the checks simply run again.
+ */
+@Service
+@Slf4j
+public class StatusCheckWriter {
+
+    // Keeps the IN lists well inside what any database accepts
+    private static final int MAX_IDS_PER_UPDATE = 500;
+
+    /**
+     * @param attempts The checks made so far, or 0 if only the lease is given up
+     */
+    private record Outcome(Long transactionId, int attempts) {
+    }
+
+    private final CryptoTransactionRepository transactionRepository;
+    private final StatusCheckSchedule statusCheckSchedule;
+    private final String owner;
+
+    private final Queue<Outcome> outcomes = new ConcurrentLinkedQueue<>();
+
+    public StatusCheckWriter(CryptoTransactionRepository transactionRepository, StatusCheckSchedule statusCheckSchedule,
+                             TransactionClaimer transactionClaimer, MeterRegistry meterRegistry) {
+        this.transactionRepository = transactionRepository;
+        this.statusCheckSchedule = statusCheckSchedule;
+        this.owner = transactionClaimer.getOwner();
+
+        meterRegistry.gauge("transactions.status-check.pending.writes", Tags.empty(), outcomes, Queue::size);
+    }
+
+    /**
+     * Queues a check that came back without a payment result. The lease is given up with it, so the
+     * transaction is not picked up again before its next check time is written.
+     * @param attempts The number of checks made so far, at least 1
+     */
+    public void reschedule(Long transactionId, int attempts) {
+        outcomes.add(new Outcome(transactionId, Math.max(attempts, 1)));
+    }
+
+    /**
+     * Queues giving up this instance's lease on a transaction
+     */
+    public void release(Long transactionId) {
+        outcomes.add(new Outcome(transactionId, 0));
+    }
+
+    @Scheduled(fixedDelayString = "${transactions.status-check.write-interval-ms:500}")
+    @Transactional
+    public void flush() {
+        List<Outcome> drained = new ArrayList<>();
+        for (Outcome outcome = outcomes.poll(); outcome != null; outcome = outcomes.poll()) {
+            drained.add(outcome);
+        }
+        if (drained.isEmpty()) {
+            return;
+        }
+
+        Map<Integer, List<Long>> byAttempts = new TreeMap<>();
+        Set<Long> rescheduled = new HashSet<>();
+        List<Long> released = new ArrayList<>();
+        for (Outcome outcome : drained) {
+            if (outcome.attempts() > 0) {
+                byAttempts.computeIfAbsent(outcome.attempts(), attempts -> new ArrayList<>()).add(outcome.transactionId());
+                rescheduled.add(outcome.transactionId());
+            } else {
+                released.add(outcome.transactionId());
+            }
+        }
+        // Rescheduling already gave these leases up
+        released.removeIf(rescheduled::contains);
+
+        LocalDateTime now = LocalDateTime.now();
+        byAttempts.forEach((attempts, ids) -> inChunks(ids, chunk -> transactionRepository.rescheduleChecks(
+                chunk, attempts, statusCheckSchedule.nextCheckAt(now, attempts), owner)));
+        inChunks(released, chunk -> transactionRepository.releaseLeases(chunk, owner));
+
+        log.debug("Wrote {} status check outcomes in {} groups", drained.size(),
+                byAttempts.size() + (released.isEmpty() ? 0 : 1));
+    }
+
+    private static void inChunks(List<Long> ids, Consumer<List<Long>> update) {
+        for (int from = 0; from < ids.size(); from += MAX_IDS_PER_UPDATE) {
+            update.accept(ids.subList(from, Math.min(from + MAX_IDS_PER_UPDATE, ids.size())));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        try {
+            flush();
+        } catch (Exception e) {
+            // The leases expire instead
+            log.warn("Failed to write {} status check outcomes on shutdown: {}", outcomes.size(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.utils.Helper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+
+/**
+ * The timestamp and password sent with every STK push and STK query. The password is
+ * base64(shortcode + passkey + timestamp) and the timestamp only has second precision, so the pair is
+ * computed once per second and shared by every request made within it.
+ */
+@Component
+public class StkPassword {
+
+    public record Credentials(long epochSecond, String timestamp, String password) {
+    }
+
+    private final String businessShortCode;
+    private final String passkey;
+    private final Clock clock;
+
+    private volatile Credentials current;
+
+    @Autowired
+    public StkPassword(@Value("${mpesa.daraja.business-shortcode}") String businessShortCode,
+                       @Value("${mpesa.daraja.passkey}") String passkey) {
+        this(businessShortCode, passkey, Clock.systemDefaultZone());
+    }
+
+    public StkPassword(String businessShortCode, String passkey, Clock clock) {
+        this.businessShortCode = businessShortCode;
+        this.passkey = passkey;
+        this.clock = clock;
+    }
+
+    /**
+     * @return the timestamp and password for the current second
+     */
+    public Credentials current() {
+        long epochSecond = Math.floorDiv(clock.millis(), 1000L);
+        Credentials credentials = current;
+        if (credentials != null && credentials.epochSecond() == epochSecond) {
+            return credentials;
+        }
+
+        // Two threads crossing into a new second may both compute it; both get the same values
+        String timestamp = Helper.getTimestamp(LocalDateTime.ofInstant(Instant.ofEpochSecond(epochSecond), clock.getZone()));
+        credentials = new Credentials(epochSecond, timestamp, Helper.toBase64(businessShortCode + passkey + timestamp));
+        current = credentials;
+        return credentials;
+    }
+}
@@ -0,0 +1,85 @@
+package com.javaguy.backend.service;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket refilled continuously at a fixed rate, holding at most burst tokens.
+ * A call takes one token; when none is left it waits for the next one, but only if that fits in
+ * its wait budget. The bucket can also be paused, for example until a server's Retry-After has passed.
+ */
+public class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+    private long pausedUntil;
+
+    public TokenBucket(double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("ratePerSecond and burst must be positive");
+        }
+        this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+        this.pausedUntil = lastRefill;
+    }
+
+    /**
+     * Takes a token, waiting for one if needed
+     * @param maxWait The longest the caller is willing to wait
+     * @return true once a token was taken, false straight away if none will be free within maxWait
+     */
+    public boolean acquire(Duration maxWait) throws InterruptedException {
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        while (true) {
+            long wait = tryTake(System.nanoTime());
+            if (wait == 0) {
+                return true;
+            }
+            if (wait > deadline - System.nanoTime()) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Hands out no tokens until the given time has passed, and starts refilling from empty after that
+     */
+    public synchronized void pauseFor(Duration duration) {
+        long now = System.nanoTime();
+        pausedUntil = Math.max(pausedUntil, now + duration.toNanos());
+        tokens = 0;
+        lastRefill = pausedUntil;
+    }
+
+    public synchronized double available() {
+        refill(System.nanoTime());
+        return tokens;
+    }
+
+    /**
+     * @return 0 if a token was taken, otherwise how long until the next one
+     */
+    private synchronized long tryTake(long now) {
+        if (now < pausedUntil) {
+            return pausedUntil - now;
+        }
+        refill(now);
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1L, (long) Math.ceil((1 - tokens) / tokensPerNano));
+    }
+
+    private void refill(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.model.CryptoTransaction;
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import com.javaguy.backend.repository.CryptoTransactionRepository.DueCheck;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Splits pending transactions between backend instances using leases on the rows themselves.
+ * Each instance claims due rows with a conditional update; rows leased by another live instance are
+ * skipped, and a lease that expires (the instance died mid-processing) makes the row claimable again.
+ * No coordinator is needed.
+ */
+@Service
+@Slf4j
+public class TransactionClaimer {
+
+    private final CryptoTransactionRepository transactionRepository;
+    private final String owner;
+    private final Duration leaseDuration;
+
+    @Autowired
+    public TransactionClaimer(CryptoTransactionRepository transactionRepository,
+                              @Value("${transactions.lease.owner}") String owner,
+                              @Value("${transactions.lease.duration-seconds:120}") long leaseDurationSeconds) {
+        this(transactionRepository, owner, Duration.ofSeconds(leaseDurationSeconds));
+    }
+
+    public TransactionClaimer(CryptoTransactionRepository transactionRepository, String owner, Duration leaseDuration) {
+        this.transactionRepository = transactionRepository;
+        this.owner = owner;
+        this.leaseDuration = leaseDuration;
+        log.info("Claiming transactions as {}", owner);
+    }
+
+    /**
+     * Lists one keyset page of pending transactions due for a check, without claiming them
+     * @param afterId The last id seen in the previous page, 0 for the first page
+     * @param dueBefore Only transactions due before this are listed
+     * @param pageSize The number of rows to list
+     * @return the due checks, and where the next page starts
+     */
+    public DuePage findDue(long afterId, LocalDateTime dueBefore, int pageSize) {
+        List<DueCheck> checks = transactionRepository.findDuePage(
+                afterId, dueBefore, LocalDateTime.now(), PageRequest.of(0, pageSize));
+        long lastId = checks.isEmpty() ? afterId : checks.get(checks.size() - 1).getId();
+        return new DuePage(checks, lastId, checks.size() == pageSize);
+    }
+
+    /**
+     * Claims the given transactions if they are due now and no live instance holds them
+     * @return the transactions this instance now holds
+     */
+    public List<CryptoTransaction> claim(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        int claimed = transactionRepository.claim(ids, owner, now.plus(leaseDuration), now);
+        List<CryptoTransaction> transactions = claimed > 0
+                ? transactionRepository.findLeased(ids, owner)
+                : List.of();
+
+        log.debug("Claimed {} of {} due transactions", transactions.size(), ids.size());
+        return transactions;
+    }
+
+    /**
+     * Gives up this instance's lease so the transaction can be picked up by the next sweep anywhere
+     */
+    public void release(CryptoTransaction transaction) {
+        transactionRepository.releaseLease(transaction.getId(), owner);
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public record DuePage(List<DueCheck> checks, long lastId, boolean hasMore) {
+    }
+}
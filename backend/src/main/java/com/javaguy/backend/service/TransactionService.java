@@ -1,16 +1,23 @@
 package com.javaguy.backend.service;
 
+import com.javaguy.backend.dto.CallBackRequest;
 import com.javaguy.backend.dto.STKPushResponse;
 import com.javaguy.backend.dto.STKPushQueryResponse;
 import com.javaguy.backend.model.CryptoTransaction;
+import com.javaguy.backend.model.KesAmount;
+import com.javaguy.backend.model.TransactionStatus;
 import com.javaguy.backend.repository.CryptoTransactionRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
 import java.io.IOException;
+import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Objects;
+import java.util.Optional;
 
 @Service
 @Slf4j
@@ -18,26 +25,135 @@ import java.time.LocalDateTime;
 public class TransactionService {
 
     private final MpesaService mpesaService;
-    private final BlockchainService blockchainService;
+    private final TransactionStateMachine stateMachine;
+    private final StatusCheckSchedule statusCheckSchedule;
+    private final OnRampMetrics metrics;
     private final CryptoTransactionRepository transactionRepository;
+    private final IdempotencyCache idempotencyCache;
+    private final TransactionStatusResolver statusResolver;
+    private final ExchangeRateProvider exchangeRateProvider;
 
     /**
-     * Initiates the on-ramp process by sending an STK push and saving the transaction
+     * Initiates the on-ramp process by sending an STK push and saving the transaction.
+     * The row is saved once Daraja has answered, so no connection is held during the push.
+     * With an idempotency key this happens at most once per key: a retry gets the checkout request ID
+     * of the first request without another STK push, and a retry that arrives while the first is still
+     * running waits for it.
      *
      * @param phoneNumber User's phone number
-     * @param amountKES Amount in KES
+     * @param amountKES Amount in KES, in whole shillings
      * @param walletAddress User's crypto wallet address
+     * @param idempotencyKey The client's Idempotency-Key, or null to always initiate
      * @return The checkout request ID
+     * @throws IdempotencyKeyReusedException if the key was already used for a different request
+     * @throws ExchangeRateUnavailableException if there is no rate recent enough to price the on-ramp with
      */
-    @Transactional
-    public String initiateOnRamp(String phoneNumber, Double amountKES, String walletAddress) {
+    public String initiateOnRamp(String phoneNumber, KesAmount amountKES, String walletAddress, String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return initiate(phoneNumber, amountKES, walletAddress, null);
+        }
+        String fingerprint = phoneNumber + "|" + amountKES + "|" + walletAddress;
+        return idempotencyCache.execute(idempotencyKey, fingerprint,
+                () -> initiateOnce(phoneNumber, amountKES, walletAddress, idempotencyKey));
+    }
+
+    /**
+     * The cache only knows this instance's recent keys; older keys, and keys first seen by another
+     * instance, are found through the stored transaction
+     */
+    private String initiateOnce(String phoneNumber, KesAmount amountKES, String walletAddress, String idempotencyKey) {
+        Optional<CryptoTransaction> stored = findIdempotent(idempotencyKey, phoneNumber, amountKES, walletAddress);
+        if (stored.isPresent()) {
+            return stored.get().getCheckoutRequestId();
+        }
+
+        try {
+            return initiate(phoneNumber, amountKES, walletAddress, idempotencyKey);
+        } catch (DataIntegrityViolationException e) {
+            // Another instance saved the same key while our push was in flight; the customer got two
+            // prompts, but only the first transaction exists, so only one payment can be credited
+            log.warn("Idempotency-Key {} was initiated concurrently by another instance", idempotencyKey);
+            return findIdempotent(idempotencyKey, phoneNumber, amountKES, walletAddress)
+                    .orElseThrow(() -> e)
+                    .getCheckoutRequestId();
+        }
+    }
+
+    /**
+     * The transaction already created for an idempotency key
+     * @throws IdempotencyKeyReusedException if it was created for a different request
+     */
+    Optional<CryptoTransaction> findIdempotent(String idempotencyKey, String phoneNumber, KesAmount amountKES,
+                                               String walletAddress) {
+        Optional<CryptoTransaction> stored = transactionRepository.findByIdempotencyKey(idempotencyKey);
+        stored.ifPresent(transaction -> {
+            if (!Objects.equals(transaction.getPhoneNumber(), phoneNumber)
+                    || !Objects.equals(transaction.getAmountKES(), amountKES)
+                    || !Objects.equals(transaction.getWalletAddress(), walletAddress)) {
+                throw new IdempotencyKeyReusedException(idempotencyKey);
+            }
+            log.info("Replaying on-ramp {} for Idempotency-Key {}", transaction.getId(), idempotencyKey);
+        });
+        return stored;
+    }
+
+    /**
+     * Saves an async on-ramp as INITIATING, before its STK push is sent
+     * @throws DataIntegrityViolationException if a transaction with the same idempotency key exists
+     * @throws ExchangeRateUnavailableException if there is no rate recent enough to price the on-ramp with
+     */
+    CryptoTransaction createInitiation(String phoneNumber, KesAmount amountKES, String walletAddress,
+                                       String idempotencyKey) {
+        CryptoTransaction transaction = new CryptoTransaction();
+        transaction.setPhoneNumber(phoneNumber);
+        transaction.setAmountKES(amountKES);
+        transaction.setWalletAddress(walletAddress);
+        transaction.setIdempotencyKey(idempotencyKey);
+        transaction.setTransactionStatus(TransactionStatus.INITIATING);
+        lockExchangeRate(transaction, exchangeRateProvider.current());
+        return transactionRepository.save(transaction);
+    }
+
+    /**
+     * Sends the STK push for an async on-ramp saved by createInitiation and records the outcome.
+     * A callback that beats the PENDING update finds no transaction; the status checker settles that
+     * payment instead.
+     */
+    void sendStkPush(CryptoTransaction transaction) {
+        try {
+            STKPushResponse stkResponse = mpesaService.initiateSTKPush(
+                    transaction.getPhoneNumber(), String.valueOf(transaction.getAmountKES().shillings()));
+            stateMachine.recordStkPushSent(transaction, stkResponse.getCheckoutRequestID());
+        } catch (DarajaThrottledException e) {
+            log.warn("STK push for transaction {} throttled: {}", transaction.getId(), e.getMessage());
+            stateMachine.recordInitiationFailure(transaction.getId(), transaction.getWalletAddress(),
+                    transaction.getCreatedAt(), "M-Pesa is busy, please try again shortly");
+        } catch (Exception e) {
+            log.error("STK push for transaction {} failed: {}", transaction.getId(), e.getMessage(), e);
+            stateMachine.recordInitiationFailure(transaction.getId(), transaction.getWalletAddress(),
+                    transaction.getCreatedAt(), "Failed to initiate on-ramp");
+        }
+    }
+
+    public Optional<CryptoTransaction> findTransaction(Long transactionId) {
+        return transactionRepository.findById(transactionId);
+    }
+
+    public Optional<CryptoTransaction> findTransactionByCheckoutRequestId(String checkoutRequestId) {
+        return transactionRepository.findByCheckoutRequestId(checkoutRequestId);
+    }
+
+    private String initiate(String phoneNumber, KesAmount amountKES, String walletAddress, String idempotencyKey) {
         try {
             log.info("Initiating on-ramp for phone: {}, amount: {}, wallet: {}",
                     phoneNumber, amountKES, walletAddress);
 
+            // Priced before the push, so a customer is never asked to pay for an on-ramp we cannot price
+            ExchangeRate exchangeRate = exchangeRateProvider.current();
+
             // Initiate STK push
             STKPushResponse stkResponse = mpesaService.initiateSTKPush(
-                    phoneNumber, String.valueOf(amountKES.intValue()));
+                    phoneNumber, String.valueOf(amountKES.shillings()));
 
             // Save transaction details
             CryptoTransaction transaction = new CryptoTransaction();
@@ -45,7 +161,10 @@ public class TransactionService {
             transaction.setAmountKES(amountKES);
             transaction.setWalletAddress(walletAddress);
             transaction.setCheckoutRequestId(stkResponse.getCheckoutRequestID());
-            transaction.setTransactionStatus("PENDING");
+            transaction.setIdempotencyKey(idempotencyKey);
+            transaction.setTransactionStatus(TransactionStatus.PENDING);
+            transaction.setNextCheckAt(statusCheckSchedule.firstCheckAt(LocalDateTime.now()));
+            lockExchangeRate(transaction, exchangeRate);
 
             transactionRepository.save(transaction);
 
@@ -57,61 +176,127 @@ public class TransactionService {
     }
 
     /**
-     * Processes a transaction by checking its status and crediting the wallet if successful
+     * Records the rate on the transaction. Its credit is converted at this rate whenever it is sent,
+     * so crediting never looks a rate up.
+     */
+    private static void lockExchangeRate(CryptoTransaction transaction, ExchangeRate exchangeRate) {
+        transaction.setExchangeRateMicros(exchangeRate.kesPerUsdcMicros());
+        transaction.setExchangeRateQuotedAt(LocalDateTime.ofInstant(exchangeRate.quotedAt(), ZoneId.systemDefault()));
+    }
+
+    /**
+     * Processes a transaction by checking its status and crediting the wallet if successful.
+     * Used by the polling sweep as a fallback for callbacks that never arrived.
+     * The Daraja query runs outside any database transaction; only recording its result opens one.
      *
      * @param transaction The transaction to process
-     * @return true if processed successfully, false otherwise
+     * @return true if the payment went through and the credit was queued, false otherwise
      */
-
-    @Transactional
     public boolean processTransaction(CryptoTransaction transaction) {
         try {
             log.info("Processing transaction with checkoutRequestId: {}",
                     transaction.getCheckoutRequestId());
 
             // Query transaction status
-            STKPushQueryResponse queryResponse = mpesaService.queryTransactionStatus(
-                    transaction.getCheckoutRequestId());
+            STKPushQueryResponse queryResponse = statusResolver.query(transaction.getCheckoutRequestId());
 
-            // Check if transaction was successful (0 is success code)
-            if (queryResponse.getResultCode() != null && queryResponse.getResultCode().equals("0")) {
-                log.info("Transaction successful, crediting wallet");
-
-                // Call blockchain service to credit wallet
-                boolean credited = blockchainService.creditWallet(
-                        transaction.getWalletAddress(), transaction.getAmountKES());
-
-                if (credited) {
-                    transaction.setTransactionStatus("COMPLETED");
-                    transaction.setProcessed(true);
-                    transaction.setProcessedAt(LocalDateTime.now());
-                    transactionRepository.save(transaction);
-                    return true;
-                } else {
-                    // For development only:
-                    // Mark as processed but with a special status to avoid endless retries
-                    transaction.setTransactionStatus("BLOCKCHAIN_ERROR");
-                    transaction.setProcessed(true); // Mark as processed to stop retries
-                    transaction.setProcessedAt(LocalDateTime.now());
-                    transactionRepository.save(transaction);
-
-                    log.error("Failed to credit wallet for transaction: {}. Please check blockchain service logs.",
-                            transaction.getCheckoutRequestId());
-                    return false;
-                }
-            } else {
-                // If result code indicates failure or transaction is still pending
-                if (queryResponse.getResultCode() != null) {
-                    transaction.setTransactionStatus("FAILED");
-                    transaction.setProcessed(true);
-                    transaction.setProcessedAt(LocalDateTime.now());
-                    transactionRepository.save(transaction);
-                }
+            // No result code means the user has not acted on the prompt yet
+            if (queryResponse.getResultCode() == null) {
+                metrics.recordPaymentResult("query", "pending");
+                stateMachine.recordStillPending(transaction);
                 return false;
             }
+
+            return applyPaymentResult(transaction, "query", queryResponse.getResultCode(),
+                    queryResponse.getResultDesc(), null);
         } catch (IOException e) {
             log.error("Error processing transaction: {}", e.getMessage(), e);
+            metrics.recordPaymentResult("query", "error");
+            // Backs off like an unanswered prompt, so a Daraja outage is not hammered every tick
+            stateMachine.recordStillPending(transaction);
+            return false;
+        }
+    }
+
+    /**
+     * Handles the result Daraja posts to the STK push callback URL. The callback endpoint is public and its
+     * checkoutRequestId is no secret, so the posted result is never taken on its word: a success must be
+     * for the amount of the transaction, and every result is confirmed with an STK query before it is
+     * recorded. A callback that cannot be confirmed is dropped and the status checker settles the payment.
+     *
+     * @param callBack The parsed stkCallback payload
+     * @return true if the payment went through and the credit was queued, false otherwise
+     */
+    public boolean handleCallback(CallBackRequest callBack) {
+        log.info("Received callback for checkoutRequestId: {} with result code {}",
+                callBack.getCheckoutRequestId(), callBack.getResultCode());
+
+        Optional<CryptoTransaction> transaction = transactionRepository
+                .findByCheckoutRequestId(callBack.getCheckoutRequestId());
+
+        if (transaction.isEmpty()) {
+            log.warn("No transaction found for callback with checkoutRequestId: {}",
+                    callBack.getCheckoutRequestId());
+            return false;
+        }
+
+        if (callBack.getResultCode() == 0 && !isAmountOf(transaction.get(), callBack.getAmount())) {
+            log.warn("Ignoring callback for {}: paid amount {} does not match the {} KES requested",
+                    callBack.getCheckoutRequestId(), callBack.getAmount(), transaction.get().getAmountKES());
+            metrics.recordPaymentResult("callback", "rejected");
+            return false;
+        }
+
+        STKPushQueryResponse confirmed;
+        try {
+            // Cached once answered, so the status checker does not ask again
+            confirmed = statusResolver.query(callBack.getCheckoutRequestId());
+        } catch (IOException e) {
+            log.warn("Could not confirm callback for {}, leaving it to the status checker: {}",
+                    callBack.getCheckoutRequestId(), e.getMessage());
+            metrics.recordPaymentResult("callback", "unconfirmed");
             return false;
         }
+        if (confirmed.getResultCode() == null) {
+            log.warn("Daraja has no result for {} yet, ignoring callback with result code {}",
+                    callBack.getCheckoutRequestId(), callBack.getResultCode());
+            metrics.recordPaymentResult("callback", "unconfirmed");
+            return false;
+        }
+        if (!confirmed.getResultCode().equals(String.valueOf(callBack.getResultCode()))) {
+            log.warn("Callback for {} reported result code {} but Daraja reports {}",
+                    callBack.getCheckoutRequestId(), callBack.getResultCode(), confirmed.getResultCode());
+        }
+
+        // Daraja's answer is what gets recorded; the receipt number only comes with a callback it confirms
+        String mpesaReceiptNumber = confirmed.getResultCode().equals(String.valueOf(callBack.getResultCode()))
+                ? callBack.getMpesaReceiptNumber() : null;
+        return applyPaymentResult(transaction.get(), "callback", confirmed.getResultCode(),
+                confirmed.getResultDesc(), mpesaReceiptNumber);
+    }
+
+    private static boolean isAmountOf(CryptoTransaction transaction, String paidAmount) {
+        if (paidAmount == null || transaction.getAmountKES() == null) {
+            return false;
+        }
+        try {
+            return new BigDecimal(paidAmount.trim()).compareTo(transaction.getAmountKES().toBigDecimal()) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Records the M-Pesa result. The wallet credit itself is sent by the OutboxRelay once this commits.
+     */
+    private boolean applyPaymentResult(CryptoTransaction transaction, String source, String resultCode,
+                                       String resultDesc, String mpesaReceiptNumber) {
+        metrics.recordPaymentResult(source, "0".equals(resultCode) ? "paid" : "failed");
+        if (Boolean.TRUE.equals(transaction.getProcessed())) {
+            log.info("Transaction {} already processed, ignoring result", transaction.getCheckoutRequestId());
+            return false;
+        }
+
+        return stateMachine.recordPaymentResult(transaction, resultCode, resultDesc, mpesaReceiptNumber);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,155 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.event.CreditReadyEvent;
+import com.javaguy.backend.event.TransactionStatusEvent;
+import com.javaguy.backend.model.CryptoTransaction;
+import com.javaguy.backend.model.OutboxEvent;
+import com.javaguy.backend.model.OutboxEventType;
+import com.javaguy.backend.model.TransactionStatus;
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import com.javaguy.backend.repository.OutboxEventRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+
+/**
+ * The on-ramp state transitions: INITIATING to PENDING or FAILED, PENDING to PAID, FAILED or TIMED_OUT,
+ * PAID to SUBMITTED or BLOCKCHAIN_ERROR.
+ * (SUBMITTED to COMPLETED is done by the ConfirmationTracker.) Each transition is one short database
+ * transaction made of conditional updates, so a transition only happens from the expected state and no
+ * remote call ever runs while a connection is held. Moving to PAID also writes a CREDIT_WALLET outbox
+ * event in the same transaction, which the OutboxRelay turns into the on-chain credit. Every transition
+ * publishes a TransactionStatusEvent, delivered to status subscribers once it commits.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class TransactionStateMachine {
+
+    private final CryptoTransactionRepository transactionRepository;
+    private final OutboxEventRepository outboxEventRepository;
+    private final ApplicationEventPublisher eventPublisher;
+    private final StatusCheckSchedule statusCheckSchedule;
+    private final StatusCheckWriter statusCheckWriter;
+    private final OnRampMetrics metrics;
+
+    /**
+     * Records that an async on-ramp's STK push was accepted, so its payment can now be checked
+     */
+    @Transactional
+    public void recordStkPushSent(CryptoTransaction transaction, String checkoutRequestId) {
+        LocalDateTime nextCheckAt = statusCheckSchedule.firstCheckAt(LocalDateTime.now());
+        if (transactionRepository.markStkPushSent(transaction.getId(), checkoutRequestId, nextCheckAt) == 0) {
+            // Only happens if the push took longer than the stale initiation limit
+            log.error("Transaction {} was no longer INITIATING when its STK push {} was accepted, needs reconciliation",
+                    transaction.getId(), checkoutRequestId);
+            return;
+        }
+        eventPublisher.publishEvent(new TransactionStatusEvent(transaction.getId(), transaction.getWalletAddress(),
+                TransactionStatus.PENDING, checkoutRequestId, null, null));
+    }
+
+    /**
+     * Records that an async on-ramp's STK push could not be sent
+     * @param reason Shown to the client as the transaction's result description
+     */
+    @Transactional
+    public void recordInitiationFailure(Long transactionId, String walletAddress, LocalDateTime createdAt,
+                                        String reason) {
+        LocalDateTime now = LocalDateTime.now();
+        if (transactionRepository.markInitiationFailed(transactionId, reason, now) > 0) {
+            metrics.recordTerminal(TransactionStatus.FAILED, createdAt, now);
+            eventPublisher.publishEvent(new TransactionStatusEvent(transactionId, walletAddress, TransactionStatus.FAILED,
+                    null, null, reason));
+        }
+    }
+
+    /**
+     * Records the M-Pesa result of a pending transaction
+     * @return true if the payment went through and the wallet credit was queued, false otherwise
+     */
+    @Transactional
+    public boolean recordPaymentResult(CryptoTransaction transaction, String resultCode, String resultDesc,
+                                       String mpesaReceiptNumber) {
+        Long transactionId = transaction.getId();
+
+        // 0 is the success code
+        if (!"0".equals(resultCode)) {
+            LocalDateTime now = LocalDateTime.now();
+            if (transactionRepository.markPaymentFailed(transactionId, resultCode, resultDesc, mpesaReceiptNumber, now) > 0) {
+                metrics.recordTerminal(TransactionStatus.FAILED, transaction.getCreatedAt(), now);
+                eventPublisher.publishEvent(TransactionStatusEvent.of(transaction, TransactionStatus.FAILED, resultDesc));
+            }
+            return false;
+        }
+
+        // Callbacks and the polling sweep can both land here for the same payment; only one wins this
+        if (transactionRepository.markPaid(transactionId, resultCode, resultDesc, mpesaReceiptNumber) == 0) {
+            log.info("Transaction {} is already being credited, skipping", transactionId);
+            return false;
+        }
+
+        OutboxEvent event = outboxEventRepository.save(new OutboxEvent(transactionId, OutboxEventType.CREDIT_WALLET));
+        // Delivered after commit, so the relay never sees an event it cannot read yet
+        eventPublisher.publishEvent(new CreditReadyEvent(event.getId()));
+        eventPublisher.publishEvent(TransactionStatusEvent.of(transaction, TransactionStatus.PAID, resultDesc));
+        return true;
+    }
+
+    /**
+     * Records a status check that came back without a payment result. The next check is pushed back
+     * further each time, and written with other checks by the StatusCheckWriter; the transaction times
+     * out once it is older than the schedule allows.
+     */
+    @Transactional
+    public void recordStillPending(CryptoTransaction transaction) {
+        LocalDateTime now = LocalDateTime.now();
+        int attempts = (transaction.getStatusCheckAttempts() == null ? 0 : transaction.getStatusCheckAttempts()) + 1;
+
+        if (statusCheckSchedule.isExpired(transaction.getCreatedAt(), now)) {
+            if (transactionRepository.markTimedOut(transaction.getId(), attempts, now) > 0) {
+                metrics.recordTerminal(TransactionStatus.TIMED_OUT, transaction.getCreatedAt(), now);
+                eventPublisher.publishEvent(TransactionStatusEvent.of(transaction, TransactionStatus.TIMED_OUT,
+                        transaction.getResultDesc()));
+                log.warn("Transaction {} got no payment result after {} checks, marked TIMED_OUT",
+                        transaction.getCheckoutRequestId(), attempts);
+            }
+            return;
+        }
+
+        statusCheckWriter.reschedule(transaction.getId(), attempts);
+    }
+
+    /**
+     * Records that a paid transaction's credit is on-chain and consumes its outbox event
+     */
+    @Transactional
+    public void recordSubmission(CryptoTransaction transaction, Long outboxEventId, String txHash, long submittedBlock) {
+        if (transactionRepository.markSubmitted(transaction.getId(), txHash, submittedBlock, LocalDateTime.now()) == 0) {
+            log.error("Transaction {} was no longer PAID when its credit {} went out, needs reconciliation",
+                    transaction.getId(), txHash);
+        } else {
+            eventPublisher.publishEvent(new TransactionStatusEvent(transaction.getId(), transaction.getWalletAddress(),
+                    TransactionStatus.SUBMITTED, transaction.getCheckoutRequestId(), txHash, transaction.getResultDesc()));
+        }
+        outboxEventRepository.deleteById(outboxEventId);
+    }
+
+    /**
+     * Records that a paid transaction's credit could not be sent and consumes its outbox event
+     */
+    @Transactional
+    public void recordCreditFailure(CryptoTransaction transaction, Long outboxEventId) {
+        LocalDateTime now = LocalDateTime.now();
+        if (transactionRepository.markCreditFailed(transaction.getId(), now) > 0) {
+            metrics.recordTerminal(TransactionStatus.BLOCKCHAIN_ERROR, transaction.getCreatedAt(), now);
+            eventPublisher.publishEvent(TransactionStatusEvent.of(transaction, TransactionStatus.BLOCKCHAIN_ERROR,
+                    transaction.getResultDesc()));
+        }
+        outboxEventRepository.deleteById(outboxEventId);
+    }
+}
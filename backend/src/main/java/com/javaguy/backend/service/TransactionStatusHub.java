@@ -0,0 +1,198 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.event.TransactionStatusEvent;
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fans transaction status changes out to Server-Sent Events subscribers, either of one transaction or
+ * of every transaction for a wallet. Subscriptions are async servlet requests, so an idle subscriber
+ * holds a connection but no thread. Events are sent once the change has committed, on a virtual thread
+ * so a slow client never holds up the state machine, and a heartbeat comment keeps idle connections
+ * from being closed by proxies.
+ */
+@Service
+@Slf4j
+public class TransactionStatusHub {
+
+    private final CryptoTransactionRepository transactionRepository;
+    private final long subscriptionTimeoutMs;
+    private final int maxSubscribers;
+
+    private final Map<Long, Set<SseEmitter>> byTransaction = new ConcurrentHashMap<>();
+    private final Map<String, Set<SseEmitter>> byWallet = new ConcurrentHashMap<>();
+    private final AtomicInteger subscribers = new AtomicInteger();
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public TransactionStatusHub(CryptoTransactionRepository transactionRepository, MeterRegistry meterRegistry,
+                                @Value("${transactions.events.subscription-timeout-minutes:30}") long subscriptionTimeoutMinutes,
+                                @Value("${transactions.events.max-subscribers:10000}") int maxSubscribers) {
+        this.transactionRepository = transactionRepository;
+        this.subscriptionTimeoutMs = Duration.ofMinutes(subscriptionTimeoutMinutes).toMillis();
+        this.maxSubscribers = maxSubscribers;
+
+        meterRegistry.gauge("transactions.events.subscribers", Tags.empty(), subscribers);
+    }
+
+    /**
+     * Subscribes to one transaction. Its current status is sent straight away, and the stream ends after
+     * the transaction reaches a terminal status.
+     * @return the emitter, or empty if there are already too many subscribers
+     */
+    public Optional<SseEmitter> subscribeToTransaction(Long transactionId) {
+        Optional<SseEmitter> emitter = subscribe(byTransaction, transactionId);
+        // Read after subscribing, so a change committed in between is sent rather than missed
+        emitter.ifPresent(subscription -> transactionRepository.findById(transactionId)
+                .map(TransactionStatusEvent::of)
+                .ifPresentOrElse(current -> {
+                    if (send(subscription, current) && current.isTerminal()) {
+                        subscription.complete();
+                    }
+                }, subscription::complete));
+        return emitter;
+    }
+
+    /**
+     * Subscribes to every transaction credited to the wallet, until the subscription times out
+     * @return the emitter, or empty if there are already too many subscribers
+     */
+    public Optional<SseEmitter> subscribeToWallet(String walletAddress) {
+        return subscribe(byWallet, walletAddress.toLowerCase(Locale.ROOT));
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStatusChanged(TransactionStatusEvent event) {
+        if (!byTransaction.containsKey(event.transactionId()) && byWallet.isEmpty()) {
+            return;
+        }
+        executor.execute(() -> publish(event));
+    }
+
+    /**
+     * Keeps idle streams open through proxies and finds subscribers that went away without closing
+     */
+    @Scheduled(fixedDelayString = "${transactions.events.heartbeat-interval-ms:15000}")
+    public void heartbeat() {
+        // A builder can only be sent once
+        byTransaction.values().forEach(emitters -> emitters.forEach(
+                emitter -> send(emitter, SseEmitter.event().comment("heartbeat"))));
+        byWallet.values().forEach(emitters -> emitters.forEach(
+                emitter -> send(emitter, SseEmitter.event().comment("heartbeat"))));
+    }
+
+    private <K> Optional<SseEmitter> subscribe(Map<K, Set<SseEmitter>> subscriptions, K key) {
+        if (subscribers.incrementAndGet() > maxSubscribers) {
+            subscribers.decrementAndGet();
+            return Optional.empty();
+        }
+
+        SseEmitter emitter = new SseEmitter(subscriptionTimeoutMs);
+        subscriptions.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(emitter);
+
+        AtomicBoolean removed = new AtomicBoolean();
+        Runnable unsubscribe = () -> {
+            // Completion, timeout and error can each fire for the same emitter
+            if (removed.compareAndSet(false, true)) {
+                subscriptions.computeIfPresent(key, (k, emitters) -> {
+                    emitters.remove(emitter);
+                    return emitters.isEmpty() ? null : emitters;
+                });
+                subscribers.decrementAndGet();
+            }
+        };
+        emitter.onCompletion(unsubscribe);
+        emitter.onTimeout(unsubscribe);
+        emitter.onError(error -> unsubscribe.run());
+        return Optional.of(emitter);
+    }
+
+    private void publish(TransactionStatusEvent event) {
+        try {
+            TransactionStatusEvent complete = complete(event);
+
+            Set<SseEmitter> transactionSubscribers = byTransaction.get(complete.transactionId());
+            if (transactionSubscribers != null) {
+                for (SseEmitter emitter : transactionSubscribers) {
+                    if (send(emitter, complete) && complete.isTerminal()) {
+                        emitter.complete();
+                    }
+                }
+            }
+
+            Set<SseEmitter> walletSubscribers = complete.walletAddress() == null
+                    ? null : byWallet.get(complete.walletAddress().toLowerCase(Locale.ROOT));
+            if (walletSubscribers != null) {
+                walletSubscribers.forEach(emitter -> send(emitter, complete));
+            }
+        } catch (Exception e) {
+            log.warn("Failed to publish status {} of transaction {}: {}",
+                    event.status(), event.transactionId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Publishers send the wallet with every event, so fan-out needs no database read. An event without one
+     * is filled in from the stored row.
+     */
+    private TransactionStatusEvent complete(TransactionStatusEvent event) {
+        if (event.walletAddress() != null) {
+            return event;
+        }
+        return transactionRepository.findById(event.transactionId())
+                .map(transaction -> new TransactionStatusEvent(event.transactionId(), transaction.getWalletAddress(),
+                        event.status(),
+                        event.checkoutRequestId() != null ? event.checkoutRequestId() : transaction.getCheckoutRequestId(),
+                        event.txHash() != null ? event.txHash() : transaction.getTxHash(),
+                        event.resultDesc() != null ? event.resultDesc() : transaction.getResultDesc()))
+                .orElse(event);
+    }
+
+    private boolean send(SseEmitter emitter, TransactionStatusEvent event) {
+        return send(emitter, SseEmitter.event()
+                .name("status")
+                .id(event.transactionId() + ":" + event.status())
+                .data(event, MediaType.APPLICATION_JSON));
+    }
+
+    /**
+     * @return false if the subscriber is gone, in which case it has been unsubscribed
+     */
+    private boolean send(SseEmitter emitter, SseEmitter.SseEventBuilder event) {
+        try {
+            emitter.send(event);
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            emitter.completeWithError(e);
+            return false;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+        byTransaction.values().forEach(emitters -> emitters.forEach(SseEmitter::complete));
+        byWallet.values().forEach(emitters -> emitters.forEach(SseEmitter::complete));
+    }
+}
@@ -0,0 +1,173 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.dto.STKPushQueryResponse;
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers STK push status queries without calling Daraja when the answer is already known. Once M-Pesa
+ * has reported a result it never changes, so those answers are kept in a bounded in-memory cache, read
+ * through from the stored transaction. Only payments still waiting for a result are queried at Daraja,
+ * and concurrent queries for the same checkoutRequestId share one call.
+ */
+@Service
+public class TransactionStatusResolver {
+
+    // Daraja's wording for a query it has answered
+    private static final String ACCEPTED = "0";
+    private static final String ACCEPTED_DESCRIPTION = "The service request has been accepted successsfully";
+
+    private final MpesaService mpesaService;
+    private final CryptoTransactionRepository transactionRepository;
+    private final int maxEntries;
+
+    private final Map<String, STKPushQueryResponse> results;
+    private final Map<String, CompletableFuture<STKPushQueryResponse>> inFlight = new ConcurrentHashMap<>();
+
+    private final Counter memoryHits;
+    private final Counter databaseHits;
+    private final Counter darajaQueries;
+    private final Counter coalesced;
+
+    public TransactionStatusResolver(MpesaService mpesaService, CryptoTransactionRepository transactionRepository,
+                                     @Value("${transactions.status-cache.max-entries:10000}") int maxEntries,
+                                     MeterRegistry meterRegistry) {
+        this.mpesaService = mpesaService;
+        this.transactionRepository = transactionRepository;
+        this.maxEntries = maxEntries;
+        // Access order, so the least recently queried result is evicted first
+        this.results = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, STKPushQueryResponse> eldest) {
+                return size() > TransactionStatusResolver.this.maxEntries;
+            }
+        };
+
+        this.memoryHits = meterRegistry.counter("transactions.status.lookups", "source", "memory");
+        this.databaseHits = meterRegistry.counter("transactions.status.lookups", "source", "database");
+        this.darajaQueries = meterRegistry.counter("transactions.status.lookups", "source", "daraja");
+        this.coalesced = meterRegistry.counter("transactions.status.lookups", "source", "coalesced");
+        meterRegistry.gauge("transactions.status.cache.size", Tags.empty(), this, resolver -> resolver.size());
+        meterRegistry.gauge("transactions.status.cache.hit.ratio", Tags.empty(), this, resolver -> resolver.hitRatio());
+    }
+
+    /**
+     * Resolves the status of an STK push, querying Daraja only if no result has been recorded for it yet
+     * @param checkoutRequestId The checkout request ID returned from the STK push
+     */
+    public STKPushQueryResponse resolve(String checkoutRequestId) throws IOException {
+        STKPushQueryResponse cached = cached(checkoutRequestId);
+        if (cached != null) {
+            return cached;
+        }
+
+        STKPushQueryResponse recorded = transactionRepository.findPaymentResult(checkoutRequestId)
+                .map(result -> new STKPushQueryResponse(ACCEPTED, ACCEPTED_DESCRIPTION, null, checkoutRequestId,
+                        result.getResultCode(), result.getResultDesc()))
+                .orElse(null);
+        if (recorded != null) {
+            databaseHits.increment();
+            remember(recorded);
+            return recorded;
+        }
+
+        return fetch(checkoutRequestId);
+    }
+
+    /**
+     * Queries a transaction still waiting for its result, for the status checker. The result may already
+     * be in memory if a client query found it first; otherwise Daraja is asked.
+     */
+    public STKPushQueryResponse query(String checkoutRequestId) throws IOException {
+        STKPushQueryResponse cached = cached(checkoutRequestId);
+        return cached != null ? cached : fetch(checkoutRequestId);
+    }
+
+    /**
+     * Queries Daraja, sharing the call with any other query for the same checkoutRequestId in flight.
+     * A final result is remembered, so later queries for it do not reach Daraja.
+     */
+    private STKPushQueryResponse fetch(String checkoutRequestId) throws IOException {
+        CompletableFuture<STKPushQueryResponse> call = new CompletableFuture<>();
+        CompletableFuture<STKPushQueryResponse> existing = inFlight.putIfAbsent(checkoutRequestId, call);
+        if (existing != null) {
+            coalesced.increment();
+            return await(existing);
+        }
+
+        darajaQueries.increment();
+        try {
+            STKPushQueryResponse response = mpesaService.queryTransactionStatus(checkoutRequestId);
+            // No result code means the user has not acted on the prompt yet
+            if (response.getResultCode() != null) {
+                remember(response);
+            }
+            call.complete(response);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(checkoutRequestId, call);
+        }
+    }
+
+    private STKPushQueryResponse cached(String checkoutRequestId) {
+        STKPushQueryResponse cached;
+        synchronized (results) {
+            cached = results.get(checkoutRequestId);
+        }
+        if (cached != null) {
+            memoryHits.increment();
+        }
+        return cached;
+    }
+
+    private void remember(STKPushQueryResponse response) {
+        synchronized (results) {
+            results.put(response.getCheckoutRequestID(), response);
+        }
+    }
+
+    private int size() {
+        synchronized (results) {
+            return results.size();
+        }
+    }
+
+    /**
+     * Share of lookups answered from memory since startup
+     */
+    private double hitRatio() {
+        double lookups = memoryHits.count() + databaseHits.count() + darajaQueries.count() + coalesced.count();
+        return lookups == 0 ? 0 : memoryHits.count() / lookups;
+    }
+
+    /**
+     * Waits for the shared call, failing the same way it did
+     */
+    private static STKPushQueryResponse await(CompletableFuture<STKPushQueryResponse> call) throws IOException {
+        try {
+            return call.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+}
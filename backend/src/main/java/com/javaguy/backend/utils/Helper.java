@@ -2,21 +2,28 @@ package com.javaguy.backend.utils;
 
 import org.springframework.stereotype.Component;
 
-import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.Base64;
-import java.util.Date;
 
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
 @Component
 public class Helper {
 
+    // Immutable and thread safe, unlike SimpleDateFormat, so one instance serves every request
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
     public static String toBase64(String value){
         byte[] bytes = value.getBytes(ISO_8859_1);
         return Base64.getEncoder().encodeToString(bytes);
     }
 
     public static String getTimestamp(){
-        return new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+        return getTimestamp(LocalDateTime.now());
+    }
+
+    public static String getTimestamp(LocalDateTime dateTime){
+        return TIMESTAMP_FORMAT.format(dateTime);
     }
 }
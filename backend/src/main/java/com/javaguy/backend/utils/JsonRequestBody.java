@@ -0,0 +1,56 @@
+package com.javaguy.backend.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * A JSON request body serialized once by a pre-built ObjectWriter straight to bytes, instead of to a String
+ * that is then encoded into a byte array. Its length is known up front, so the request is sent with a
+ * Content-Length header rather than chunked. The body can be written more than once, so a retried request
+ * sends it again.
+ */
+public class JsonRequestBody extends RequestBody {
+
+    public static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    private final byte[] content;
+
+    private JsonRequestBody(byte[] content) {
+        this.content = content;
+    }
+
+    /**
+     * @param writer A writer from {@link #writerFor}, built once for every body of its type
+     */
+    public static JsonRequestBody of(ObjectWriter writer, Object value) throws IOException {
+        return new JsonRequestBody(writer.writeValueAsBytes(value));
+    }
+
+    /**
+     * A writer for the given type, built once so each body skips the serializer lookup
+     */
+    public static ObjectWriter writerFor(ObjectMapper objectMapper, Class<?> type) {
+        return objectMapper.writerFor(type);
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public long contentLength() {
+        return content.length;
+    }
+
+    @Override
+    public void writeTo(@NotNull BufferedSink sink) throws IOException {
+        sink.write(content);
+    }
+}
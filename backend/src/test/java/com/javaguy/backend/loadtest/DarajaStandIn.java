@@ -0,0 +1,179 @@
+package com.javaguy.backend.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local Daraja: OAuth, STK push, STK query and the payment callback. Every payment is decided when
+ * its STK push arrives; the result is posted to the callback URL after callbackDelayMs, unless the
+ * callback is lost, and is returned by STK query from then on.
+ */
+class DarajaStandIn implements AutoCloseable {
+
+    record Settings(long latencyMs, double stkPushFailureRate, double paymentSuccessRate, long callbackDelayMs,
+                    double callbackLossRate) {
+
+        static Settings fromSystemProperties() {
+            return new Settings(
+                    Long.getLong("loadtest.daraja.latency-ms", 150),
+                    Double.parseDouble(System.getProperty("loadtest.daraja.stk-push-failure-rate", "0.01")),
+                    Double.parseDouble(System.getProperty("loadtest.daraja.payment-success-rate", "0.9")),
+                    Long.getLong("loadtest.daraja.callback-delay-ms", 2000),
+                    Double.parseDouble(System.getProperty("loadtest.daraja.callback-loss-rate", "0.1")));
+        }
+    }
+
+    private record Payment(String merchantRequestId, int resultCode, String resultDesc, long decidedAtMillis,
+                           String amount, String phoneNumber) {
+    }
+
+    private final Settings settings;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpServer server;
+    private final HttpClient callbackClient = HttpClient.newHttpClient();
+    private final ScheduledExecutorService callbacks = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, Payment> payments = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private volatile String callbackUrl;
+
+    DarajaStandIn(Settings settings) throws IOException {
+        this.settings = settings;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/oauth/v1/generate", this::oauth);
+        server.createContext("/mpesa/stkpush/v1/processrequest", this::stkPush);
+        server.createContext("/mpesa/stkpushquery/v1/query", this::stkQuery);
+        server.start();
+    }
+
+    String baseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Where callbacks go; the application's port is only known once it has started
+     */
+    void callbackTo(String callbackUrl) {
+        this.callbackUrl = callbackUrl;
+    }
+
+    private void oauth(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, Map.of("access_token", "stand-in-token", "expires_in", "3599"));
+    }
+
+    private void stkPush(HttpExchange exchange) throws IOException {
+        JsonNode request = objectMapper.readTree(exchange.getRequestBody());
+        simulateLatency();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < settings.stkPushFailureRate()) {
+            respond(exchange, 500, Map.of("errorCode", "500.001.1001", "errorMessage", "Stand-in STK push failure"));
+            return;
+        }
+
+        long id = sequence.incrementAndGet();
+        String merchantRequestId = "stand-in-" + id;
+        String checkoutRequestId = "ws_CO_STANDIN_" + id;
+        boolean paid = random.nextDouble() < settings.paymentSuccessRate();
+        payments.put(checkoutRequestId, new Payment(merchantRequestId,
+                paid ? 0 : 1032,
+                paid ? "The service request is processed successfully." : "Request cancelled by user",
+                System.currentTimeMillis() + settings.callbackDelayMs(),
+                request.path("Amount").asText(), request.path("PhoneNumber").asText()));
+
+        if (random.nextDouble() >= settings.callbackLossRate()) {
+            callbacks.schedule(() -> sendCallback(checkoutRequestId), settings.callbackDelayMs(), TimeUnit.MILLISECONDS);
+        }
+
+        respond(exchange, 200, Map.of(
+                "MerchantRequestID", merchantRequestId,
+                "CheckoutRequestID", checkoutRequestId,
+                "ResponseCode", "0",
+                "ResponseDescription", "Success. Request accepted for processing",
+                "CustomerMessage", "Success. Request accepted for processing"));
+    }
+
+    private void stkQuery(HttpExchange exchange) throws IOException {
+        JsonNode request = objectMapper.readTree(exchange.getRequestBody());
+        simulateLatency();
+        String checkoutRequestId = request.path("CheckoutRequestID").asText();
+        Payment payment = payments.get(checkoutRequestId);
+        if (payment == null || System.currentTimeMillis() < payment.decidedAtMillis()) {
+            // What Daraja answers while the customer has not responded yet
+            respond(exchange, 500, Map.of("errorCode", "500.001.1001", "errorMessage", "The transaction is being processed"));
+            return;
+        }
+
+        respond(exchange, 200, Map.of(
+                "ResponseCode", "0",
+                "ResponseDescription", "The service request has been accepted successsfully",
+                "MerchantRequestID", payment.merchantRequestId(),
+                "CheckoutRequestID", checkoutRequestId,
+                "ResultCode", String.valueOf(payment.resultCode()),
+                "ResultDesc", payment.resultDesc()));
+    }
+
+    private void sendCallback(String checkoutRequestId) {
+        Payment payment = payments.get(checkoutRequestId);
+        Map<String, Object> stkCallback = new LinkedHashMap<>();
+        stkCallback.put("MerchantRequestID", payment.merchantRequestId());
+        stkCallback.put("CheckoutRequestID", checkoutRequestId);
+        stkCallback.put("ResultCode", payment.resultCode());
+        stkCallback.put("ResultDesc", payment.resultDesc());
+        if (payment.resultCode() == 0) {
+            stkCallback.put("CallbackMetadata", Map.of("Item", List.of(
+                    Map.of("Name", "Amount", "Value", payment.amount()),
+                    Map.of("Name", "MpesaReceiptNumber", "Value", "SI" + checkoutRequestId.hashCode()),
+                    Map.of("Name", "PhoneNumber", "Value", payment.phoneNumber()))));
+        }
+
+        try {
+            String body = objectMapper.writeValueAsString(Map.of("Body", Map.of("stkCallback", stkCallback)));
+            callbackClient.sendAsync(HttpRequest.newBuilder(URI.create(callbackUrl))
+                            .header("Content-Type", "application/json")
+                            .POST(HttpRequest.BodyPublishers.ofString(body))
+                            .build(), HttpResponse.BodyHandlers.discarding());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void simulateLatency() {
+        LoadTestSupport.sleepAround(settings.latencyMs());
+    }
+
+    private void respond(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = objectMapper.writeValueAsString(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        callbacks.shutdownNow();
+        server.stop(0);
+    }
+}
@@ -0,0 +1,193 @@
+package com.javaguy.backend.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.web3j.crypto.Hash;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local JSON-RPC EVM node with just enough of the API for the backend: balances, calls, nonces, fee
+ * history, gas estimates, raw transaction sends, the block number and receipts, single or batched. A block
+ * is produced every blockTimeMs and every accepted transaction is mined in the next one.
+ */
+class EvmStandIn implements AutoCloseable {
+
+    record Settings(long latencyMs, double sendFailureRate, long blockTimeMs) {
+
+        static Settings fromSystemProperties() {
+            return new Settings(
+                    Long.getLong("loadtest.evm.latency-ms", 50),
+                    Double.parseDouble(System.getProperty("loadtest.evm.send-failure-rate", "0.01")),
+                    Long.getLong("loadtest.evm.block-time-ms", 1000));
+        }
+    }
+
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+    private static final String ZERO_WORD = "0x" + "0".repeat(64);
+    private static final String DECIMALS = "0x313ce567";
+    private static final long BASE_FEE = 25_000_000_000L;
+
+    private final Settings settings;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpServer server;
+    private final ScheduledExecutorService blocks = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicLong blockNumber = new AtomicLong(1_000);
+    private final AtomicLong nonce = new AtomicLong();
+    private final Map<String, Long> minedIn = new ConcurrentHashMap<>();
+
+    EvmStandIn(Settings settings) throws IOException {
+        this.settings = settings;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/", this::handle);
+        server.start();
+        blocks.scheduleAtFixedRate(blockNumber::incrementAndGet, settings.blockTimeMs(), settings.blockTimeMs(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    String url() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    long sentTransactions() {
+        return minedIn.size();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        JsonNode request = objectMapper.readTree(exchange.getRequestBody());
+        LoadTestSupport.sleepAround(settings.latencyMs());
+
+        JsonNode response;
+        if (request.isArray()) {
+            ArrayNode responses = NODES.arrayNode();
+            request.forEach(call -> responses.add(call(call)));
+            response = responses;
+        } else {
+            response = call(request);
+        }
+
+        byte[] bytes = objectMapper.writeValueAsBytes(response);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private ObjectNode call(JsonNode call) {
+        ObjectNode response = NODES.objectNode()
+                .put("jsonrpc", "2.0")
+                .set("id", call.path("id"));
+        JsonNode params = call.path("params");
+
+        switch (call.path("method").asText()) {
+            case "eth_blockNumber" -> response.put("result", hex(blockNumber.get()));
+            case "eth_chainId" -> response.put("result", hex(43113));
+            case "eth_getBalance" -> response.put("result", hex(new BigInteger("1000000000000000000000")));
+            case "eth_getTransactionCount" -> response.put("result", hex(nonce.get()));
+            // owner(), balanceOf() and the credit dry run all succeed with a zero word; decimals() is USDC's
+            case "eth_call" -> response.put("result",
+                    params.path(0).path("data").asText().startsWith(DECIMALS) ? word(6) : ZERO_WORD);
+            case "eth_gasPrice" -> response.put("result", hex(30_000_000_000L));
+            case "eth_maxPriorityFeePerGas" -> response.put("result", hex(1_000_000_000L));
+            case "eth_feeHistory" -> feeHistory(params.path(0).asText(), response);
+            case "eth_estimateGas" -> response.put("result", hex(120_000));
+            case "eth_sendRawTransaction" -> sendRawTransaction(params.path(0).asText(), response);
+            case "eth_getTransactionReceipt" -> receipt(params.path(0).asText(), response);
+            default -> response.set("error", NODES.objectNode()
+                    .put("code", -32601)
+                    .put("message", "The method " + call.path("method").asText() + " is not available"));
+        }
+        return response;
+    }
+
+    private void sendRawTransaction(String rawTransaction, ObjectNode response) {
+        if (ThreadLocalRandom.current().nextDouble() < settings.sendFailureRate()) {
+            response.set("error", NODES.objectNode().put("code", -32000).put("message", "stand-in send failure"));
+            return;
+        }
+        String hash = Hash.sha3(rawTransaction);
+        nonce.incrementAndGet();
+        minedIn.put(hash, blockNumber.get() + 1);
+        response.put("result", hash);
+    }
+
+    /**
+     * A flat base fee and a 1 gwei tip in every block
+     */
+    private void feeHistory(String blockCount, ObjectNode response) {
+        int blocks = Integer.decode(blockCount);
+        long newest = blockNumber.get();
+        ArrayNode baseFees = NODES.arrayNode();
+        ArrayNode gasUsedRatios = NODES.arrayNode();
+        ArrayNode rewards = NODES.arrayNode();
+        for (int i = 0; i < blocks; i++) {
+            baseFees.add(hex(BASE_FEE));
+            gasUsedRatios.add(0.5);
+            rewards.add(NODES.arrayNode().add(hex(1_000_000_000L)));
+        }
+        // One more base fee than blocks: the next block's
+        baseFees.add(hex(BASE_FEE));
+        response.set("result", NODES.objectNode()
+                .put("oldestBlock", hex(newest - blocks + 1))
+                .<ObjectNode>set("baseFeePerGas", baseFees)
+                .<ObjectNode>set("gasUsedRatio", gasUsedRatios)
+                .set("reward", rewards));
+    }
+
+    private void receipt(String hash, ObjectNode response) {
+        Long block = minedIn.get(hash);
+        if (block == null || block > blockNumber.get()) {
+            response.putNull("result");
+            return;
+        }
+        response.set("result", NODES.objectNode()
+                .put("transactionHash", hash)
+                .put("transactionIndex", "0x0")
+                .put("blockHash", Hash.sha3("0x" + Long.toHexString(block)))
+                .put("blockNumber", hex(block))
+                .put("cumulativeGasUsed", hex(120_000))
+                .put("gasUsed", hex(120_000))
+                .put("effectiveGasPrice", hex(BASE_FEE + 1_000_000_000L))
+                .put("status", "0x1")
+                .put("type", "0x2")
+                .putNull("contractAddress")
+                .<ObjectNode>set("logs", NODES.arrayNode())
+                .put("logsBloom", "0x" + "0".repeat(512)));
+    }
+
+    private static String hex(long value) {
+        return "0x" + Long.toHexString(value);
+    }
+
+    private static String word(long value) {
+        String digits = Long.toHexString(value);
+        return "0x" + "0".repeat(64 - digits.length()) + digits;
+    }
+
+    private static String hex(BigInteger value) {
+        return "0x" + value.toString(16);
+    }
+
+    @Override
+    public void close() {
+        blocks.shutdownNow();
+        server.stop(0);
+    }
+}
@@ -0,0 +1,43 @@
+package com.javaguy.backend.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+final class LoadTestSupport {
+
+    private LoadTestSupport() {
+    }
+
+    /**
+     * Sleeps for the given time give or take a quarter, so stand-in calls do not all finish in lockstep
+     */
+    static void sleepAround(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        long jitter = millis / 4;
+        try {
+            Thread.sleep(millis - jitter + ThreadLocalRandom.current().nextLong(2 * jitter + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param sorted Values in ascending order
+     * @param percentile Between 0 and 100
+     */
+    static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.min(Math.max(index, 0), sorted.length - 1)];
+    }
+
+    static long[] sorted(long[] values) {
+        long[] copy = values.clone();
+        Arrays.sort(copy);
+        return copy;
+    }
+}
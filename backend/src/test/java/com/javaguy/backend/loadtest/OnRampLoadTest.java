@@ -0,0 +1,228 @@
+package com.javaguy.backend.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.javaguy.backend.model.CryptoTransaction;
+import com.javaguy.backend.model.TransactionStatus;
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Drives /api/crypto/on-ramp at a fixed rate against local Daraja and EVM stand-ins and reports the
+ * request throughput, latency percentiles and how many transactions ended in each status.
+ * <p>
+ * Only runs when asked for, e.g.
+ * {@code ./mvnw test -Dtest=OnRampLoadTest -Dloadtest=true -Dloadtest.rate=50 -Dloadtest.duration-seconds=60}.
+ * The stand-ins take their latency and failure rates from the loadtest.daraja.* and loadtest.evm.*
+ * system properties, and any application property can be overridden the same way,
+ * e.g. {@code -Dmpesa.daraja.limits.stk-push.rate-per-second=50}.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@EnabledIfSystemProperty(named = "loadtest", matches = "true")
+class OnRampLoadTest {
+
+    // A throwaway key, it has never held funds on any chain
+    private static final String PRIVATE_KEY = "0x4c0883a69102937d6231471b5dbb6204fe5129617082792ae468d01a3f362318";
+    private static final List<TransactionStatus> OPEN_STATUSES =
+            List.of(TransactionStatus.INITIATING, TransactionStatus.PENDING, TransactionStatus.PAID, TransactionStatus.SUBMITTED);
+
+    private static DarajaStandIn daraja;
+    private static EvmStandIn evm;
+
+    @LocalServerPort
+    private int port;
+    @Autowired
+    private CryptoTransactionRepository transactionRepository;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @DynamicPropertySource
+    static void standIns(DynamicPropertyRegistry registry) throws IOException {
+        daraja = new DarajaStandIn(DarajaStandIn.Settings.fromSystemProperties());
+        evm = new EvmStandIn(EvmStandIn.Settings.fromSystemProperties());
+
+        registry.add("mpesa.daraja.oauth-url", () -> daraja.baseUrl() + "/oauth/v1/generate?grant_type=client_credentials");
+        registry.add("mpesa.daraja.stk-push-url", () -> daraja.baseUrl() + "/mpesa/stkpush/v1/processrequest");
+        registry.add("mpesa.daraja.status-query", () -> daraja.baseUrl() + "/mpesa/stkpushquery/v1/query");
+        // The stand-in posts callbacks to the application's port, see callbackTo
+        registry.add("mpesa.daraja.stk-push-callback-url", () -> "http://localhost/api/payments/stk-callback");
+        registry.add("crypto.rpc-url", evm::url);
+        registry.add("crypto.private-key", () -> PRIVATE_KEY);
+
+        // Lost callbacks are found by the status checker within the run instead of minutes later
+        registry.add("transactions.status-check.callback-grace-seconds", () -> "5");
+        registry.add("transactions.status-check.backoff-initial-seconds", () -> "5");
+        registry.add("transactions.status-check.backoff-max-seconds", () -> "30");
+        registry.add("transactions.status-check.refill-interval-ms", () -> "1000");
+        registry.add("crypto.confirmation.poll-interval-ms", () -> "500");
+    }
+
+    @AfterAll
+    static void stopStandIns() {
+        daraja.close();
+        evm.close();
+    }
+
+    @BeforeEach
+    void pointCallbacksAtTheApplication() {
+        daraja.callbackTo("http://localhost:" + port + "/api/payments/stk-callback");
+    }
+
+    @Test
+    void onRampThroughput() throws Exception {
+        int rate = Integer.getInteger("loadtest.rate", 20);
+        int durationSeconds = Integer.getInteger("loadtest.duration-seconds", 30);
+        Duration drainTimeout = Duration.ofSeconds(Long.getLong("loadtest.drain-seconds", 120));
+
+        int requests = rate * durationSeconds;
+        long[] latencies = new long[requests];
+        Map<Integer, AtomicLong> responses = new ConcurrentHashMap<>();
+        AtomicLong transportErrors = new AtomicLong();
+        // -Dloadtest.async=true drives the 202 Accepted endpoint instead of the blocking one
+        String path = Boolean.getBoolean("loadtest.async") ? "/api/crypto/on-ramp/async" : "/api/crypto/on-ramp";
+        URI onRamp = URI.create("http://localhost:" + port + path);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+
+        long started = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+             HttpClient client = HttpClient.newBuilder().executor(executor).build()) {
+            for (int i = 0; i < requests; i++) {
+                // Open model: requests go out on schedule whether or not earlier ones have returned,
+                // and latency is measured from when a request was due, not from when it was sent
+                long due = started + i * intervalNanos;
+                LockSupport.parkNanos(due - System.nanoTime());
+
+                int index = i;
+                HttpRequest request = HttpRequest.newBuilder(onRamp)
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(onRampBody()))
+                        .build();
+                executor.execute(() -> {
+                    try {
+                        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                        responses.computeIfAbsent(response.statusCode(), code -> new AtomicLong()).incrementAndGet();
+                    } catch (Exception e) {
+                        transportErrors.incrementAndGet();
+                    } finally {
+                        latencies[index] = System.nanoTime() - due;
+                    }
+                });
+            }
+        }
+        Duration driveTime = Duration.ofNanos(System.nanoTime() - started);
+
+        Map<TransactionStatus, Long> statuses = awaitDrain(drainTimeout);
+        Duration totalTime = Duration.ofNanos(System.nanoTime() - started);
+
+        report(rate, requests, driveTime, totalTime, latencies, responses, transportErrors.get(), statuses);
+        long accepted = responses.getOrDefault(200, new AtomicLong()).get() + responses.getOrDefault(202, new AtomicLong()).get();
+        assertThat(accepted).isPositive();
+    }
+
+    /**
+     * Waits until no transaction is open any more, or the timeout passes
+     */
+    private Map<TransactionStatus, Long> awaitDrain(Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (true) {
+            Map<TransactionStatus, Long> statuses = countStatuses();
+            boolean open = OPEN_STATUSES.stream().anyMatch(status -> statuses.getOrDefault(status, 0L) > 0);
+            if (!open || System.nanoTime() > deadline) {
+                return statuses;
+            }
+            Thread.sleep(1000);
+        }
+    }
+
+    private Map<TransactionStatus, Long> countStatuses() {
+        Map<TransactionStatus, Long> statuses = new EnumMap<>(TransactionStatus.class);
+        for (CryptoTransaction transaction : transactionRepository.findAll()) {
+            statuses.merge(transaction.getTransactionStatus(), 1L, Long::sum);
+        }
+        return statuses;
+    }
+
+    private void report(int rate, int requests, Duration driveTime, Duration totalTime, long[] latencies,
+                        Map<Integer, AtomicLong> responses, long transportErrors, Map<TransactionStatus, Long> statuses) {
+        long[] sorted = LoadTestSupport.sorted(latencies);
+        long terminal = statuses.entrySet().stream()
+                .filter(entry -> !OPEN_STATUSES.contains(entry.getKey()))
+                .mapToLong(Map.Entry::getValue)
+                .sum();
+
+        List<String> lines = new ArrayList<>();
+        lines.add("On-ramp load test");
+        lines.add(String.format("  requests         %d in %.1fs (%d/s offered, %.1f/s achieved)", requests,
+                seconds(driveTime), rate, requests / seconds(driveTime)));
+        lines.add("  responses        " + new TreeMap<>(responses) + (transportErrors > 0
+                ? ", transport errors " + transportErrors : ""));
+        lines.add(String.format("  latency ms       p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f",
+                millis(LoadTestSupport.percentile(sorted, 50)), millis(LoadTestSupport.percentile(sorted, 90)),
+                millis(LoadTestSupport.percentile(sorted, 99)), millis(LoadTestSupport.percentile(sorted, 99.9)),
+                millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1])));
+        lines.add(String.format("  terminal         %d in %.1fs (%.1f/s)", terminal, seconds(totalTime),
+                terminal / seconds(totalTime)));
+        lines.add("  statuses         " + statuses);
+        lines.add("  credit txs sent  " + evm.sentTransactions());
+        for (Timer timer : meterRegistry.find("transactions.stage.duration").timers()) {
+            if (timer.count() > 0) {
+                lines.add(String.format("  stage %-10s %-7s n=%d mean %.1fms max %.1fms",
+                        timer.getId().getTag("stage"), timer.getId().getTag("outcome"), timer.count(),
+                        timer.mean(TimeUnit.MILLISECONDS), timer.max(TimeUnit.MILLISECONDS)));
+            }
+        }
+        System.out.println(String.join(System.lineSeparator(), lines));
+    }
+
+    private String onRampBody() throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder wallet = new StringBuilder("0x");
+        for (int i = 0; i < 40; i++) {
+            wallet.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        return objectMapper.writeValueAsString(Map.of(
+                "phoneNumber", "2547" + (10_000_000 + random.nextInt(90_000_000)),
+                "amountKES", (double) (10 + random.nextInt(991)),
+                "walletAddress", wallet.toString()));
+    }
+
+    private static double seconds(Duration duration) {
+        return duration.toNanos() / 1e9;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
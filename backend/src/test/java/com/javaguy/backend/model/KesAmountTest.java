@@ -0,0 +1,49 @@
+package com.javaguy.backend.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class KesAmountTest {
+
+    @Test
+    void parsesShillingsExactly() {
+        assertThat(KesAmount.of(new BigDecimal("150.25")).cents()).isEqualTo(15_025);
+        assertThat(KesAmount.of(new BigDecimal("100.0"))).isEqualTo(KesAmount.ofShillings(100));
+        assertThatThrownBy(() -> KesAmount.of(new BigDecimal("0.001"))).isInstanceOf(ArithmeticException.class);
+    }
+
+    @Test
+    void onlyWholeShillingsAreCharged() {
+        assertThat(KesAmount.ofShillings(250).shillings()).isEqualTo(250);
+        assertThatThrownBy(() -> new KesAmount(25_050).shillings()).isInstanceOf(ArithmeticException.class);
+    }
+
+    @Test
+    void convertsToUsdcUnitsWithSixDecimals() {
+        // 150 KES at 150 KES per USDC is exactly one USDC
+        assertThat(KesAmount.ofShillings(150).toTokenUnits(150_000_000L, 6)).isEqualTo(1_000_000L);
+        // 100 KES at 129.5 KES per USDC is 0.772200772... USDC, rounded down
+        assertThat(KesAmount.ofShillings(100).toTokenUnits(129_500_000L, 6)).isEqualTo(772_200L);
+        // At the old 1.0 rate one KES is one USDC
+        assertThat(KesAmount.ofShillings(1).toTokenUnits(1_000_000L, 6)).isEqualTo(1_000_000L);
+    }
+
+    @Test
+    void convertsExactlyWhenTheProductOverflowsALong() {
+        // 100 KES is 10^26 units before dividing by the rate, far past a long
+        assertThat(KesAmount.ofShillings(100).toTokenUnits(1_000_000_000L, 18))
+                .isEqualTo(100_000_000_000_000_000L);
+        assertThatThrownBy(() -> KesAmount.ofShillings(250_000).toTokenUnits(1_000_000L, 18))
+                .isInstanceOf(ArithmeticException.class);
+    }
+
+    @Test
+    void rejectsNegativeAmountsAndRates() {
+        assertThatThrownBy(() -> new KesAmount(-1)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> KesAmount.ofShillings(1).toTokenUnits(0, 6)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,226 @@
+package com.javaguy.backend.scheduler;
+
+import com.javaguy.backend.event.CreditReadyEvent;
+import com.javaguy.backend.model.CryptoTransaction;
+import com.javaguy.backend.model.KesAmount;
+import com.javaguy.backend.model.OutboxEvent;
+import com.javaguy.backend.model.OutboxEventType;
+import com.javaguy.backend.model.TransactionStatus;
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import com.javaguy.backend.repository.OutboxEventRepository;
+import com.javaguy.backend.service.CreditBatcher;
+import com.javaguy.backend.service.CreditSenderLease;
+import com.javaguy.backend.service.ExchangeRateProvider;
+import com.javaguy.backend.service.ExchangeRateUnavailableException;
+import com.javaguy.backend.service.TransactionStateMachine;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the relay against mocked repositories and batcher, so each way a dispatch can end is driven
+ * directly. Dispatches run on the relay's own threads, hence the verify timeouts.
+ */
+class OutboxRelayTest {
+
+    private static final long EVENT_ID = 7L;
+    private static final long TRANSACTION_ID = 42L;
+    private static final long WAIT_MS = 2000;
+
+    private OutboxEventRepository outboxEventRepository;
+    private CryptoTransactionRepository transactionRepository;
+    private TransactionStateMachine stateMachine;
+    private CreditBatcher creditBatcher;
+    private ExchangeRateProvider exchangeRateProvider;
+    private CreditSenderLease creditSenderLease;
+    private OutboxRelay relay;
+    private CryptoTransaction transaction;
+
+    @BeforeEach
+    void setUp() {
+        outboxEventRepository = mock(OutboxEventRepository.class);
+        transactionRepository = mock(CryptoTransactionRepository.class);
+        stateMachine = mock(TransactionStateMachine.class);
+        creditBatcher = mock(CreditBatcher.class);
+        exchangeRateProvider = mock(ExchangeRateProvider.class);
+        BlockHeadTracker blockHeadTracker = mock(BlockHeadTracker.class);
+        when(blockHeadTracker.latestBlock()).thenReturn(100L);
+        creditSenderLease = mock(CreditSenderLease.class);
+        when(creditSenderLease.isHeld()).thenReturn(true);
+
+        relay = new OutboxRelay(outboxEventRepository, transactionRepository, stateMachine, creditBatcher,
+                blockHeadTracker, exchangeRateProvider, creditSenderLease);
+        ReflectionTestUtils.setField(relay, "creditTimeoutMs", 200L);
+
+        OutboxEvent event = new OutboxEvent(TRANSACTION_ID, OutboxEventType.CREDIT_WALLET);
+        event.setId(EVENT_ID);
+        transaction = new CryptoTransaction();
+        transaction.setId(TRANSACTION_ID);
+        transaction.setWalletAddress("0x0000000000000000000000000000000000000001");
+        transaction.setAmountKES(KesAmount.ofShillings(100));
+        transaction.setExchangeRateMicros(129_500_000L);
+        transaction.setTransactionStatus(TransactionStatus.PAID);
+
+        when(outboxEventRepository.markDispatched(eq(EVENT_ID), any(LocalDateTime.class))).thenReturn(1);
+        when(outboxEventRepository.findById(EVENT_ID)).thenReturn(Optional.of(event));
+        when(transactionRepository.findById(TRANSACTION_ID)).thenReturn(Optional.of(transaction));
+    }
+
+    @Test
+    void sentCreditIsRecordedAsSubmitted() {
+        givenCredit(CompletableFuture.completedFuture("0xabc"));
+
+        relay.onCreditReady(new CreditReadyEvent(EVENT_ID));
+
+        verify(stateMachine, timeout(WAIT_MS)).recordSubmission(transaction, EVENT_ID, "0xabc", 100L);
+    }
+
+    @Test
+    void rejectedSendIsRecordedAsCreditFailure() {
+        givenCredit(CompletableFuture.completedFuture(null));
+
+        relay.onCreditReady(new CreditReadyEvent(EVENT_ID));
+
+        verify(stateMachine, timeout(WAIT_MS)).recordCreditFailure(transaction, EVENT_ID);
+        verify(outboxEventRepository, never()).releaseDispatch(anyLong());
+    }
+
+    @Test
+    void creditCancelledByTheBatcherIsReleasedNotFailed() {
+        givenCredit(CompletableFuture.failedFuture(new CancellationException("stopped")));
+
+        relay.onCreditReady(new CreditReadyEvent(EVENT_ID));
+
+        verify(outboxEventRepository, timeout(WAIT_MS)).releaseDispatch(EVENT_ID);
+        verify(stateMachine, never()).recordCreditFailure(any(), anyLong());
+    }
+
+    @Test
+    void shutdownReleasesCreditsStillWaitingInTheBatcher() throws Exception {
+        CompletableFuture<String> credit = new CompletableFuture<>();
+        givenCredit(credit);
+        when(creditBatcher.withdraw(credit)).thenReturn(true);
+        ReflectionTestUtils.setField(relay, "creditTimeoutMs", 60_000L);
+
+        relay.onCreditReady(new CreditReadyEvent(EVENT_ID));
+        verify(creditBatcher, timeout(WAIT_MS)).creditWallet(any(), any(), anyLong());
+        Thread.sleep(50);
+        relay.shutdown();
+
+        verify(outboxEventRepository).releaseDispatch(EVENT_ID);
+        verify(stateMachine, never()).recordCreditFailure(any(), anyLong());
+    }
+
+    @Test
+    void timedOutCreditStillQueuedIsWithdrawnAndReleased() {
+        CompletableFuture<String> credit = new CompletableFuture<>();
+        givenCredit(credit);
+        when(creditBatcher.withdraw(credit)).thenReturn(true);
+
+        relay.onCreditReady(new CreditReadyEvent(EVENT_ID));
+
+        verify(outboxEventRepository, timeout(WAIT_MS)).releaseDispatch(EVENT_ID);
+        verify(stateMachine, never()).recordCreditFailure(any(), anyLong());
+    }
+
+    @Test
+    void timedOutCreditAlreadySendingIsRecordedWhenTheSendFinishes() {
+        CompletableFuture<String> credit = new CompletableFuture<>();
+        givenCredit(credit);
+        when(creditBatcher.withdraw(credit)).thenReturn(false);
+
+        relay.onCreditReady(new CreditReadyEvent(EVENT_ID));
+        verify(creditBatcher, timeout(WAIT_MS)).withdraw(credit);
+        verify(stateMachine, after(100).never()).recordCreditFailure(any(), anyLong());
+
+        credit.complete("0xlate");
+
+        verify(stateMachine, timeout(WAIT_MS)).recordSubmission(transaction, EVENT_ID, "0xlate", 100L);
+        verify(outboxEventRepository, never()).releaseDispatch(anyLong());
+    }
+
+    @Test
+    void eventIsReleasedWhenNoRateIsAvailableForAnUnlockedTransaction() {
+        transaction.setExchangeRateMicros(null);
+        when(exchangeRateProvider.current()).thenThrow(new ExchangeRateUnavailableException("no quote yet"));
+
+        relay.onCreditReady(new CreditReadyEvent(EVENT_ID));
+
+        verify(outboxEventRepository, timeout(WAIT_MS)).releaseDispatch(EVENT_ID);
+        verify(creditBatcher, never()).creditWallet(any(), any(), anyLong());
+        verify(stateMachine, never()).recordCreditFailure(any(), anyLong());
+    }
+
+    @Test
+    void eventIsReleasedWhenTheBatcherRejectsTheCredit() {
+        when(creditBatcher.creditWallet(any(), any(), anyLong())).thenThrow(new ArithmeticException("overflow"));
+
+        relay.onCreditReady(new CreditReadyEvent(EVENT_ID));
+
+        verify(outboxEventRepository, timeout(WAIT_MS)).releaseDispatch(EVENT_ID);
+    }
+
+    @Test
+    void eventIsReleasedWhenTheTransactionCannotBeRead() {
+        when(transactionRepository.findById(TRANSACTION_ID)).thenThrow(new IllegalStateException("connection lost"));
+
+        relay.onCreditReady(new CreditReadyEvent(EVENT_ID));
+
+        verify(outboxEventRepository, timeout(WAIT_MS)).releaseDispatch(EVENT_ID);
+    }
+
+    @Test
+    void eventTakenByAnotherRelayIsLeftAlone() {
+        when(outboxEventRepository.markDispatched(eq(EVENT_ID), any(LocalDateTime.class)))
+                .thenThrow(new IllegalStateException("lock timeout"));
+
+        relay.onCreditReady(new CreditReadyEvent(EVENT_ID));
+
+        verify(outboxEventRepository, after(200).never()).releaseDispatch(anyLong());
+    }
+
+    @Test
+    void instanceWithoutTheSenderLeaseLeavesEventsToTheHolder() {
+        when(creditSenderLease.isHeld()).thenReturn(false);
+
+        relay.onCreditReady(new CreditReadyEvent(EVENT_ID));
+        relay.poll();
+
+        verify(outboxEventRepository, after(200).never()).markDispatched(anyLong(), any());
+        verify(outboxEventRepository, never()).findReady(any());
+        verify(creditBatcher, never()).creditWallet(any(), any(), anyLong());
+    }
+
+    @Test
+    void failureAfterTheCreditWasHandedOverIsNotReleased() {
+        givenCredit(CompletableFuture.completedFuture("0xabc"));
+        doThrow(new IllegalStateException("connection lost"))
+                .when(stateMachine).recordSubmission(any(), anyLong(), any(), anyLong());
+
+        relay.onCreditReady(new CreditReadyEvent(EVENT_ID));
+
+        verify(stateMachine, timeout(WAIT_MS)).recordSubmission(transaction, EVENT_ID, "0xabc", 100L);
+        verify(outboxEventRepository, after(200).never()).releaseDispatch(anyLong());
+    }
+
+    private void givenCredit(CompletableFuture<String> credit) {
+        when(creditBatcher.creditWallet(eq(transaction.getWalletAddress()), eq(transaction.getAmountKES()), anyLong()))
+                .thenReturn(credit);
+    }
+}
@@ -0,0 +1,65 @@
+package com.javaguy.backend.scheduler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Drives a wheel of 8 slots of 100 ms each with explicit times, starting at 0
+ */
+class TimingWheelTest {
+
+    private final TimingWheel<String> wheel = new TimingWheel<>(8, 100, 0);
+
+    @Test
+    void itemDuePartWayThroughATickNeverComesOutEarly() {
+        wheel.schedule("a", 250);
+
+        assertThat(wheel.advance(200)).isEmpty();
+        assertThat(wheel.advance(249)).isEmpty();
+        // Released once the tick it falls due in has ended
+        assertThat(wheel.advance(300)).containsExactly("a");
+    }
+
+    @Test
+    void itemDueOnATickBoundaryComesOutOnThatTick() {
+        wheel.schedule("a", 300);
+
+        assertThat(wheel.advance(299)).isEmpty();
+        assertThat(wheel.advance(300)).containsExactly("a");
+    }
+
+    @Test
+    void itemAlreadyDueComesOutOnTheNextAdvance() {
+        wheel.advance(500);
+        wheel.schedule("late", 120);
+
+        assertThat(wheel.advance(600)).containsExactly("late");
+        assertThat(wheel.size()).isZero();
+    }
+
+    @Test
+    void itemMoreThanOneRevolutionAwayWaitsForItsTurn() {
+        wheel.schedule("near", 150);
+        wheel.schedule("far", 150 + 8 * 100);
+
+        assertThat(wheel.advance(200)).containsExactly("near");
+        assertThat(wheel.advance(900)).isEmpty();
+        assertThat(wheel.advance(1000)).containsExactly("far");
+    }
+
+    @Test
+    void longPauseReleasesEverythingDueInOnePass() {
+        List<String> scheduled = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            scheduled.add("item-" + i);
+            wheel.schedule("item-" + i, i * 100L);
+        }
+
+        assertThat(wheel.advance(5000)).containsExactlyInAnyOrderElementsOf(scheduled);
+        assertThat(wheel.size()).isZero();
+    }
+}
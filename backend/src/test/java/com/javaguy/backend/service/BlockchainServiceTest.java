@@ -0,0 +1,119 @@
+package com.javaguy.backend.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.web3j.crypto.Credentials;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.BatchResponse;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.request.Transaction;
+import org.web3j.protocol.core.methods.response.EthCall;
+import org.web3j.protocol.core.methods.response.EthGetTransactionReceipt;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
+import org.web3j.utils.Numeric;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Answers JSON-RPC batches from a mocked node, in whatever order each test needs
+ */
+class BlockchainServiceTest {
+
+    private final Web3jService web3jService = mock(Web3jService.class);
+    private final List<Request<?, ? extends Response<?>>> batched = new ArrayList<>();
+    private Web3j web3j;
+    private BatchRequest batch;
+    private BlockchainService blockchainService;
+
+    @BeforeEach
+    void setUp() {
+        web3j = mock(Web3j.class);
+        batch = mock(BatchRequest.class);
+        when(web3j.newBatch()).thenReturn(batch);
+        doAnswer(invocation -> {
+            batched.add(invocation.getArgument(0));
+            return batch;
+        }).when(batch).add(any());
+
+        blockchainService = new BlockchainService(null, null, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(blockchainService, "web3j", web3j);
+        ReflectionTestUtils.setField(blockchainService, "rpcBatchSize", 200);
+        ReflectionTestUtils.setField(blockchainService, "tokenDecimals", 6);
+        ReflectionTestUtils.setField(blockchainService, "credentials",
+                Credentials.create("0x4c0883a69102937d6231471b5dbb6204fe5129617082792ae468d01a3f362318"));
+    }
+
+    @Test
+    void receiptsAnsweredOutOfOrderAreMatchedByRequestId() throws Exception {
+        when(web3j.ethGetTransactionReceipt(anyString())).thenAnswer(invocation -> new Request<>(
+                "eth_getTransactionReceipt", List.of(invocation.<String>getArgument(0)), web3jService,
+                EthGetTransactionReceipt.class));
+        when(batch.send()).thenAnswer(invocation -> reversed(request -> {
+            String hash = (String) request.getParams().get(0);
+            EthGetTransactionReceipt response = new EthGetTransactionReceipt();
+            if (!hash.equals("0xpending")) {
+                TransactionReceipt receipt = new TransactionReceipt();
+                receipt.setTransactionHash(hash);
+                response.setResult(receipt);
+            }
+            return response;
+        }));
+
+        Map<String, TransactionReceipt> receipts =
+                blockchainService.getTransactionReceipts(List.of("0xa", "0xpending", "0xb"));
+
+        assertThat(receipts).containsOnlyKeys("0xa", "0xb");
+        receipts.forEach((hash, receipt) -> assertThat(receipt.getTransactionHash()).isEqualTo(hash));
+    }
+
+    @Test
+    void balancesAnsweredOutOfOrderAreMatchedByRequestId() throws Exception {
+        Map<String, Long> units = Map.of(
+                "0x0000000000000000000000000000000000000001", 1_000_000L,
+                "0x0000000000000000000000000000000000000002", 2_500_000L);
+        when(web3j.ethCall(any(Transaction.class), any())).thenAnswer(invocation -> new Request<>(
+                "eth_call", List.of(invocation.<Transaction>getArgument(0)), web3jService, EthCall.class));
+        when(batch.send()).thenAnswer(invocation -> reversed(request -> {
+            // balanceOf(address): the wallet is the last 20 bytes of the call data
+            String data = ((Transaction) request.getParams().get(0)).getData();
+            String wallet = "0x" + data.substring(data.length() - 40);
+            EthCall response = new EthCall();
+            response.setResult(Numeric.toHexStringWithPrefixZeroPadded(BigInteger.valueOf(units.get(wallet)), 64));
+            return response;
+        }));
+
+        Map<String, BigDecimal> balances = blockchainService.getUSDCBalances(List.copyOf(units.keySet()), 100);
+
+        assertThat(balances).hasSize(2);
+        assertThat(balances.get("0x0000000000000000000000000000000000000001")).isEqualByComparingTo("1");
+        assertThat(balances.get("0x0000000000000000000000000000000000000002")).isEqualByComparingTo("2.5");
+    }
+
+    // Answers every batched request, last request first, with the response carrying the request's id
+    private BatchResponse reversed(Function<Request<?, ?>, Response<?>> answer) {
+        List<Response<?>> responses = new ArrayList<>();
+        for (Request<?, ? extends Response<?>> request : batched) {
+            Response<?> response = answer.apply(request);
+            response.setId(request.getId());
+            responses.add(0, response);
+        }
+        return new BatchResponse(new ArrayList<>(batched), responses);
+    }
+}
@@ -0,0 +1,139 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.event.NewBlockEvent;
+import com.javaguy.backend.model.TransactionStatus;
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import com.javaguy.backend.repository.CryptoTransactionRepository.OutstandingSubmission;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Feeds the tracker new blocks against mocked receipts, covering how a credit that is not being mined is
+ * replaced, then cancelled
+ */
+class ConfirmationTrackerTest {
+
+    private static final String TX_HASH = "0xa";
+
+    private BlockchainService blockchainService;
+    private CryptoTransactionRepository transactionRepository;
+    private CreditSenderLease creditSenderLease;
+    private ConfirmationTracker tracker;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        blockchainService = mock(BlockchainService.class);
+        transactionRepository = mock(CryptoTransactionRepository.class);
+        creditSenderLease = mock(CreditSenderLease.class);
+        when(creditSenderLease.isHeld()).thenReturn(true);
+        when(blockchainService.getTransactionReceipts(anyList())).thenReturn(Map.of());
+
+        tracker = new ConfirmationTracker(blockchainService, transactionRepository, mock(BalanceService.class),
+                mock(OnRampMetrics.class), mock(ApplicationEventPublisher.class), creditSenderLease);
+        ReflectionTestUtils.setField(tracker, "requiredConfirmations", 2L);
+        ReflectionTestUtils.setField(tracker, "dropAfterBlocks", 450L);
+        ReflectionTestUtils.setField(tracker, "bumpAfterBlocks", 15L);
+        ReflectionTestUtils.setField(tracker, "maxReplacements", 5);
+    }
+
+    @Test
+    void submissionSentBeforeTheHeadWasKnownIsTimedFromTheNextBlock() {
+        givenOutstanding(submission(-1L, null, null));
+
+        tracker.onNewBlock(new NewBlockEvent(1000));
+
+        verify(transactionRepository).recordSubmittedBlock(TX_HASH, 1000L);
+        verify(blockchainService, never()).replace(anyString());
+        verify(blockchainService, never()).cancel(anyString());
+    }
+
+    @Test
+    void transactionNotMinedAfterBumpAfterBlocksIsReplaced() {
+        givenOutstanding(submission(80L, null, null));
+        when(blockchainService.replace(TX_HASH)).thenReturn("0xb");
+
+        tracker.onNewBlock(new NewBlockEvent(95));
+
+        verify(transactionRepository).replaceSubmission(TX_HASH, "0xb", TX_HASH, 95L);
+    }
+
+    @Test
+    void transactionNotYetDueForABumpIsLeftAlone() {
+        givenOutstanding(submission(80L, null, null));
+
+        tracker.onNewBlock(new NewBlockEvent(94));
+
+        verify(blockchainService, never()).replace(anyString());
+    }
+
+    @Test
+    void transactionNotMinedAfterDropAfterBlocksIsCancelled() {
+        givenOutstanding(submission(100L, "0x1,0x2", null));
+        when(blockchainService.cancel(TX_HASH)).thenReturn("0xc");
+
+        tracker.onNewBlock(new NewBlockEvent(551));
+
+        verify(transactionRepository).cancelSubmission(TX_HASH, "0xc", 551L);
+        verify(blockchainService, never()).replace(anyString());
+    }
+
+    @Test
+    void minedCancellationFailsTheCredits() throws Exception {
+        givenOutstanding(submission(600L, null, "0xc"));
+        when(blockchainService.getTransactionReceipts(anyList())).thenReturn(Map.of("0xc", receipt("0xc", 599)));
+
+        tracker.onNewBlock(new NewBlockEvent(600));
+
+        verify(transactionRepository).concludeSubmission(eq(TX_HASH), eq(TransactionStatus.BLOCKCHAIN_ERROR),
+                any(LocalDateTime.class));
+    }
+
+    @Test
+    void instanceWithoutTheSenderLeaseNeitherReplacesNorCancels() {
+        when(creditSenderLease.isHeld()).thenReturn(false);
+        givenOutstanding(submission(0L, null, null));
+
+        tracker.onNewBlock(new NewBlockEvent(1000));
+
+        verify(blockchainService, never()).replace(anyString());
+        verify(blockchainService, never()).cancel(anyString());
+    }
+
+    private void givenOutstanding(OutstandingSubmission submission) {
+        when(transactionRepository.findOutstandingSubmissions()).thenReturn(List.of(submission));
+    }
+
+    private static OutstandingSubmission submission(Long submittedBlock, String replacedTxHashes, String cancelTxHashes) {
+        OutstandingSubmission submission = mock(OutstandingSubmission.class);
+        when(submission.getTxHash()).thenReturn(TX_HASH);
+        when(submission.getSubmittedBlock()).thenReturn(submittedBlock);
+        when(submission.getSubmittedAt()).thenReturn(LocalDateTime.now());
+        when(submission.getReplacedTxHashes()).thenReturn(replacedTxHashes);
+        when(submission.getCancelTxHashes()).thenReturn(cancelTxHashes);
+        return submission;
+    }
+
+    private static TransactionReceipt receipt(String txHash, long blockNumber) {
+        TransactionReceipt receipt = new TransactionReceipt();
+        receipt.setTransactionHash(txHash);
+        receipt.setBlockNumber("0x" + Long.toHexString(blockNumber));
+        receipt.setStatus("0x1");
+        return receipt;
+    }
+}
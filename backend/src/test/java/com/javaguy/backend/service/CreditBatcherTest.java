@@ -0,0 +1,138 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.model.KesAmount;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Drives the batcher against a mocked BlockchainService, so only the collecting, splitting and shutdown
+ * behaviour is under test
+ */
+class CreditBatcherTest {
+
+    private static final long RATE = 1_000_000L;
+
+    private BlockchainService blockchainService;
+    private CreditBatcher batcher;
+
+    @BeforeEach
+    void setUp() {
+        blockchainService = mock(BlockchainService.class);
+        when(blockchainService.toTokenAmount(anyString(), any(KesAmount.class), anyLong()))
+                .thenReturn(BigInteger.valueOf(100_000_000L));
+        batcher = new CreditBatcher(blockchainService);
+    }
+
+    @AfterEach
+    void tearDown() {
+        batcher.stop();
+    }
+
+    @Test
+    void creditsArrivingWithinTheWindowShareOneTransaction() throws Exception {
+        when(blockchainService.simulateCredits(anyList(), anyList())).thenReturn(true);
+        when(blockchainService.sendCredits(anyList(), anyList())).thenReturn("0xbatch");
+        start(200, 25);
+
+        List<CompletableFuture<String>> credits = List.of(credit("0x01"), credit("0x02"), credit("0x03"));
+
+        for (CompletableFuture<String> credit : credits) {
+            assertThat(credit.get(5, TimeUnit.SECONDS)).isEqualTo("0xbatch");
+        }
+        verify(blockchainService, times(1)).sendCredits(
+                List.of("0x01", "0x02", "0x03"), List.of(amount(), amount(), amount()));
+    }
+
+    @Test
+    void fullBatchIsSentWithoutWaitingForTheWindow() throws Exception {
+        when(blockchainService.simulateCredits(anyList(), anyList())).thenReturn(true);
+        when(blockchainService.sendCredits(anyList(), anyList())).thenReturn("0xfirst", "0xsecond");
+        start(60_000, 2);
+
+        CompletableFuture<String> first = credit("0x01");
+        CompletableFuture<String> second = credit("0x02");
+
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("0xfirst");
+        assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo("0xfirst");
+    }
+
+    @Test
+    void batchThatWouldRevertIsSentCreditByCredit() throws Exception {
+        when(blockchainService.simulateCredits(anyList(), anyList())).thenReturn(false);
+        when(blockchainService.sendCredits(List.of("0x01"), List.of(amount()))).thenReturn("0xone");
+        when(blockchainService.sendCredits(List.of("0x02"), List.of(amount()))).thenReturn(null);
+        start(200, 25);
+
+        CompletableFuture<String> good = credit("0x01");
+        CompletableFuture<String> bad = credit("0x02");
+
+        assertThat(good.get(5, TimeUnit.SECONDS)).isEqualTo("0xone");
+        // Attempted and rejected, so reported as not accepted rather than cancelled
+        assertThat(bad.get(5, TimeUnit.SECONDS)).isNull();
+    }
+
+    @Test
+    void creditsNotSentByShutdownAreCancelledNotFailed() throws Exception {
+        // The window never closes, so both credits are still waiting when the batcher stops
+        start(60_000, 25);
+
+        List<CompletableFuture<String>> credits = List.of(credit("0x01"), credit("0x02"));
+        Thread.sleep(100);
+        batcher.stop();
+
+        for (CompletableFuture<String> credit : credits) {
+            assertThatThrownBy(() -> credit.get(5, TimeUnit.SECONDS)).isInstanceOf(CancellationException.class);
+        }
+        verify(blockchainService, never()).sendCredits(anyList(), anyList());
+    }
+
+    @Test
+    void withdrawnCreditIsNeverSent() throws Exception {
+        when(blockchainService.simulateCredits(anyList(), anyList())).thenReturn(true);
+        when(blockchainService.sendCredits(anyList(), anyList())).thenReturn("0xbatch");
+
+        CompletableFuture<String> withdrawn = credit("0x01");
+        CompletableFuture<String> kept = credit("0x02");
+        assertThat(batcher.withdraw(withdrawn)).isTrue();
+        assertThat(batcher.withdraw(withdrawn)).isFalse();
+
+        start(50, 25);
+        assertThat(kept.get(5, TimeUnit.SECONDS)).isEqualTo("0xbatch");
+        verify(blockchainService).sendCredits(List.of("0x02"), List.of(amount()));
+        assertThat(withdrawn).isNotDone();
+    }
+
+    private void start(long windowMs, int maxSize) {
+        ReflectionTestUtils.setField(batcher, "windowMs", windowMs);
+        ReflectionTestUtils.setField(batcher, "maxSize", maxSize);
+        batcher.start();
+    }
+
+    private CompletableFuture<String> credit(String walletAddress) {
+        return batcher.creditWallet(walletAddress, KesAmount.ofShillings(100), RATE);
+    }
+
+    private static BigInteger amount() {
+        return BigInteger.valueOf(100_000_000L);
+    }
+}
@@ -0,0 +1,106 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.repository.SenderLeaseRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs several leases, one per simulated instance, against the same local H2 database.
+ * Each lease commits on its own, so the test itself must not wrap them in a transaction.
+ */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class CreditSenderLeaseTest {
+
+    @Autowired
+    private SenderLeaseRepository leaseRepository;
+
+    @AfterEach
+    void cleanUp() {
+        leaseRepository.deleteAll();
+    }
+
+    @Test
+    void onlyOneOfSeveralInstancesBecomesTheSender() throws Exception {
+        AtomicInteger acquisitions = new AtomicInteger();
+        List<CreditSenderLease> leases = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            leases.add(new CreditSenderLease(leaseRepository, "node-" + i, Duration.ofMinutes(1),
+                    acquisitions::incrementAndGet));
+        }
+
+        // Every instance starts at once, racing to create the lease row
+        List<Callable<Boolean>> renewals = new ArrayList<>();
+        for (CreditSenderLease lease : leases) {
+            renewals.add(() -> {
+                lease.renew();
+                return lease.isHeld();
+            });
+        }
+        int holders = 0;
+        try (ExecutorService pool = Executors.newFixedThreadPool(leases.size())) {
+            for (Future<Boolean> held : pool.invokeAll(renewals)) {
+                holders += held.get() ? 1 : 0;
+            }
+        }
+
+        assertThat(holders).isEqualTo(1);
+        assertThat(acquisitions).hasValue(1);
+
+        // Renewing keeps the same holder, and does not count as taking the lease over
+        leases.forEach(CreditSenderLease::renew);
+        assertThat(leases.stream().filter(CreditSenderLease::isHeld)).hasSize(1);
+        assertThat(acquisitions).hasValue(1);
+    }
+
+    @Test
+    void expiredLeaseIsTakenOverAndTheNewSenderResyncs() {
+        AtomicInteger takeovers = new AtomicInteger();
+        CreditSenderLease crashed = new CreditSenderLease(leaseRepository, "crashed", Duration.ofMinutes(1), () -> { });
+        CreditSenderLease standby = new CreditSenderLease(leaseRepository, "standby", Duration.ofMinutes(1),
+                takeovers::incrementAndGet);
+
+        crashed.renew();
+        standby.renew();
+        assertThat(standby.isHeld()).isFalse();
+
+        // The crashed instance never renews, so its lease runs out
+        leaseRepository.findById(CreditSenderLease.NAME).ifPresent(lease -> {
+            lease.setLeaseExpiresAt(LocalDateTime.now().minusSeconds(1));
+            leaseRepository.save(lease);
+        });
+        standby.renew();
+
+        assertThat(standby.isHeld()).isTrue();
+        assertThat(takeovers).hasValue(1);
+    }
+
+    @Test
+    void releasedLeaseIsTakenOverAtTheNextRenewal() {
+        CreditSenderLease stopping = new CreditSenderLease(leaseRepository, "stopping", Duration.ofMinutes(1), () -> { });
+        CreditSenderLease standby = new CreditSenderLease(leaseRepository, "standby", Duration.ofMinutes(1), () -> { });
+
+        stopping.renew();
+        stopping.release();
+        standby.renew();
+
+        assertThat(stopping.isHeld()).isFalse();
+        assertThat(standby.isHeld()).isTrue();
+    }
+}
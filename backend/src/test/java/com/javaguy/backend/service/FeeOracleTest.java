@@ -0,0 +1,58 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.service.FeeOracle.Fees;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks replacement fees against the current fees of an oracle that has not read the fee history yet,
+ * so it offers its fallback of 30 gwei with a 1 gwei tip, under a 200 gwei cap
+ */
+class FeeOracleTest {
+
+    private static final BigInteger GWEI = BigInteger.TEN.pow(9);
+
+    private final FeeOracle feeOracle = new FeeOracle(null, new SimpleMeterRegistry(), 20, 50, 1, 200, 30);
+
+    @Test
+    void bumpRaisesBothFeesByAtLeastThePercentage() {
+        Fees bumped = feeOracle.bump(new Fees(gwei(40), gwei(2)), 15);
+
+        assertThat(bumped.maxFeePerGas()).isEqualTo(gwei(46));
+        assertThat(bumped.maxPriorityFeePerGas()).isEqualTo(BigInteger.valueOf(2_300_000_000L));
+    }
+
+    @Test
+    void bumpRoundsUpSoASmallFeeStillRises() {
+        Fees bumped = feeOracle.bump(new Fees(gwei(40), BigInteger.valueOf(1_000_000_005L)), 10);
+
+        // 1,100,000,005.5 wei; rounding down would leave the raise just under 10% and the node would reject it
+        assertThat(bumped.maxPriorityFeePerGas()).isEqualTo(BigInteger.valueOf(1_100_000_006L));
+    }
+
+    @Test
+    void bumpTakesTheCurrentFeesWhenTheyAreHigher() {
+        Fees bumped = feeOracle.bump(new Fees(gwei(10), BigInteger.valueOf(100)), 10);
+
+        assertThat(bumped).isEqualTo(new Fees(gwei(30), gwei(1)));
+    }
+
+    @Test
+    void bumpPastTheFeeCapIsRefused() {
+        assertThat(feeOracle.bump(new Fees(gwei(190), gwei(2)), 10)).isNull();
+    }
+
+    @Test
+    void bumpWhoseTipWouldFallBelowTheRequiredRaiseIsRefused() {
+        // A tip is capped by its fee cap, so a tip of 55 gwei cannot fit under a fee cap raised to 44 gwei
+        assertThat(feeOracle.bump(new Fees(gwei(40), gwei(50)), 10)).isNull();
+    }
+
+    private static BigInteger gwei(long gwei) {
+        return BigInteger.valueOf(gwei).multiply(GWEI);
+    }
+}
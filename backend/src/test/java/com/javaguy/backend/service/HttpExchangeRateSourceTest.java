@@ -0,0 +1,81 @@
+package com.javaguy.backend.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Serves canned quote responses from an interceptor, so no request leaves the test
+ */
+class HttpExchangeRateSourceTest {
+
+    private static final String URL = "https://quotes.test/v6/latest/USD";
+
+    @Test
+    void quoteIsDatedWithTheSourcesOwnTimestamp() throws Exception {
+        ExchangeRate rate = source("""
+                {"time_last_update_unix": 1760745601, "rates": {"KES": 129.25}}""").fetch();
+
+        assertThat(rate.kesPerUsdc()).isEqualByComparingTo("129.25");
+        assertThat(rate.quotedAt()).isEqualTo(Instant.ofEpochSecond(1760745601));
+    }
+
+    @Test
+    void datesAreReadAsWellAsEpochSeconds() throws Exception {
+        assertThat(source("""
+                {"time_last_update_unix": "Sat, 18 Oct 2025 00:00:01 +0000", "rates": {"KES": 129.25}}""")
+                .fetch().quotedAt()).isEqualTo(Instant.parse("2025-10-18T00:00:01Z"));
+        assertThat(source("""
+                {"time_last_update_unix": "2025-10-18T00:00:01Z", "rates": {"KES": 129.25}}""")
+                .fetch().quotedAt()).isEqualTo(Instant.parse("2025-10-18T00:00:01Z"));
+    }
+
+    @Test
+    void quoteWithoutATimestampIsDatedWhenItWasFetched() throws Exception {
+        Instant before = Instant.now();
+        ExchangeRate rate = source("""
+                {"rates": {"KES": 129.25}}""").fetch();
+
+        assertThat(rate.quotedAt()).isBetween(before, Instant.now());
+    }
+
+    @Test
+    void timestampAheadOfOurClockIsTakenAsNow() throws Exception {
+        long tomorrow = Instant.now().plus(Duration.ofDays(1)).getEpochSecond();
+        ExchangeRate rate = source("""
+                {"time_last_update_unix": %d, "rates": {"KES": 129.25}}""".formatted(tomorrow)).fetch();
+
+        assertThat(rate.quotedAt()).isBefore(Instant.ofEpochSecond(tomorrow));
+    }
+
+    @Test
+    void unreadableTimestampFailsTheFetch() {
+        assertThatThrownBy(() -> source("""
+                {"time_last_update_unix": "yesterday", "rates": {"KES": 129.25}}""").fetch())
+                .isInstanceOf(IOException.class);
+    }
+
+    private static HttpExchangeRateSource source(String body) {
+        OkHttpClient client = new OkHttpClient.Builder()
+                .addInterceptor(chain -> new Response.Builder()
+                        .request(chain.request())
+                        .protocol(Protocol.HTTP_1_1)
+                        .code(200)
+                        .message("OK")
+                        .body(ResponseBody.create(body, MediaType.get("application/json")))
+                        .build())
+                .build();
+        return new HttpExchangeRateSource(client, new ObjectMapper(), URL, "/rates/KES", "/time_last_update_unix");
+    }
+}
@@ -0,0 +1,124 @@
+package com.javaguy.backend.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.response.EthGetTransactionCount;
+
+import java.math.BigInteger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Drives the nonce counter against a mocked node whose PENDING transaction count the test sets
+ */
+class NonceManagerTest {
+
+    private static final String ADDRESS = "0x0000000000000000000000000000000000000001";
+
+    private final AtomicLong pendingCount = new AtomicLong(5);
+    private Web3j web3j;
+    private NonceManager nonceManager;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        web3j = mock(Web3j.class);
+        Request<?, EthGetTransactionCount> request = mock(Request.class);
+        when(request.send()).thenAnswer(invocation -> {
+            EthGetTransactionCount count = new EthGetTransactionCount();
+            count.setResult("0x" + Long.toHexString(pendingCount.get()));
+            return count;
+        });
+        doReturn(request).when(web3j).ethGetTransactionCount(anyString(), any());
+        nonceManager = new NonceManager(web3j, ADDRESS);
+    }
+
+    @Test
+    void seedsOnceFromTheNodeThenCountsLocally() throws Exception {
+        assertThat(next()).isEqualTo(5);
+        assertThat(next()).isEqualTo(6);
+        assertThat(next()).isEqualTo(7);
+
+        verify(web3j, times(1)).ethGetTransactionCount(ADDRESS, DefaultBlockParameterName.PENDING);
+    }
+
+    @Test
+    void nonceErrorResyncsFromTheNode() throws Exception {
+        long nonce = next();
+        // Another sender used nonces 5 to 8, so the node rejects 5 as too low
+        pendingCount.set(9);
+        assertThat(NonceManager.isNonceError("nonce too low: next nonce 9, tx nonce 5")).isTrue();
+        nonceManager.resync(BigInteger.valueOf(nonce));
+
+        assertThat(next()).isEqualTo(9);
+        assertThat(next()).isEqualTo(10);
+    }
+
+    @Test
+    void releasedLastNonceIsReusedWithoutAskingTheNode() throws Exception {
+        long nonce = next();
+        nonceManager.release(BigInteger.valueOf(nonce));
+
+        assertThat(next()).isEqualTo(nonce);
+        verify(web3j, times(1)).ethGetTransactionCount(anyString(), any());
+    }
+
+    @Test
+    void gapIsResyncedOnlyAfterOutstandingSendsFinish() throws Exception {
+        long first = next();
+        long second = next();
+        nonceManager.release(BigInteger.valueOf(first));
+
+        // The node does not count nonce 6 until its send finishes, so the next allocation waits for it
+        CompletableFuture<Long> waiting = CompletableFuture.supplyAsync(this::nextUnchecked);
+        Thread.sleep(100);
+        assertThat(waiting).isNotDone();
+
+        pendingCount.set(second + 1);
+        nonceManager.sent(BigInteger.valueOf(second));
+
+        assertThat(waiting.get(2, TimeUnit.SECONDS)).isEqualTo(second + 1);
+    }
+
+    @Test
+    void reseedReloadsFromTheNodeBeforeTheNextSend() throws Exception {
+        nonceManager.sent(BigInteger.valueOf(next()));
+        pendingCount.set(20);
+
+        nonceManager.reseed();
+
+        assertThat(next()).isEqualTo(20);
+    }
+
+    @Test
+    void alreadyKnownIsNotANonceError() {
+        assertThat(NonceManager.isAlreadyKnown("already known")).isTrue();
+        assertThat(NonceManager.isNonceError("already known")).isFalse();
+        assertThat(NonceManager.isNonceError("replacement transaction underpriced")).isTrue();
+        assertThat(NonceManager.isNonceError(null)).isFalse();
+    }
+
+    private long next() throws Exception {
+        return nonceManager.next().longValueExact();
+    }
+
+    private long nextUnchecked() {
+        try {
+            return next();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.model.CryptoTransaction;
+import com.javaguy.backend.model.KesAmount;
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the dispatcher against a mocked TransactionService whose STK pushes block until the test lets them go
+ */
+class OnRampDispatcherTest {
+
+    private static final String PHONE = "254708374149";
+    private static final String WALLET = "0x0000000000000000000000000000000000000001";
+
+    private final AtomicLong ids = new AtomicLong();
+    private final CountDownLatch pushesMayFinish = new CountDownLatch(1);
+    private TransactionService transactionService;
+    private MockEnvironment environment;
+    private OnRampDispatcher dispatcher;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        transactionService = mock(TransactionService.class);
+        when(transactionService.createInitiation(any(), any(), any(), any())).thenAnswer(invocation -> {
+            CryptoTransaction transaction = new CryptoTransaction();
+            transaction.setId(ids.incrementAndGet());
+            return transaction;
+        });
+        doAnswer(invocation -> pushesMayFinish.await(5, TimeUnit.SECONDS))
+                .when(transactionService).sendStkPush(any());
+
+        environment = new MockEnvironment()
+                .withProperty("mpesa.daraja.limits.stk-push.rate-per-second", "5")
+                .withProperty("mpesa.daraja.limits.stk-push.max-concurrent", "10")
+                .withProperty("mpesa.daraja.limits.stk-push.max-wait-ms", "2000");
+    }
+
+    @AfterEach
+    void tearDown() {
+        pushesMayFinish.countDown();
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    void defaultQueueLimitIsWhatTheStkPushLimitsCanStartInTime() {
+        assertThat(OnRampDispatcher.stkPushCapacity(environment)).isEqualTo(5 * 2 + 10);
+
+        dispatcher = dispatcher(0);
+        for (int i = 0; i < 20; i++) {
+            submit();
+        }
+        assertThatThrownBy(this::submit).isInstanceOf(OnRampRejectedException.class);
+    }
+
+    @Test
+    void pushesBeyondTheQueueLimitAreRejectedUntilOneFinishes() throws Exception {
+        dispatcher = dispatcher(2);
+        submit();
+        submit();
+
+        assertThatThrownBy(this::submit).isInstanceOf(OnRampRejectedException.class);
+        verify(transactionService, times(2)).createInitiation(any(), any(), any(), any());
+
+        pushesMayFinish.countDown();
+        verify(transactionService, timeout(2000).times(2)).sendStkPush(any());
+        // The permits come back once the pushes finish
+        Thread.sleep(100);
+        submit();
+        submit();
+        verify(transactionService, timeout(2000).times(4)).sendStkPush(any());
+    }
+
+    private OnRampDispatcher dispatcher(int maxQueued) {
+        return new OnRampDispatcher(transactionService, mock(TransactionStateMachine.class),
+                mock(CryptoTransactionRepository.class), mock(IdempotencyCache.class), new SimpleMeterRegistry(),
+                environment, maxQueued, 120);
+    }
+
+    private Long submit() {
+        return dispatcher.submit(PHONE, KesAmount.ofShillings(100), WALLET, null);
+    }
+}
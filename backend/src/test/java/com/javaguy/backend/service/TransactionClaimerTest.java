@@ -0,0 +1,147 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.model.CryptoTransaction;
+import com.javaguy.backend.model.KesAmount;
+import com.javaguy.backend.model.TransactionStatus;
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import com.javaguy.backend.repository.CryptoTransactionRepository.DueCheck;
+import com.javaguy.backend.service.TransactionClaimer.DuePage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs several claimers, one per simulated instance, against the same local H2 database.
+ * Each claimer commits on its own, so the test itself must not wrap them in a transaction.
+ */
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class TransactionClaimerTest {
+
+    private static final int PAGE_SIZE = 25;
+
+    @Autowired
+    private CryptoTransactionRepository transactionRepository;
+
+    @AfterEach
+    void cleanUp() {
+        transactionRepository.deleteAll();
+    }
+
+    @Test
+    void concurrentInstancesSplitPendingTransactionsWithoutOverlap() throws Exception {
+        Set<Long> pendingIds = createPendingTransactions(500);
+
+        int instances = 4;
+        List<Callable<List<Long>>> sweeps = new ArrayList<>();
+        for (int i = 0; i < instances; i++) {
+            TransactionClaimer claimer = new TransactionClaimer(transactionRepository, "node-" + i, Duration.ofMinutes(5));
+            sweeps.add(() -> sweep(claimer));
+        }
+
+        List<Long> claimed = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(instances)) {
+            for (Future<List<Long>> result : executor.invokeAll(sweeps)) {
+                claimed.addAll(result.get());
+            }
+        }
+
+        assertThat(claimed).doesNotHaveDuplicates();
+        assertThat(new HashSet<>(claimed)).isEqualTo(pendingIds);
+    }
+
+    @Test
+    void liveLeaseIsSkippedByOtherInstances() {
+        createPendingTransactions(10);
+
+        TransactionClaimer first = new TransactionClaimer(transactionRepository, "node-a", Duration.ofMinutes(5));
+        TransactionClaimer second = new TransactionClaimer(transactionRepository, "node-b", Duration.ofMinutes(5));
+
+        assertThat(sweep(first)).hasSize(10);
+        assertThat(sweep(second)).isEmpty();
+    }
+
+    @Test
+    void expiredLeaseIsPickedUpByAnotherInstance() throws Exception {
+        Set<Long> pendingIds = createPendingTransactions(10);
+
+        // node-a claims everything and then dies without releasing its leases
+        TransactionClaimer dying = new TransactionClaimer(transactionRepository, "node-a", Duration.ofMillis(50));
+        assertThat(sweep(dying)).hasSize(10);
+
+        Thread.sleep(200);
+
+        TransactionClaimer survivor = new TransactionClaimer(transactionRepository, "node-b", Duration.ofMinutes(5));
+        assertThat(new HashSet<>(sweep(survivor))).isEqualTo(pendingIds);
+        assertThat(transactionRepository.findAll())
+                .allSatisfy(transaction -> assertThat(transaction.getLeaseOwner()).isEqualTo("node-b"));
+    }
+
+    @Test
+    void releasedLeaseCanBeClaimedAgain() {
+        createPendingTransactions(1);
+
+        TransactionClaimer first = new TransactionClaimer(transactionRepository, "node-a", Duration.ofMinutes(5));
+        TransactionClaimer second = new TransactionClaimer(transactionRepository, "node-b", Duration.ofMinutes(5));
+
+        DuePage page = first.findDue(0L, LocalDateTime.now().plusMinutes(1), PAGE_SIZE);
+        List<CryptoTransaction> claimed = first.claim(page.checks().stream().map(DueCheck::getId).toList());
+        assertThat(claimed).hasSize(1);
+
+        first.release(claimed.get(0));
+
+        assertThat(sweep(second)).hasSize(1);
+    }
+
+    private List<Long> sweep(TransactionClaimer claimer) {
+        List<Long> claimed = new ArrayList<>();
+        LocalDateTime dueBefore = LocalDateTime.now().plusMinutes(1);
+        long afterId = 0L;
+        boolean hasMore = true;
+
+        while (hasMore) {
+            DuePage page = claimer.findDue(afterId, dueBefore, PAGE_SIZE);
+            claimer.claim(page.checks().stream().map(DueCheck::getId).toList())
+                    .forEach(transaction -> claimed.add(transaction.getId()));
+            afterId = page.lastId();
+            hasMore = page.hasMore();
+        }
+        return claimed;
+    }
+
+    private Set<Long> createPendingTransactions(int count) {
+        List<CryptoTransaction> transactions = IntStream.range(0, count)
+                .mapToObj(i -> {
+                    CryptoTransaction transaction = new CryptoTransaction();
+                    transaction.setPhoneNumber("254700000000");
+                    transaction.setAmountKES(KesAmount.ofShillings(100));
+                    transaction.setWalletAddress("0x0000000000000000000000000000000000000001");
+                    transaction.setCheckoutRequestId("ws_CO_" + i);
+                    transaction.setTransactionStatus(TransactionStatus.PENDING);
+                    return transaction;
+                })
+                .toList();
+
+        return transactionRepository.saveAll(transactions).stream()
+                .map(CryptoTransaction::getId)
+                .collect(Collectors.toSet());
+    }
+}
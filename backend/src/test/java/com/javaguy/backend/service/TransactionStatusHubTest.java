@@ -0,0 +1,140 @@
+package com.javaguy.backend.service;
+
+import com.javaguy.backend.controller.CryptoController;
+import com.javaguy.backend.event.TransactionStatusEvent;
+import com.javaguy.backend.model.CryptoTransaction;
+import com.javaguy.backend.model.TransactionStatus;
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.Optional;
+import java.util.function.Predicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Subscribes through the controller's SSE endpoints on a standalone MockMvc, so events are written to real
+ * (mock) responses. Events are published on the hub's own threads, hence the polling for response content.
+ */
+class TransactionStatusHubTest {
+
+    private static final String WALLET = "0x00000000000000000000000000000000000000aa";
+    private static final String OTHER_WALLET = "0x00000000000000000000000000000000000000bb";
+    private static final long WAIT_MS = 2000;
+
+    private CryptoTransactionRepository transactionRepository;
+    private TransactionStatusHub hub;
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    void setUp() {
+        transactionRepository = mock(CryptoTransactionRepository.class);
+        hub = new TransactionStatusHub(transactionRepository, new SimpleMeterRegistry(), 30, 3);
+
+        TransactionService transactionService = mock(TransactionService.class);
+        when(transactionService.findTransaction(anyLong())).thenReturn(Optional.of(new CryptoTransaction()));
+        BlockchainService blockchainService = mock(BlockchainService.class);
+        when(blockchainService.isValidAddress(anyString())).thenReturn(true);
+        mockMvc = MockMvcBuilders.standaloneSetup(new CryptoController(transactionService, mock(BalanceService.class),
+                blockchainService, mock(OnRampMetrics.class), mock(OnRampDispatcher.class), hub)).build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        hub.shutdown();
+    }
+
+    @Test
+    void walletSubscribersGetTheirWalletsEventsWithoutADatabaseRead() throws Exception {
+        MvcResult subscriber = subscribe("/api/crypto/wallets/" + WALLET.toUpperCase().replace("0X", "0x") + "/events");
+        MvcResult otherSubscriber = subscribe("/api/crypto/wallets/" + OTHER_WALLET + "/events");
+
+        hub.onStatusChanged(new TransactionStatusEvent(1L, WALLET, TransactionStatus.SUBMITTED, "ws_CO_1", "0xabc", null));
+        hub.onStatusChanged(new TransactionStatusEvent(2L, WALLET, TransactionStatus.COMPLETED, "ws_CO_2", "0xdef", null));
+
+        awaitContent(subscriber, content -> content.contains("\"transactionId\":2"));
+        String content = subscriber.getResponse().getContentAsString();
+        assertThat(content).contains("\"transactionId\":1", "\"status\":\"SUBMITTED\"", "\"status\":\"COMPLETED\"");
+        // A terminal status of one transaction does not end a wallet stream
+        assertThat(isCompleted(subscriber)).isFalse();
+        assertThat(otherSubscriber.getResponse().getContentAsString()).doesNotContain("transactionId");
+        verify(transactionRepository, never()).findById(anyLong());
+    }
+
+    @Test
+    void transactionStreamStartsWithTheCurrentStatusAndEndsOnATerminalOne() throws Exception {
+        CryptoTransaction transaction = new CryptoTransaction();
+        transaction.setId(7L);
+        transaction.setWalletAddress(WALLET);
+        transaction.setTransactionStatus(TransactionStatus.PENDING);
+        when(transactionRepository.findById(7L)).thenReturn(Optional.of(transaction));
+
+        MvcResult subscriber = subscribe("/api/crypto/on-ramp/7/events");
+        assertThat(subscriber.getResponse().getContentAsString()).contains("\"status\":\"PENDING\"");
+
+        hub.onStatusChanged(new TransactionStatusEvent(7L, WALLET, TransactionStatus.COMPLETED, "ws_CO_7", "0xabc", null));
+
+        awaitContent(subscriber, content -> content.contains("\"status\":\"COMPLETED\""));
+        assertThat(subscriber.getResponse().getContentAsString()).contains("id:7:COMPLETED");
+        assertThat(isCompleted(subscriber)).isTrue();
+    }
+
+    @Test
+    void eventWithoutAWalletIsFilledInFromTheStoredRow() throws Exception {
+        CryptoTransaction transaction = new CryptoTransaction();
+        transaction.setId(9L);
+        transaction.setWalletAddress(WALLET);
+        when(transactionRepository.findById(9L)).thenReturn(Optional.of(transaction));
+        MvcResult subscriber = subscribe("/api/crypto/wallets/" + WALLET + "/events");
+
+        hub.onStatusChanged(new TransactionStatusEvent(9L, null, TransactionStatus.PAID, "ws_CO_9", null, null));
+
+        awaitContent(subscriber, content -> content.contains("\"transactionId\":9"));
+        assertThat(subscriber.getResponse().getContentAsString()).contains("\"walletAddress\":\"" + WALLET + "\"");
+    }
+
+    @Test
+    void subscribersBeyondTheLimitAreTurnedAway() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            subscribe("/api/crypto/wallets/" + WALLET + "/events");
+        }
+
+        mockMvc.perform(get("/api/crypto/wallets/" + WALLET + "/events"))
+                .andExpect(status().isServiceUnavailable());
+    }
+
+    private MvcResult subscribe(String path) throws Exception {
+        return mockMvc.perform(get(path)).andExpect(request().asyncStarted()).andReturn();
+    }
+
+    /** An emitter that completes dispatches the request back to the container */
+    private static boolean isCompleted(MvcResult subscriber) {
+        return ((MockAsyncContext) subscriber.getRequest().getAsyncContext()).getDispatchedPath() != null;
+    }
+
+    private static void awaitContent(MvcResult subscriber, Predicate<String> arrived) throws Exception {
+        MockHttpServletResponse response = subscriber.getResponse();
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!arrived.test(response.getContentAsString()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(response.getContentAsString()).matches(arrived::test, "expected event to arrive");
+    }
+}
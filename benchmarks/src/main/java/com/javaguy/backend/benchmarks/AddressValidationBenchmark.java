@@ -0,0 +1,49 @@
+package com.javaguy.backend.benchmarks;
+
+import com.javaguy.backend.service.BlockchainService;
+import okhttp3.OkHttpClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The wallet address check run on every on-ramp request
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AddressValidationBenchmark {
+
+    @Param({
+            "0x742d35Cc6634C0532925a3b844Bc454e4438f44e",
+            "742d35Cc6634C0532925a3b844Bc454e4438f44e",
+            "0x742d35Cc6634C0532925a3b844Bc454e4438f44z"
+    })
+    private String address;
+
+    private BlockchainService blockchainService;
+
+    @Setup
+    public void setUp() {
+        // init() is never called, so nothing connects to the chain
+        blockchainService = new BlockchainService(new OkHttpClient(), null, null);
+    }
+
+    @Benchmark
+    public boolean isValidAddress() {
+        return blockchainService.isValidAddress(address);
+    }
+}
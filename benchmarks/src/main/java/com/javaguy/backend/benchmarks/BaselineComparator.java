@@ -0,0 +1,88 @@
+package com.javaguy.backend.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares a JMH JSON result against a baseline and fails when a benchmark got slower or allocates more
+ * per operation than the allowed tolerance.
+ * <p>
+ * Usage: {@code java -cp target/benchmarks.jar com.javaguy.backend.benchmarks.BaselineComparator
+ * baseline.json current.json [tolerance-percent]}
+ */
+public class BaselineComparator {
+
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+    private static final double DEFAULT_TOLERANCE_PERCENT = 10;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparator <baseline.json> <current.json> [tolerance-percent]");
+            System.exit(2);
+        }
+        double tolerance = (args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_TOLERANCE_PERCENT) / 100;
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        Map<String, JsonNode> baseline = byBenchmark(objectMapper.readTree(new File(args[0])));
+        Map<String, JsonNode> current = byBenchmark(objectMapper.readTree(new File(args[1])));
+
+        int regressions = 0;
+        for (Map.Entry<String, JsonNode> entry : current.entrySet()) {
+            JsonNode before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("NEW   %s%n", entry.getKey());
+                continue;
+            }
+            JsonNode after = entry.getValue();
+
+            double scoreBefore = before.path("primaryMetric").path("score").asDouble();
+            double scoreAfter = after.path("primaryMetric").path("score").asDouble();
+            String unit = after.path("primaryMetric").path("scoreUnit").asText();
+            // Every benchmark here measures time per operation, so a higher score is worse
+            boolean slower = scoreAfter > scoreBefore * (1 + tolerance);
+            regressions += report(slower, entry.getKey(), "time", scoreBefore, scoreAfter, unit);
+
+            JsonNode allocationBefore = before.path("secondaryMetrics").path(ALLOCATION);
+            JsonNode allocationAfter = after.path("secondaryMetrics").path(ALLOCATION);
+            if (!allocationBefore.isMissingNode() && !allocationAfter.isMissingNode()) {
+                double bytesBefore = allocationBefore.path("score").asDouble();
+                double bytesAfter = allocationAfter.path("score").asDouble();
+                // A few bytes of noise on an allocation-free benchmark is not a regression
+                boolean allocatesMore = bytesAfter > bytesBefore * (1 + tolerance) + 16;
+                regressions += report(allocatesMore, entry.getKey(), "alloc", bytesBefore, bytesAfter, "B/op");
+            }
+        }
+
+        if (regressions > 0) {
+            System.out.printf("%d regression(s) beyond %.0f%%%n", regressions, tolerance * 100);
+            System.exit(1);
+        }
+    }
+
+    private static int report(boolean regressed, String benchmark, String metric, double before, double after,
+                              String unit) {
+        double change = before == 0 ? 0 : (after - before) / before * 100;
+        System.out.printf("%s %s [%s] %.3f -> %.3f %s (%+.1f%%)%n",
+                regressed ? "WORSE" : "OK   ", benchmark, metric, before, after, unit, change);
+        return regressed ? 1 : 0;
+    }
+
+    /**
+     * Keys each result by benchmark name and parameters, so parameterised runs are compared one to one
+     */
+    private static Map<String, JsonNode> byBenchmark(JsonNode results) {
+        Map<String, JsonNode> byBenchmark = new LinkedHashMap<>();
+        for (JsonNode result : results) {
+            StringBuilder key = new StringBuilder(result.path("benchmark").asText());
+            result.path("params").fields().forEachRemaining(param ->
+                    key.append(' ').append(param.getKey()).append('=').append(param.getValue().asText()));
+            byBenchmark.put(key.toString(), result);
+        }
+        return byBenchmark;
+    }
+}
@@ -0,0 +1,109 @@
+package com.javaguy.backend.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.web3j.abi.FunctionEncoder;
+import org.web3j.abi.datatypes.Address;
+import org.web3j.abi.datatypes.DynamicArray;
+import org.web3j.abi.datatypes.Function;
+import org.web3j.abi.datatypes.generated.Uint256;
+import org.web3j.crypto.Credentials;
+import org.web3j.crypto.RawTransaction;
+import org.web3j.crypto.TransactionEncoder;
+import org.web3j.utils.Numeric;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and signing a wallet credit, the CPU-heavy part of every credit send. The functions are built
+ * the same way as in BlockchainService.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CreditEncodingBenchmark {
+
+    // A throwaway key, it has never held funds on any chain
+    private static final String PRIVATE_KEY = "0x4c0883a69102937d6231471b5dbb6204fe5129617082792ae468d01a3f362318";
+    private static final String CONTRACT_ADDRESS = "0x964A2c9313A294360589dCCd9A19c4c1B60e40aF";
+    private static final String WALLET_ADDRESS = "0x742d35Cc6634C0532925a3b844Bc454e4438f44e";
+    private static final long CHAIN_ID = 43113;
+
+    @Param({"10"})
+    private int batchSize;
+
+    private Credentials credentials;
+    private BigInteger amount;
+    private List<String> batchWallets;
+    private List<BigInteger> batchAmounts;
+    private String encodedFunction;
+
+    @Setup
+    public void setUp() {
+        credentials = Credentials.create(PRIVATE_KEY);
+        amount = BigInteger.valueOf(7_692_307L);
+        batchWallets = new ArrayList<>(Collections.nCopies(batchSize, WALLET_ADDRESS));
+        batchAmounts = new ArrayList<>(Collections.nCopies(batchSize, amount));
+        encodedFunction = FunctionEncoder.encode(creditFunction(WALLET_ADDRESS, amount));
+    }
+
+    @Benchmark
+    public String encodeCredit() {
+        return FunctionEncoder.encode(creditFunction(WALLET_ADDRESS, amount));
+    }
+
+    @Benchmark
+    public String encodeBatchCredit() {
+        return FunctionEncoder.encode(new Function(
+                "batchConcludeOnRampTransfer",
+                Arrays.asList(
+                        new DynamicArray<>(Address.class, batchWallets.stream().map(Address::new).toList()),
+                        new DynamicArray<>(Uint256.class, batchAmounts.stream().map(Uint256::new).toList())
+                ),
+                Collections.emptyList()
+        ));
+    }
+
+    @Benchmark
+    public String signCredit() {
+        RawTransaction rawTransaction = RawTransaction.createTransaction(
+                CHAIN_ID,
+                BigInteger.valueOf(42),
+                BigInteger.valueOf(150_000L),
+                CONTRACT_ADDRESS,
+                BigInteger.ZERO,
+                encodedFunction,
+                BigInteger.valueOf(1_000_000_000L),
+                BigInteger.valueOf(51_000_000_000L)
+        );
+        return Numeric.toHexString(TransactionEncoder.signMessage(rawTransaction, credentials));
+    }
+
+    private static Function creditFunction(String walletAddress, BigInteger amount) {
+        return new Function(
+                "concludeOnRampTransfer",
+                Arrays.asList(
+                        new Address(walletAddress),
+                        new Uint256(amount)
+                ),
+                Collections.emptyList()
+        );
+    }
+}
@@ -0,0 +1,66 @@
+package com.javaguy.backend.benchmarks;
+
+import com.javaguy.backend.service.StkPassword;
+import com.javaguy.backend.utils.Helper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timestamp and password built for every STK push and STK query
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HelperBenchmark {
+
+    private final String businessShortCode = "174379";
+    private final String passkey = "bfb279f9aa9bdbcf158e97dd71a467cd2e0c893059b10f78e6b72ada1ed2c919";
+    private final String timestamp = "20250101120000";
+
+    private StkPassword stkPassword;
+
+    @Setup
+    public void setUp() {
+        stkPassword = new StkPassword(businessShortCode, passkey, Clock.systemDefaultZone());
+    }
+
+    @Benchmark
+    public String timestamp() {
+        return Helper.getTimestamp();
+    }
+
+    @Benchmark
+    public String password() {
+        return Helper.toBase64(businessShortCode + passkey + timestamp);
+    }
+
+    /**
+     * Both together, as MpesaService did per request before StkPassword
+     */
+    @Benchmark
+    public String timestampAndPassword() {
+        return Helper.toBase64(businessShortCode + passkey + Helper.getTimestamp());
+    }
+
+    /**
+     * The pair MpesaService uses now, computed once per second
+     */
+    @Benchmark
+    public StkPassword.Credentials cachedTimestampAndPassword() {
+        return stkPassword.current();
+    }
+}
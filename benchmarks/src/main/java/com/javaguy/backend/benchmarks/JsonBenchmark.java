@@ -0,0 +1,114 @@
+package com.javaguy.backend.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.javaguy.backend.config.OkHttpConfig;
+import com.javaguy.backend.dto.STKPushQueryResponse;
+import com.javaguy.backend.dto.STKPushRequest;
+import com.javaguy.backend.dto.STKPushResponse;
+import com.javaguy.backend.utils.JsonRequestBody;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Daraja request and response bodies, through the application's ObjectMapper
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonBenchmark {
+
+    private static final String STK_PUSH_RESPONSE = """
+            {"MerchantRequestID":"29115-34620561-1","CheckoutRequestID":"ws_CO_191220191020363925",\
+            "ResponseCode":"0","ResponseDescription":"Success. Request accepted for processing",\
+            "CustomerMessage":"Success. Request accepted for processing"}""";
+
+    private static final String STK_QUERY_RESPONSE = """
+            {"ResponseCode":"0","ResponseDescription":"The service request has been accepted successsfully",\
+            "MerchantRequestID":"29115-34620561-1","CheckoutRequestID":"ws_CO_191220191020363925",\
+            "ResultCode":"0","ResultDesc":"The service request is processed successfully."}""";
+
+    private ObjectMapper objectMapper;
+    private ObjectWriter stkPushWriter;
+    private STKPushRequest stkPushRequest;
+    private Buffer sink;
+
+    @Setup
+    public void setUp() {
+        objectMapper = new OkHttpConfig().objectMapper();
+        stkPushWriter = JsonRequestBody.writerFor(objectMapper, STKPushRequest.class);
+        sink = new Buffer();
+
+        stkPushRequest = new STKPushRequest();
+        stkPushRequest.setBusinessShortCode("174379");
+        stkPushRequest.setPassword("MTc0Mzc5YmZiMjc5ZjlhYTliZGJjZjE1OGU5N2RkNzFhNDY3Y2QyZTBjODkzMDU5YjEwZjc4ZTZiNzJhZGExZWQyYzkxOTIwMjUwMTAxMTIwMDAw");
+        stkPushRequest.setTimestamp("20250101120000");
+        stkPushRequest.setTransactionType("CustomerPayBillOnline");
+        stkPushRequest.setAmount("100");
+        stkPushRequest.setPartyA("254708374149");
+        stkPushRequest.setPartyB("174379");
+        stkPushRequest.setPhoneNumber("254708374149");
+        stkPushRequest.setCallBackURL("https://example.com/api/mpesa/stk-callback");
+        stkPushRequest.setAccountReference("Circles");
+        stkPushRequest.setTransactionDesc("Crypto on-ramp");
+    }
+
+    @Benchmark
+    public String serializeStkPushRequest() throws IOException {
+        return objectMapper.writeValueAsString(stkPushRequest);
+    }
+
+    /**
+     * The body as MpesaService used to build it: a String, a parsed media type and a byte array copy,
+     * then written to the connection
+     */
+    @Benchmark
+    public long writeStkPushRequestAsString() throws IOException {
+        RequestBody body = RequestBody.create(objectMapper.writeValueAsString(stkPushRequest),
+                MediaType.parse("application/json"));
+        body.writeTo(sink);
+        return drain();
+    }
+
+    /**
+     * The body as MpesaService builds it now, serialized to bytes by a pre-built writer
+     */
+    @Benchmark
+    public long writeStkPushRequestAsBytes() throws IOException {
+        JsonRequestBody.of(stkPushWriter, stkPushRequest).writeTo(sink);
+        return drain();
+    }
+
+    @Benchmark
+    public STKPushResponse deserializeStkPushResponse() throws IOException {
+        return objectMapper.readValue(STK_PUSH_RESPONSE, STKPushResponse.class);
+    }
+
+    @Benchmark
+    public STKPushQueryResponse deserializeStkQueryResponse() throws IOException {
+        return objectMapper.readValue(STK_QUERY_RESPONSE, STKPushQueryResponse.class);
+    }
+
+    private long drain() {
+        long size = sink.size();
+        sink.clear();
+        return size;
+    }
+}
@@ -0,0 +1,195 @@
+package com.javaguy.backend.benchmarks;
+
+import com.javaguy.backend.model.CryptoTransaction;
+import com.javaguy.backend.model.KesAmount;
+import com.javaguy.backend.model.TransactionStatus;
+import com.javaguy.backend.repository.CryptoTransactionRepository;
+import com.javaguy.backend.service.StatusCheckSchedule;
+import com.javaguy.backend.service.StatusCheckWriter;
+import com.javaguy.backend.service.TransactionClaimer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Writing transactions through JPA against H2, in memory and on disk. batchSize 1 writes every insert on its
+ * own, as the IDENTITY ids used to force; 50 is the configured hibernate.jdbc.batch_size. The reschedule
+ * benchmarks compare writing status check outcomes one transaction per statement, as the checker used to,
+ * with the StatusCheckWriter's grouped updates. Scores are per transaction.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PersistenceBenchmark {
+
+    private static final int ROWS = 200;
+    private static final String OWNER = "benchmark";
+
+    @Param({"mem", "file"})
+    private String database;
+
+    @Param({"1", "50"})
+    private int batchSize;
+
+    private Path directory;
+    private ConfigurableApplicationContext context;
+    private CryptoTransactionRepository transactionRepository;
+    private StatusCheckWriter statusCheckWriter;
+    private StatusCheckSchedule statusCheckSchedule;
+    private TransactionTemplate transactionTemplate;
+    private JdbcTemplate jdbcTemplate;
+    private List<Long> pendingIds;
+    private long sequence;
+
+    /**
+     * Just the persistence layer and the beans under test; no web server, schedulers or remote calls
+     */
+    @Configuration
+    @EnableAutoConfiguration
+    @EntityScan(basePackageClasses = CryptoTransaction.class)
+    @EnableJpaRepositories(basePackageClasses = CryptoTransactionRepository.class)
+    @Import({StatusCheckSchedule.class, TransactionClaimer.class, StatusCheckWriter.class})
+    static class Persistence {
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("persistence-benchmark");
+        String url = "mem".equals(database)
+                ? "jdbc:h2:mem:benchmark"
+                : "jdbc:h2:file:" + directory.resolve("circles").toAbsolutePath();
+
+        context = new SpringApplicationBuilder(Persistence.class)
+                .web(WebApplicationType.NONE)
+                .properties(
+                        "spring.datasource.url=" + url,
+                        "spring.datasource.username=sa",
+                        "spring.datasource.password=password",
+                        "spring.jpa.hibernate.ddl-auto=create",
+                        "spring.jpa.open-in-view=false",
+                        "spring.jpa.properties.hibernate.jdbc.batch_size=" + batchSize,
+                        "spring.jpa.properties.hibernate.order_inserts=true",
+                        "spring.jpa.properties.hibernate.order_updates=true",
+                        "transactions.lease.owner=" + OWNER,
+                        "logging.level.root=WARN")
+                .run();
+
+        transactionRepository = context.getBean(CryptoTransactionRepository.class);
+        statusCheckWriter = context.getBean(StatusCheckWriter.class);
+        statusCheckSchedule = context.getBean(StatusCheckSchedule.class);
+        transactionTemplate = context.getBean(TransactionTemplate.class);
+        jdbcTemplate = context.getBean(JdbcTemplate.class);
+
+        pendingIds = transactionTemplate.execute(status -> transactionRepository.saveAll(newTransactions()).stream()
+                .map(CryptoTransaction::getId)
+                .toList());
+    }
+
+    /**
+     * Leases the pending transactions to this instance again, as a claim would before their checks
+     */
+    @Setup(Level.Invocation)
+    public void lease() {
+        jdbcTemplate.update("UPDATE crypto_transaction SET lease_owner = ?, lease_expires_at = ? WHERE lease_owner IS NULL",
+                OWNER, Timestamp.valueOf(LocalDateTime.now().plusMinutes(5)));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public List<CryptoTransaction> insert() {
+        return transactionTemplate.execute(status -> transactionRepository.saveAll(newTransactions()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void reschedulePerRow() {
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < pendingIds.size(); i++) {
+            int attempts = attempts(i);
+            Long id = pendingIds.get(i);
+            // Each check's outcome, then its lease, each written in a transaction of its own
+            transactionRepository.rescheduleChecks(List.of(id), attempts, statusCheckSchedule.nextCheckAt(now, attempts), OWNER);
+            transactionRepository.releaseLease(id, OWNER);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void rescheduleGrouped() {
+        for (int i = 0; i < pendingIds.size(); i++) {
+            statusCheckWriter.reschedule(pendingIds.get(i), attempts(i));
+            statusCheckWriter.release(pendingIds.get(i));
+        }
+        statusCheckWriter.flush();
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeInserted() {
+        // Keeps the table the same size from one iteration to the next
+        jdbcTemplate.update("DELETE FROM crypto_transaction WHERE id > ?", pendingIds.get(pendingIds.size() - 1));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        context.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    // A spread of retry counts, so the grouped writer has several groups to write
+    private static int attempts(int index) {
+        return 1 + index % 4;
+    }
+
+    private List<CryptoTransaction> newTransactions() {
+        List<CryptoTransaction> transactions = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            CryptoTransaction transaction = new CryptoTransaction();
+            transaction.setPhoneNumber("254700000000");
+            transaction.setAmountKES(KesAmount.ofShillings(100));
+            transaction.setWalletAddress("0x742d35Cc6634C0532925a3b844Bc454e4438f44e");
+            transaction.setCheckoutRequestId("ws_CO_BENCH_" + sequence++);
+            transaction.setTransactionStatus(TransactionStatus.PENDING);
+            transactions.add(transaction);
+        }
+        return transactions;
+    }
+}
@@ -13,8 +13,10 @@ contract DeployRampingUtil is Script {
         HelperConfig helperConfig = new HelperConfig();
         address tokenAddress = helperConfig.getTokenAddress();
         vm.startBroadcast();
+        // The broadcasting account owns it, so deploy with the key the backend sends credits with
+        (, address broadcaster,) = vm.readCallers();
 
-        RampingUtil rampingUtil = new RampingUtil{salt: SALT}(tokenAddress);
+        RampingUtil rampingUtil = new RampingUtil{salt: SALT}(tokenAddress, broadcaster);
         console.log("RampingUtil deployed at:", address(rampingUtil));
         vm.stopBroadcast();
     }
@@ -4,23 +4,38 @@ pragma solidity ^0.8.0;
 
 import {IERC20} from "@openzeppelin/contracts/token/ERC20/IERC20.sol";
 import {SafeERC20} from "@openzeppelin/contracts/token/ERC20/utils/SafeERC20.sol";
+import {ConfirmedOwner} from "src/libraries/ConfirmedOwner.sol";
 
-contract RampingUtil {
+// Pays out of its own token balance, so only the owner (the backend's signer) can send tokens out of it.
+// The owner is passed in rather than taken from msg.sender, which is the CREATE2 factory when deployed by script.
+contract RampingUtil is ConfirmedOwner {
     using SafeERC20 for IERC20;
 
     address public token;
 
-    constructor(address _token) {
+    constructor(address _token, address _owner) ConfirmedOwner(_owner) {
         token = _token;
     }
 
-    function concludeOnRampTransfer(address _to, uint256 _amount) external {
+    function concludeOnRampTransfer(address _to, uint256 _amount) external onlyOwner {
         require(_to != address(0), "Invalid recipient address");
         require(_amount > 0, "Amount must be greater than zero");
 
         IERC20(token).safeTransfer(_to, _amount);
     }
 
+    function batchConcludeOnRampTransfer(address[] calldata _to, uint256[] calldata _amounts) external onlyOwner {
+        require(_to.length == _amounts.length, "Length mismatch");
+        require(_to.length > 0, "Empty batch");
+
+        for (uint256 i = 0; i < _to.length; i++) {
+            require(_to[i] != address(0), "Invalid recipient address");
+            require(_amounts[i] > 0, "Amount must be greater than zero");
+
+            IERC20(token).safeTransfer(_to[i], _amounts[i]);
+        }
+    }
+
     function concludeOffRampTransfer(address _from, uint256 _amount) external {
         require(_from != address(0), "Invalid sender address");
         require(_amount > 0, "Amount must be greater than zero");
@@ -28,7 +43,7 @@ contract RampingUtil {
         IERC20(token).safeTransferFrom(_from, address(this), _amount);
     }
 
-    function changeToken(address _newToken) external {
+    function changeToken(address _newToken) external onlyOwner {
         require(_newToken != address(0), "Invalid token address");
         token = _newToken;
     }
@@ -0,0 +1,135 @@
+// SPDX-License-Identifier: MIT
+pragma solidity ^0.8.20;
+
+import {Test} from "forge-std/Test.sol";
+import {RampingUtil} from "src/alt/RampingUtil.sol";
+import {BurnMintUsdc} from "src/TestUsdc.sol";
+
+/**
+ * @title RampingUtilTest
+ * @notice Unit tests for the RampingUtil on-ramp transfers
+ * @dev Tests batch validation, owner-only payouts and the balances a batch leaves behind
+ */
+contract RampingUtilTest is Test {
+    RampingUtil rampingUtil;
+    BurnMintUsdc usdc;
+
+    uint256 constant FUNDED = 1000e18;
+
+    address owner = makeAddr("owner");
+    address bob = makeAddr("bob");
+    address alice = makeAddr("alice");
+    address charlie = makeAddr("charlie");
+
+    function setUp() external {
+        usdc = new BurnMintUsdc();
+        rampingUtil = new RampingUtil(address(usdc), owner);
+        deal(address(usdc), address(rampingUtil), FUNDED);
+    }
+
+    function testBatchCreditsEveryRecipient() external {
+        address[] memory recipients = new address[](3);
+        recipients[0] = bob;
+        recipients[1] = alice;
+        recipients[2] = charlie;
+        uint256[] memory amounts = new uint256[](3);
+        amounts[0] = 10e18;
+        amounts[1] = 20e18;
+        amounts[2] = 30e18;
+
+        vm.prank(owner);
+        rampingUtil.batchConcludeOnRampTransfer(recipients, amounts);
+
+        assertEq(usdc.balanceOf(bob), 10e18);
+        assertEq(usdc.balanceOf(alice), 20e18);
+        assertEq(usdc.balanceOf(charlie), 30e18);
+        assertEq(usdc.balanceOf(address(rampingUtil)), FUNDED - 60e18);
+    }
+
+    function testBatchCreditsTheSameRecipientTwice() external {
+        address[] memory recipients = new address[](2);
+        recipients[0] = bob;
+        recipients[1] = bob;
+        uint256[] memory amounts = new uint256[](2);
+        amounts[0] = 10e18;
+        amounts[1] = 5e18;
+
+        vm.prank(owner);
+        rampingUtil.batchConcludeOnRampTransfer(recipients, amounts);
+
+        assertEq(usdc.balanceOf(bob), 15e18);
+        assertEq(usdc.balanceOf(address(rampingUtil)), FUNDED - 15e18);
+    }
+
+    function testBatchRevertsOnLengthMismatch() external {
+        address[] memory recipients = new address[](2);
+        recipients[0] = bob;
+        recipients[1] = alice;
+        uint256[] memory amounts = new uint256[](1);
+        amounts[0] = 10e18;
+
+        vm.prank(owner);
+        vm.expectRevert(bytes("Length mismatch"));
+        rampingUtil.batchConcludeOnRampTransfer(recipients, amounts);
+    }
+
+    function testBatchRevertsWhenEmpty() external {
+        vm.prank(owner);
+        vm.expectRevert(bytes("Empty batch"));
+        rampingUtil.batchConcludeOnRampTransfer(new address[](0), new uint256[](0));
+    }
+
+    function testBatchIsOwnerOnly() external {
+        address[] memory recipients = new address[](1);
+        recipients[0] = bob;
+        uint256[] memory amounts = new uint256[](1);
+        amounts[0] = 10e18;
+
+        vm.prank(bob);
+        vm.expectRevert(bytes("Only callable by owner"));
+        rampingUtil.batchConcludeOnRampTransfer(recipients, amounts);
+
+        assertEq(usdc.balanceOf(bob), 0);
+        assertEq(usdc.balanceOf(address(rampingUtil)), FUNDED);
+    }
+
+    function testSingleTransferAndTokenChangeAreOwnerOnly() external {
+        vm.startPrank(bob);
+        vm.expectRevert(bytes("Only callable by owner"));
+        rampingUtil.concludeOnRampTransfer(bob, 10e18);
+        vm.expectRevert(bytes("Only callable by owner"));
+        rampingUtil.changeToken(bob);
+        vm.stopPrank();
+    }
+
+    function testBatchWithAZeroRecipientCreditsNobody() external {
+        address[] memory recipients = new address[](2);
+        recipients[0] = bob;
+        recipients[1] = address(0);
+        uint256[] memory amounts = new uint256[](2);
+        amounts[0] = 10e18;
+        amounts[1] = 10e18;
+
+        vm.prank(owner);
+        vm.expectRevert(bytes("Invalid recipient address"));
+        rampingUtil.batchConcludeOnRampTransfer(recipients, amounts);
+
+        assertEq(usdc.balanceOf(bob), 0);
+        assertEq(usdc.balanceOf(address(rampingUtil)), FUNDED);
+    }
+
+    function testBatchRevertsWhenTheBalanceRunsOut() external {
+        address[] memory recipients = new address[](2);
+        recipients[0] = bob;
+        recipients[1] = alice;
+        uint256[] memory amounts = new uint256[](2);
+        amounts[0] = FUNDED;
+        amounts[1] = 1;
+
+        vm.prank(owner);
+        vm.expectRevert();
+        rampingUtil.batchConcludeOnRampTransfer(recipients, amounts);
+
+        assertEq(usdc.balanceOf(bob), 0);
+    }
+}